@@ -0,0 +1,114 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2017, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+
+package com.snaplogic.snaps.common;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs conversion tasks on a bounded worker pool while results are emitted on the calling
+ * thread.
+ *
+ * <p>At most {@code window} tasks are in flight; submitting beyond that blocks the caller until
+ * a result has been handed to the sink. In ordered mode results are emitted in submission order,
+ * otherwise as soon as they complete.</p>
+ */
+public final class ParallelConverter {
+
+    /**
+     * Receives converted results on the thread that submitted the tasks.
+     */
+    public interface Sink {
+        void accept(Object result) throws Exception;
+    }
+
+    private final ExecutorService executor;
+    private final CompletionService<Object> completionService;
+    private final Deque<Future<Object>> pending = new ArrayDeque<>();
+    private final int window;
+    private final boolean ordered;
+
+    public ParallelConverter(final String name, final int threads, final int window,
+            final boolean ordered) {
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat(name + "-%d")
+                .setDaemon(true)
+                .build());
+        this.completionService = ordered ? null : new ExecutorCompletionService<Object>(executor);
+        this.window = Math.max(window, threads);
+        this.ordered = ordered;
+    }
+
+    /**
+     * Queues a task, first emitting a result if the in-flight window is full.
+     */
+    public void submit(final Callable<Object> task, final Sink sink) throws Exception {
+        if (pending.size() >= window) {
+            emitNext(sink);
+        }
+        pending.add(ordered ? executor.submit(task) : completionService.submit(task));
+    }
+
+    /**
+     * Emits every outstanding result.
+     */
+    public void drain(final Sink sink) throws Exception {
+        while (!pending.isEmpty()) {
+            emitNext(sink);
+        }
+    }
+
+    /**
+     * Discards outstanding tasks, e.g. after a failure.
+     */
+    public void cancel() {
+        for (Future<Object> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+    }
+
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    private void emitNext(final Sink sink) throws Exception {
+        Future<Object> future;
+        if (ordered) {
+            future = pending.poll();
+        } else {
+            // skip completions of tasks discarded by an earlier cancel()
+            do {
+                future = completionService.take();
+            } while (!pending.remove(future));
+        }
+        try {
+            sink.accept(future.get());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+}
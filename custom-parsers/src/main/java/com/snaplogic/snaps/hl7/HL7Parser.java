@@ -1,15 +1,6 @@
 package com.snaplogic.snaps.hl7;
 
-import ca.uhn.hl7v2.DefaultHapiContext;
-import ca.uhn.hl7v2.HapiContext;
-import ca.uhn.hl7v2.model.Message;
-import ca.uhn.hl7v2.model.v25.message.ACK;
-import ca.uhn.hl7v2.parser.DefaultXMLParser;
-import ca.uhn.hl7v2.parser.GenericModelClassFactory;
-import ca.uhn.hl7v2.parser.ModelClassFactory;
-import ca.uhn.hl7v2.parser.XMLParser;
-import ca.uhn.hl7v2.util.Hl7InputStreamMessageIterator;
-import ca.uhn.hl7v2.validation.builder.support.NoValidationBuilder;
+import ca.uhn.hl7v2.util.Hl7InputStreamMessageStringIterator;
 import com.google.common.base.Throwables;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
@@ -17,26 +8,23 @@ import com.google.inject.Module;
 import com.snaplogic.api.ConfigurationException;
 import com.snaplogic.api.DependencyManager;
 import com.snaplogic.api.ExecutionException;
+import com.snaplogic.common.SnapType;
 import com.snaplogic.common.properties.builders.PropertyBuilder;
 import com.snaplogic.snap.api.*;
 import com.snaplogic.snap.api.capabilities.*;
 import com.snaplogic.snap.api.xml.XmlUtils;
 import com.snaplogic.snap.api.xml.XmlUtilsImpl;
 import com.snaplogic.snap.view.InputView;
-import de.odysseus.staxon.json.JsonXMLConfig;
-import de.odysseus.staxon.json.JsonXMLConfigBuilder;
-import de.odysseus.staxon.json.JsonXMLOutputFactory;
+import com.snaplogic.snaps.common.ParallelConverter;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.LoggerFactory;
 
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.transform.Source;
-import javax.xml.transform.stream.StreamSource;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
 import java.nio.channels.Channels;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 
 /**
@@ -57,25 +45,35 @@ public class HL7Parser extends SimpleBinarySnap implements DependencyManager{
 
     private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(HL7Parser.class);
 
-
-    private final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
-    private final JsonXMLConfig config = new JsonXMLConfigBuilder()
-            .autoArray(true)
-            .multiplePI(true)
-            .build();
-    private final JsonXMLOutputFactory jsonOutputFactory = new JsonXMLOutputFactory(config);
-    StringBuilder transformedData = null;
-    String ackMessageInXML = "";
+    private static final String WORKER_THREADS_PROP = "Worker threads";
+    private static final String PRESERVE_ORDER_PROP = "Preserve order";
+    private static final int IN_FLIGHT_PER_WORKER = 4;
 
     @Inject
     private InputViews inputViews;
 
+    private Hl7Converter messageConverter;
+    private ParallelConverter converter;
 
 
 
     @Override
     public void defineProperties(PropertyBuilder propertyBuilder) {
-
+        Hl7Converter.defineProperties(propertyBuilder);
+
+        propertyBuilder.describe(WORKER_THREADS_PROP, WORKER_THREADS_PROP,
+                "Number of threads converting messages, 1 converts on the reader thread")
+                .type(SnapType.INTEGER)
+                .withMinValue(1)
+                .defaultValue(1)
+                .add();
+
+        propertyBuilder.describe(PRESERVE_ORDER_PROP, PRESERVE_ORDER_PROP,
+                "Emit documents in the order of the messages in the input when converting "
+                        + "with more than one worker thread")
+                .type(SnapType.BOOLEAN)
+                .defaultValue(true)
+                .add();
     }
 
 
@@ -91,12 +89,21 @@ public class HL7Parser extends SimpleBinarySnap implements DependencyManager{
 
     @Override
     public void configure(PropertyValues propertyValues) throws ConfigurationException {
+        messageConverter = Hl7Converter.configure(propertyValues, XMLUtils);
 
+        Number workerThreads = propertyValues.get(WORKER_THREADS_PROP);
+        if (workerThreads != null && workerThreads.intValue() > 1) {
+            converter = new ParallelConverter("hl7-parser", workerThreads.intValue(),
+                    workerThreads.intValue() * IN_FLIGHT_PER_WORKER,
+                    !Boolean.FALSE.equals(propertyValues.get(PRESERVE_ORDER_PROP)));
+        }
     }
 
     @Override
     public void cleanup() throws ExecutionException {
-
+        if (converter != null) {
+            converter.shutdown();
+        }
     }
 
 
@@ -104,12 +111,6 @@ public class HL7Parser extends SimpleBinarySnap implements DependencyManager{
 
     @Override
     protected void doWork() {
-        Source source = null;
-        HapiContext context = new DefaultHapiContext();
-        context.setValidationRuleBuilder(new NoValidationBuilder());
-        context.getParserConfiguration().setAllowUnknownVersions(true);
-        XMLParser xmlParser = new DefaultXMLParser(context);
-        ModelClassFactory modelClassFactory = new GenericModelClassFactory();
         InputStream inputStream = null;
 
         // do nothing if input view is not connected
@@ -130,27 +131,7 @@ public class HL7Parser extends SimpleBinarySnap implements DependencyManager{
                     }
 
                     inputStream = getInputStream(binaryInput);
-                    System.out.println("binary is null2");
-                    Hl7InputStreamMessageIterator iter = new Hl7InputStreamMessageIterator(inputStream);
-
-                    while (iter.hasNext()) {
-                        transformedData = new StringBuilder();
-                        Message message = iter.next();
-                        if (message instanceof ACK) {
-                            ACK ack = (ACK) message;
-                            ack.getMSH().getProcessingID().getProcessingMode().setValue("P");
-                        }
-                        // Do something with the message
-                        ackMessageInXML = xmlParser.encode(message);
-                        source = new StreamSource(new StringReader(ackMessageInXML.replaceAll("xmlns=\"urn:hl7-org:v2xml\"", "xmlns:t=\"urn:hl7-org:v2xml\"")));
-                        Object resultFromXML = XMLUtils.convertToJson(xmlInputFactory, jsonOutputFactory, source);
-                        Document header = binaryInput.getHeader();
-                        if (resultFromXML != null) {
-                            writeToOutputViews(header, resultFromXML);
-                            transformedData.setLength(0);
-                        }
-                        transformedData.setLength(0);
-                    }
+                    parse(binaryInput.getHeader(), inputStream);
                 }
 
                 catch (Exception e) {
@@ -159,7 +140,7 @@ public class HL7Parser extends SimpleBinarySnap implements DependencyManager{
                     //throw new ExecutionException(e, "Failed to parse hl7 message data").withReason(Throwables.getRootCause(e).getMessage()).withResolutionAsDefect();
                     SnapDataException snapDataException = new SnapDataException(
                             e,
-                            "Error/Exception parsing HL7 data - " + ackMessageInXML
+                            "Error/Exception parsing HL7 data"
                     ).withReason(Throwables.getRootCause(e).getMessage()).withResolutionAsDefect();
 
                     errorViews.write(snapDataException);
@@ -183,6 +164,78 @@ public class HL7Parser extends SimpleBinarySnap implements DependencyManager{
 
     }
 
+    /**
+     * Splits the input into messages on this thread and applies the message type filter. The
+     * remaining messages are converted inline, or on the worker pool when one is configured, and
+     * their documents are always emitted from this thread.
+     */
+    private void parse(final Document header, final InputStream inputStream) throws Exception {
+        ParallelConverter.Sink sink = new ParallelConverter.Sink() {
+            @Override
+            public void accept(final Object result) {
+                if (result != null) {
+                    writeToOutputViews(header, result);
+                }
+            }
+        };
+        try {
+            if (messageConverter.isRawMode()) {
+                // fast path: tokenize ER7 without instantiating the HAPI model
+                RawHl7Reader reader = new RawHl7Reader(inputStream);
+                List<String> segments;
+                while ((segments = reader.nextSegments()) != null) {
+                    if (messageConverter.accepts(segments.get(0))) {
+                        dispatch(newRawTask(segments), sink);
+                    }
+                }
+            } else {
+                Hl7InputStreamMessageStringIterator iter =
+                        new Hl7InputStreamMessageStringIterator(inputStream);
+                while (iter.hasNext()) {
+                    String message = iter.next();
+                    if (messageConverter.accepts(Hl7Converter.firstSegment(message))) {
+                        dispatch(newTask(message), sink);
+                    }
+                }
+            }
+            if (converter != null) {
+                converter.drain(sink);
+            }
+        } finally {
+            if (converter != null) {
+                // no-op after a successful drain, discards queued work after a failure
+                converter.cancel();
+            }
+        }
+    }
+
+    private void dispatch(final Callable<Object> task, final ParallelConverter.Sink sink)
+            throws Exception {
+        if (converter == null) {
+            sink.accept(task.call());
+        } else {
+            converter.submit(task, sink);
+        }
+    }
+
+    private Callable<Object> newRawTask(final List<String> segments) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return messageConverter.convert(segments);
+            }
+        };
+    }
+
+    private Callable<Object> newTask(final String message) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return messageConverter.convert(message);
+            }
+        };
+    }
+
     private void writeToOutputViews(final Document header, final Object data) {
         outputViews.write(documentUtility.newDocumentFor(header, data));
     }
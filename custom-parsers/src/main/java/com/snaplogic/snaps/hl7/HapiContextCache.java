@@ -0,0 +1,125 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2017, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+
+package com.snaplogic.snaps.hl7;
+
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.parser.DefaultXMLParser;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.parser.XMLParser;
+import ca.uhn.hl7v2.validation.builder.support.DefaultValidationBuilder;
+import ca.uhn.hl7v2.validation.builder.support.NoValidationBuilder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Node-wide cache of configured HAPI contexts and XML parsers.
+ *
+ * <p>Building a {@link HapiContext} is expensive (class loading, structure lookup and the
+ * validation rule builder), while a configured context and its parsers are thread safe. Entries
+ * are therefore created once per distinct set of parser settings and shared by every HL7 snap
+ * instance running in the JCC.</p>
+ */
+final class HapiContextCache {
+
+    private static final ConcurrentMap<Key, Entry> CACHE = new ConcurrentHashMap<>();
+
+    private HapiContextCache() {
+    }
+
+    /**
+     * Returns the shared context and parser for the given settings, creating them on first use.
+     *
+     * @param validate             true to apply the default HAPI validation rules
+     * @param allowUnknownVersions true to parse messages with an unrecognized MSH-12 version
+     * @return cache entry holding the configured context and XML parser
+     */
+    static Entry get(final boolean validate, final boolean allowUnknownVersions) {
+        Key key = new Key(validate, allowUnknownVersions);
+        Entry entry = CACHE.get(key);
+        if (entry == null) {
+            Entry created = new Entry(newContext(validate, allowUnknownVersions));
+            entry = CACHE.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        return entry;
+    }
+
+    private static HapiContext newContext(final boolean validate,
+            final boolean allowUnknownVersions) {
+        HapiContext context = new DefaultHapiContext();
+        if (validate) {
+            context.setValidationRuleBuilder(new DefaultValidationBuilder());
+        } else {
+            context.setValidationRuleBuilder(new NoValidationBuilder());
+        }
+        context.getParserConfiguration().setAllowUnknownVersions(allowUnknownVersions);
+        return context;
+    }
+
+    /**
+     * Configured HAPI context and the parsers bound to it.
+     */
+    static final class Entry {
+        private final HapiContext context;
+        private final XMLParser xmlParser;
+        private final PipeParser pipeParser;
+
+        private Entry(final HapiContext context) {
+            this.context = context;
+            this.xmlParser = new DefaultXMLParser(context);
+            this.pipeParser = context.getPipeParser();
+        }
+
+        HapiContext getContext() {
+            return context;
+        }
+
+        XMLParser getXmlParser() {
+            return xmlParser;
+        }
+
+        PipeParser getPipeParser() {
+            return pipeParser;
+        }
+    }
+
+    private static final class Key {
+        private final boolean validate;
+        private final boolean allowUnknownVersions;
+
+        private Key(final boolean validate, final boolean allowUnknownVersions) {
+            this.validate = validate;
+            this.allowUnknownVersions = allowUnknownVersions;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return validate == other.validate && allowUnknownVersions == other.allowUnknownVersions;
+        }
+
+        @Override
+        public int hashCode() {
+            return (validate ? 2 : 0) + (allowUnknownVersions ? 1 : 0);
+        }
+    }
+}
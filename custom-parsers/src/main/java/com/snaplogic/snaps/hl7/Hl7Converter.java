@@ -0,0 +1,218 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2017, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+
+package com.snaplogic.snaps.hl7;
+
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.v25.message.ACK;
+import com.snaplogic.api.ConfigurationException;
+import com.snaplogic.common.SnapType;
+import com.snaplogic.common.properties.SnapProperty;
+import com.snaplogic.common.properties.builders.PropertyBuilder;
+import com.snaplogic.snap.api.PropertyValues;
+import com.snaplogic.snap.api.xml.XmlUtils;
+import de.odysseus.staxon.json.JsonXMLConfig;
+import de.odysseus.staxon.json.JsonXMLConfigBuilder;
+import de.odysseus.staxon.json.JsonXMLOutputFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts HL7 messages to documents, shared by the HL7 snaps.
+ *
+ * <p>Defines and reads the conversion related properties (parse mode, validation, field
+ * projection and message type filter). A configured converter is thread safe and may be used
+ * from worker threads.</p>
+ */
+final class Hl7Converter {
+
+    private static final String VALIDATE_PROP = "Validate messages";
+    private static final String ALLOW_UNKNOWN_VERSIONS_PROP = "Allow unknown versions";
+    private static final String PARSE_MODE_PROP = "Parse mode";
+    private static final String PARSE_MODE_HAPI = "HAPI";
+    private static final String PARSE_MODE_RAW = "Raw";
+    private static final String FIELDS_PROP = "Fields";
+    private static final String FIELD_PATH_PROP = "Field path";
+    private static final String MESSAGE_TYPES_PROP = "Message types";
+
+    private static final JsonXMLConfig CONFIG = new JsonXMLConfigBuilder()
+            .autoArray(true)
+            .multiplePI(true)
+            .build();
+
+    // StAX factories are not guaranteed to be thread safe, give each worker its own
+    private static final ThreadLocal<XMLInputFactory> XML_INPUT_FACTORY =
+            new ThreadLocal<XMLInputFactory>() {
+                @Override
+                protected XMLInputFactory initialValue() {
+                    return XMLInputFactory.newInstance();
+                }
+            };
+    private static final ThreadLocal<JsonXMLOutputFactory> JSON_OUTPUT_FACTORY =
+            new ThreadLocal<JsonXMLOutputFactory>() {
+                @Override
+                protected JsonXMLOutputFactory initialValue() {
+                    return new JsonXMLOutputFactory(CONFIG);
+                }
+            };
+
+    private final XmlUtils xmlUtils;
+    private final HapiContextCache.Entry hapi;
+    private final boolean rawMode;
+    private final Hl7FieldSelector selector;
+
+    private Hl7Converter(final XmlUtils xmlUtils, final HapiContextCache.Entry hapi,
+            final boolean rawMode, final Hl7FieldSelector selector) {
+        this.xmlUtils = xmlUtils;
+        this.hapi = hapi;
+        this.rawMode = rawMode;
+        this.selector = selector;
+    }
+
+    static void defineProperties(final PropertyBuilder propertyBuilder) {
+        propertyBuilder.describe(PARSE_MODE_PROP, PARSE_MODE_PROP,
+                "HAPI builds the typed HL7 model for each message, Raw only splits segments and "
+                        + "fields on the MSH separators")
+                .required()
+                .type(SnapType.STRING)
+                .withAllowedValues(new HashSet<String>(Arrays.asList(PARSE_MODE_HAPI, PARSE_MODE_RAW)))
+                .defaultValue(PARSE_MODE_HAPI)
+                .add();
+
+        propertyBuilder.describe(VALIDATE_PROP, VALIDATE_PROP,
+                "Apply the default HAPI validation rules while parsing")
+                .type(SnapType.BOOLEAN)
+                .defaultValue(false)
+                .add();
+
+        propertyBuilder.describe(ALLOW_UNKNOWN_VERSIONS_PROP, ALLOW_UNKNOWN_VERSIONS_PROP,
+                "Parse messages whose HL7 version is not known to HAPI")
+                .type(SnapType.BOOLEAN)
+                .defaultValue(true)
+                .add();
+
+        final SnapProperty fieldPath = propertyBuilder
+                .describe(FIELD_PATH_PROP, FIELD_PATH_PROP,
+                        "Field to extract, e.g. PID-3-1 or OBX(*)-5")
+                .type(SnapType.STRING)
+                .withMinLength(1)
+                .build();
+        propertyBuilder.describe(FIELDS_PROP, FIELDS_PROP,
+                "Fields to extract into a flat document, leave empty to output whole messages")
+                .type(SnapType.TABLE)
+                .withEntry(fieldPath)
+                .add();
+
+        propertyBuilder.describe(MESSAGE_TYPES_PROP, MESSAGE_TYPES_PROP,
+                "Comma separated message types to keep, e.g. ADT^A01,ORU, leave empty to keep all")
+                .type(SnapType.STRING)
+                .add();
+    }
+
+    static Hl7Converter configure(final PropertyValues propertyValues, final XmlUtils xmlUtils)
+            throws ConfigurationException {
+        boolean rawMode = PARSE_MODE_RAW.equals(propertyValues.get(PARSE_MODE_PROP));
+        // contexts are shared node-wide, so only the first pipeline pays the warmup cost
+        HapiContextCache.Entry hapi = HapiContextCache.get(
+                Boolean.TRUE.equals(propertyValues.get(VALIDATE_PROP)),
+                !Boolean.FALSE.equals(propertyValues.get(ALLOW_UNKNOWN_VERSIONS_PROP)));
+
+        List<String> fieldPaths = new ArrayList<>();
+        List<Map<String, Object>> fields = propertyValues.getAsExpression(FIELDS_PROP).eval(null);
+        if (fields != null) {
+            for (Map<String, Object> aRow : fields) {
+                String path = propertyValues.getExpressionPropertyFor(aRow, FIELD_PATH_PROP).eval(null);
+                if (path != null && !path.trim().isEmpty()) {
+                    fieldPaths.add(path);
+                }
+            }
+        }
+        try {
+            return new Hl7Converter(xmlUtils, hapi, rawMode, Hl7FieldSelector.of(fieldPaths,
+                    (String) propertyValues.get(MESSAGE_TYPES_PROP)));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e, "Invalid HL7 field selection")
+                    .withReason(e.getMessage())
+                    .withResolution("Use paths of the form SEG(rep)-field(rep)-component-subcomponent");
+        }
+    }
+
+    boolean isRawMode() {
+        return rawMode;
+    }
+
+    /**
+     * Returns true if the message passes the message type filter.
+     *
+     * @param msh the MSH segment of the message
+     */
+    boolean accepts(final String msh) {
+        return selector.accepts(msh);
+    }
+
+    /**
+     * Converts a message already split into segments by {@link RawHl7Reader}.
+     */
+    Object convert(final List<String> segments) throws Exception {
+        if (selector.hasProjection()) {
+            return selector.project(segments);
+        }
+        return RawHl7Reader.toDocument(segments);
+    }
+
+    /**
+     * Converts a complete ER7 message. In HAPI mode the message is always parsed, so validation
+     * and the version check apply even when only projected fields are output.
+     */
+    Object convert(final String message) throws Exception {
+        if (rawMode) {
+            return convert(Hl7FieldSelector.segments(message));
+        }
+        Message parsed = hapi.getPipeParser().parse(message);
+        if (selector.hasProjection()) {
+            // projected fields are read from the ER7 tokens of the validated message
+            return selector.project(Hl7FieldSelector.segments(message));
+        }
+        return toJson(parsed);
+    }
+
+    private Object toJson(final Message message) throws Exception {
+        if (message instanceof ACK) {
+            ACK ack = (ACK) message;
+            ack.getMSH().getProcessingID().getProcessingMode().setValue("P");
+        }
+        String messageInXML = hapi.getXmlParser().encode(message);
+        Source source = new StreamSource(new StringReader(messageInXML.replaceAll(
+                "xmlns=\"urn:hl7-org:v2xml\"", "xmlns:t=\"urn:hl7-org:v2xml\"")));
+        return xmlUtils.convertToJson(XML_INPUT_FACTORY.get(), JSON_OUTPUT_FACTORY.get(), source);
+    }
+
+    /**
+     * Returns the first segment of an ER7 message.
+     */
+    static String firstSegment(final String message) {
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\r' || c == '\n') {
+                return message.substring(0, i);
+            }
+        }
+        return message;
+    }
+}
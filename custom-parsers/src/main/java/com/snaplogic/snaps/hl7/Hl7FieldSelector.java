@@ -0,0 +1,272 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2017, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+
+package com.snaplogic.snaps.hl7;
+
+import com.google.common.base.Strings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Message type filter and Terser style field projection evaluated directly on ER7 segments.
+ *
+ * <p>Paths have the form {@code SEG(rep)-field(rep)-component-subcomponent}, e.g.
+ * {@code PID-3-1} or {@code OBX(*)-5}. Segment and field repetitions are zero based and default
+ * to the first one, {@code *} selects all of them. Components and sub-components are one based.
+ * A path containing a wildcard yields a list of the non-empty values found, any other path a
+ * single value or null.</p>
+ *
+ * <p>Message types are matched against MSH-9, either on the message code alone ({@code ADT}) or
+ * on code and trigger event ({@code ADT^A01}).</p>
+ */
+final class Hl7FieldSelector {
+
+    private static final Pattern PATH_PATTERN = Pattern.compile(
+            "([A-Z][A-Z0-9]{2})(?:\\((\\*|\\d+)\\))?-(\\d+)(?:\\((\\*|\\d+)\\))?(?:-(\\d+))?(?:-(\\d+))?");
+    private static final int ANY = -1;
+    private static final String MSH = "MSH";
+
+    private final List<FieldPath> paths;
+    private final List<String[]> messageTypes;
+
+    private Hl7FieldSelector(final List<FieldPath> paths, final List<String[]> messageTypes) {
+        this.paths = paths;
+        this.messageTypes = messageTypes;
+    }
+
+    /**
+     * Builds a selector.
+     *
+     * @param paths        field paths to project, may be empty to keep whole messages
+     * @param messageTypes comma separated message types to keep, blank to keep all messages
+     * @return the selector
+     * @throws IllegalArgumentException if a path is not valid
+     */
+    static Hl7FieldSelector of(final List<String> paths, final String messageTypes) {
+        List<FieldPath> fieldPaths = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            fieldPaths.add(new FieldPath(path.trim()));
+        }
+        List<String[]> types = new ArrayList<>();
+        if (messageTypes != null) {
+            for (String type : messageTypes.split(",")) {
+                if (!type.trim().isEmpty()) {
+                    types.add(type.trim().split("\\^"));
+                }
+            }
+        }
+        return new Hl7FieldSelector(fieldPaths, types);
+    }
+
+    boolean hasProjection() {
+        return !paths.isEmpty();
+    }
+
+    /**
+     * Returns true if the message passes the message type filter.
+     *
+     * @param msh the MSH segment of the message
+     */
+    boolean accepts(final String msh) {
+        if (messageTypes.isEmpty()) {
+            return true;
+        }
+        if (!msh.startsWith(MSH) || msh.length() < 8) {
+            return false;
+        }
+        RawHl7Reader.Delimiters delimiters = new RawHl7Reader.Delimiters(msh);
+        List<String> fields = RawHl7Reader.split(msh, delimiters.field);
+        if (fields.size() < 9) {
+            return false;
+        }
+        List<String> messageType = RawHl7Reader.split(
+                firstRepetition(fields.get(8), delimiters), delimiters.component);
+        for (String[] type : messageTypes) {
+            if (matches(type, messageType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Extracts the configured paths from the segments of one message.
+     *
+     * @param segments segments of the message, starting with MSH
+     * @return flat document keyed by path
+     */
+    Map<String, Object> project(final List<String> segments) {
+        RawHl7Reader.Delimiters delimiters = new RawHl7Reader.Delimiters(segments.get(0));
+        List<List<String>> fieldCache = new ArrayList<>(
+                Collections.<List<String>>nCopies(segments.size(), null));
+        Map<String, Object> document = new LinkedHashMap<>();
+        for (FieldPath path : paths) {
+            document.put(path.path, select(path, segments, fieldCache, delimiters));
+        }
+        return document;
+    }
+
+    /**
+     * Splits a message string into its segments.
+     */
+    static List<String> segments(final String message) {
+        List<String> segments = new ArrayList<>();
+        for (String segment : message.split("[\r\n]+")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    private Object select(final FieldPath path, final List<String> segments,
+            final List<List<String>> fieldCache, final RawHl7Reader.Delimiters delimiters) {
+        List<String> values = new ArrayList<>();
+        int occurrence = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            String segment = segments.get(i);
+            if (!segment.startsWith(path.segment)
+                    || (segment.length() > 3 && segment.charAt(3) != delimiters.field)) {
+                continue;
+            }
+            if (path.segmentRepetition != ANY && occurrence++ != path.segmentRepetition) {
+                continue;
+            }
+            List<String> fields = fieldCache.get(i);
+            if (fields == null) {
+                fields = RawHl7Reader.split(segment, delimiters.field);
+                fieldCache.set(i, fields);
+            }
+            collect(path, fields, delimiters, values);
+            if (!path.wildcard && !values.isEmpty()) {
+                break;
+            }
+        }
+        if (path.wildcard) {
+            return values;
+        }
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    private static void collect(final FieldPath path, final List<String> fields,
+            final RawHl7Reader.Delimiters delimiters, final List<String> values) {
+        String field;
+        if (MSH.equals(path.segment)) {
+            if (path.field == 1) {
+                values.add(String.valueOf(delimiters.field));
+                return;
+            }
+            // MSH-1 is the separator itself, so MSH-n is token n-1
+            field = path.field - 1 < fields.size() ? fields.get(path.field - 1) : null;
+            if (path.field == 2) {
+                add(values, field);
+                return;
+            }
+        } else {
+            field = path.field < fields.size() ? fields.get(path.field) : null;
+        }
+        if (Strings.isNullOrEmpty(field)) {
+            return;
+        }
+        List<String> repetitions = RawHl7Reader.split(field, delimiters.repetition);
+        if (path.fieldRepetition == ANY) {
+            for (String repetition : repetitions) {
+                add(values, component(path, repetition, delimiters));
+            }
+        } else if (path.fieldRepetition < repetitions.size()) {
+            add(values, component(path, repetitions.get(path.fieldRepetition), delimiters));
+        }
+    }
+
+    private static String component(final FieldPath path, final String repetition,
+            final RawHl7Reader.Delimiters delimiters) {
+        String value = repetition;
+        if (path.component > 0) {
+            value = nth(value, delimiters.component, path.component);
+        }
+        if (value != null && path.subComponent > 0) {
+            value = nth(value, delimiters.subComponent, path.subComponent);
+        }
+        return value == null ? null : RawHl7Reader.unescape(value, delimiters);
+    }
+
+    private static String nth(final String value, final char separator, final int position) {
+        List<String> tokens = RawHl7Reader.split(value, separator);
+        return position <= tokens.size() ? tokens.get(position - 1) : null;
+    }
+
+    private static void add(final List<String> values, final String value) {
+        if (!Strings.isNullOrEmpty(value)) {
+            values.add(value);
+        }
+    }
+
+    private static String firstRepetition(final String field,
+            final RawHl7Reader.Delimiters delimiters) {
+        int end = field.indexOf(delimiters.repetition);
+        return end < 0 ? field : field.substring(0, end);
+    }
+
+    private static boolean matches(final String[] type, final List<String> messageType) {
+        for (int i = 0; i < type.length; i++) {
+            if (i >= messageType.size() || !type[i].equals(messageType.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class FieldPath {
+        private final String path;
+        private final String segment;
+        private final int segmentRepetition;
+        private final int field;
+        private final int fieldRepetition;
+        private final int component;
+        private final int subComponent;
+        private final boolean wildcard;
+
+        private FieldPath(final String path) {
+            Matcher matcher = PATH_PATTERN.matcher(path);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid HL7 field path: " + path);
+            }
+            this.path = path;
+            this.segment = matcher.group(1);
+            this.segmentRepetition = repetition(matcher.group(2));
+            this.field = Integer.parseInt(matcher.group(3));
+            this.fieldRepetition = repetition(matcher.group(4));
+            this.component = position(matcher.group(5));
+            this.subComponent = position(matcher.group(6));
+            this.wildcard = segmentRepetition == ANY || fieldRepetition == ANY;
+            if (field < 1 || (subComponent > 0 && component == 0)) {
+                throw new IllegalArgumentException("Invalid HL7 field path: " + path);
+            }
+        }
+
+        private static int repetition(final String value) {
+            if (value == null) {
+                return 0;
+            }
+            return "*".equals(value) ? ANY : Integer.parseInt(value);
+        }
+
+        private static int position(final String value) {
+            return value == null ? 0 : Integer.parseInt(value);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2017, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+
+package com.snaplogic.snaps.hl7;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental decoder for MLLP frames ({@code <VT> message <FS><CR>}).
+ *
+ * <p>Bytes may arrive in arbitrary chunks; a frame is emitted as soon as its end block has been
+ * seen. Bytes outside a frame, such as the trailing carriage return, are ignored. One decoder is
+ * used per connection and is not thread safe.</p>
+ */
+final class MllpFrameDecoder {
+
+    static final byte START_BLOCK = 0x0b;
+    static final byte END_BLOCK = 0x1c;
+    static final byte CARRIAGE_RETURN = 0x0d;
+
+    private final int maxFrameSize;
+    private byte[] frame = new byte[4096];
+    private int length;
+    private boolean inFrame;
+
+    MllpFrameDecoder(final int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Consumes all remaining bytes of the buffer.
+     *
+     * @param in     bytes read from the connection
+     * @param frames receives the payload of every frame completed by these bytes
+     * @throws IOException if a frame grows beyond the maximum frame size
+     */
+    void decode(final ByteBuffer in, final List<byte[]> frames) throws IOException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == START_BLOCK) {
+                // a start block inside a frame means the previous frame was truncated
+                inFrame = true;
+                length = 0;
+            } else if (!inFrame) {
+                continue;
+            } else if (b == END_BLOCK) {
+                frames.add(Arrays.copyOf(frame, length));
+                inFrame = false;
+            } else {
+                if (length == frame.length) {
+                    if (length >= maxFrameSize) {
+                        throw new IOException("MLLP frame exceeds " + maxFrameSize + " bytes");
+                    }
+                    frame = Arrays.copyOf(frame, Math.min(length * 2, maxFrameSize));
+                }
+                frame[length++] = b;
+            }
+        }
+    }
+
+    /**
+     * Wraps a message payload in an MLLP frame.
+     */
+    static ByteBuffer encode(final byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(payload.length + 3);
+        buffer.put(START_BLOCK).put(payload).put(END_BLOCK).put(CARRIAGE_RETURN);
+        buffer.flip();
+        return buffer;
+    }
+}
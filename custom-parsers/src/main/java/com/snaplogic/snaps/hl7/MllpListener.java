@@ -0,0 +1,264 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2017, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+
+package com.snaplogic.snaps.hl7;
+
+import com.google.common.base.Throwables;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.snaplogic.api.ConfigurationException;
+import com.snaplogic.api.DependencyManager;
+import com.snaplogic.api.ExecutionException;
+import com.snaplogic.common.SnapType;
+import com.snaplogic.common.properties.builders.PropertyBuilder;
+import com.snaplogic.snap.api.Document;
+import com.snaplogic.snap.api.DocumentUtility;
+import com.snaplogic.snap.api.PropertyValues;
+import com.snaplogic.snap.api.SimpleSnap;
+import com.snaplogic.snap.api.SnapCategory;
+import com.snaplogic.snap.api.SnapDataException;
+import com.snaplogic.snap.api.capabilities.*;
+import com.snaplogic.snap.api.xml.XmlUtils;
+import com.snaplogic.snap.api.xml.XmlUtilsImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listens for HL7 messages sent over MLLP and writes each one to the output view as soon as it
+ * arrives, using the same conversion settings as the {@link HL7Parser}.
+ *
+ * <p>When the snap stops, it first stops taking connections and messages, then writes out the
+ * messages already received, so none that were acknowledged get lost.</p>
+ */
+@General(title = "MLLP Listener", purpose = "Receive HL7 messages over MLLP (Field Snap)", author = "SnapLogic")
+@Inputs(min = 0, max = 0)
+@Outputs(min = 1, max = 1, offers = {ViewType.DOCUMENT})
+@Errors(max = 1, offers = {ViewType.DOCUMENT})
+@Version(snap = 1)
+@Category(snap = SnapCategory.READ)
+public class MllpListener extends SimpleSnap implements DependencyManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MllpListener.class);
+
+    private static final String BIND_ADDRESS_PROP = "Bind address";
+    private static final String PORT_PROP = "Port";
+    private static final String ACK_MODE_PROP = "Acknowledgement";
+    private static final String ACK_AFTER_PROCESSING = "After processing";
+    private static final String ACK_ON_RECEIPT = "On receipt";
+    private static final String ACK_NONE = "None";
+    private static final String MAX_MESSAGES_PROP = "Max messages";
+    private static final String IDLE_TIMEOUT_PROP = "Idle timeout";
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final long POLL_INTERVAL_MS = 500;
+
+    @Inject
+    private XmlUtils XMLUtils;
+
+    // Document utility is the only way to create a document
+    // or manipulate the document header
+    @Inject
+    private DocumentUtility documentUtility;
+
+    private Hl7Converter messageConverter;
+    private String bindAddress;
+    private int port;
+    private String ackMode;
+    private long maxMessages;
+    private long idleTimeoutMillis;
+    private MllpServer server;
+
+    @Override
+    public void defineProperties(PropertyBuilder propertyBuilder) {
+        propertyBuilder.describe(BIND_ADDRESS_PROP, BIND_ADDRESS_PROP,
+                "Local address to listen on, leave empty to listen on all interfaces")
+                .type(SnapType.STRING)
+                .add();
+
+        propertyBuilder.describe(PORT_PROP, PORT_PROP, "TCP port to listen on")
+                .required()
+                .type(SnapType.INTEGER)
+                .withMinValue(1)
+                .withMaxValue(65535)
+                .add();
+
+        propertyBuilder.describe(ACK_MODE_PROP, ACK_MODE_PROP,
+                "When to send the HL7 acknowledgement back to the sender")
+                .required()
+                .type(SnapType.STRING)
+                .withAllowedValues(new HashSet<String>(Arrays.asList(ACK_AFTER_PROCESSING,
+                        ACK_ON_RECEIPT, ACK_NONE)))
+                .defaultValue(ACK_AFTER_PROCESSING)
+                .add();
+
+        propertyBuilder.describe(MAX_MESSAGES_PROP, MAX_MESSAGES_PROP,
+                "Stop after this many messages, 0 to keep listening. Messages already "
+                        + "received by then are still written")
+                .type(SnapType.INTEGER)
+                .withMinValue(0)
+                .defaultValue(0)
+                .add();
+
+        propertyBuilder.describe(IDLE_TIMEOUT_PROP, IDLE_TIMEOUT_PROP,
+                "Stop after this many seconds without a message, 0 to keep listening")
+                .type(SnapType.INTEGER)
+                .withMinValue(0)
+                .defaultValue(0)
+                .add();
+
+        Hl7Converter.defineProperties(propertyBuilder);
+    }
+
+    @Override
+    public Module getManagedModule() {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(XmlUtils.class).to(XmlUtilsImpl.class);
+            }
+        };
+    }
+
+    @Override
+    public void configure(PropertyValues propertyValues) throws ConfigurationException {
+        messageConverter = Hl7Converter.configure(propertyValues, XMLUtils);
+        bindAddress = propertyValues.get(BIND_ADDRESS_PROP);
+        port = ((Number) propertyValues.get(PORT_PROP)).intValue();
+        ackMode = propertyValues.get(ACK_MODE_PROP);
+        maxMessages = longValue(propertyValues.get(MAX_MESSAGES_PROP));
+        idleTimeoutMillis = TimeUnit.SECONDS.toMillis(
+                longValue(propertyValues.get(IDLE_TIMEOUT_PROP)));
+    }
+
+    @Override
+    protected void process(Document document, String inputViewName) {
+        server = new MllpServer(bindAddress, port, QUEUE_CAPACITY, ACK_ON_RECEIPT.equals(ackMode));
+        try {
+            server.start();
+        } catch (IOException e) {
+            throw new ExecutionException(e, "Unable to listen for MLLP connections")
+                    .withReason(Throwables.getRootCause(e).getMessage())
+                    .withResolution("Please make sure that the port is free and the address is "
+                            + "local to the Snaplex node.");
+        }
+
+        boolean interrupted = false;
+        try {
+            try {
+                listen();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            // also when the pipeline stops the snap: the interrupt is cleared while the messages
+            // already received are written out, and restored afterwards
+            interrupted |= Thread.interrupted();
+            drain();
+        } catch (IOException e) {
+            throw new ExecutionException(e, "MLLP listener stopped unexpectedly")
+                    .withReason(Throwables.getRootCause(e).getMessage())
+                    .withResolutionAsDefect();
+        } finally {
+            server.close();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Writes out messages as they arrive until the message limit or the idle timeout is
+     * reached, or the snap is stopped.
+     */
+    private void listen() throws IOException, InterruptedException {
+        long count = 0;
+        long lastMessage = System.currentTimeMillis();
+        while (!Thread.currentThread().isInterrupted()) {
+            MllpServer.Received received = server.poll(POLL_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+            if (received == null) {
+                if (idleTimeoutMillis > 0
+                        && System.currentTimeMillis() - lastMessage >= idleTimeoutMillis) {
+                    break;
+                }
+                continue;
+            }
+            lastMessage = System.currentTimeMillis();
+            handle(received);
+            if (maxMessages > 0 && ++count >= maxMessages) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Stops taking messages and writes out the ones already received. They may have been
+     * acknowledged on receipt, or sent without acknowledgement, so dropping them would lose
+     * them.
+     */
+    private void drain() {
+        List<MllpServer.Received> remaining = server.stopReading();
+        if (!remaining.isEmpty()) {
+            LOG.info("Writing {} MLLP messages received before the listener stopped",
+                    remaining.size());
+        }
+        for (MllpServer.Received received : remaining) {
+            handle(received);
+        }
+    }
+
+    private void handle(final MllpServer.Received received) {
+        String message = received.getMessage();
+        String msh = Hl7Converter.firstSegment(message);
+        String ackCode = MllpServer.ACK_ACCEPT;
+        try {
+            if (!msh.startsWith("MSH")) {
+                ackCode = MllpServer.ACK_REJECT;
+                throw new IllegalArgumentException("Message does not start with an MSH segment");
+            }
+            if (messageConverter.accepts(msh)) {
+                Object data = messageConverter.convert(message);
+                if (data != null) {
+                    outputViews.write(documentUtility.newDocument(data));
+                }
+            }
+        } catch (Exception e) {
+            LOG.debug("Failed to convert MLLP message", e);
+            if (MllpServer.ACK_ACCEPT.equals(ackCode)) {
+                ackCode = MllpServer.ACK_ERROR;
+            }
+            SnapDataException snapDataException = new SnapDataException(
+                    e,
+                    "Error/Exception parsing HL7 message received over MLLP"
+            ).withReason(Throwables.getRootCause(e).getMessage()).withResolutionAsDefect();
+            errorViews.write(snapDataException);
+        }
+        if (ACK_AFTER_PROCESSING.equals(ackMode)) {
+            received.acknowledge(ackCode);
+        }
+    }
+
+    @Override
+    public void cleanup() throws ExecutionException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private static long longValue(final Object value) {
+        return value == null ? 0 : ((Number) value).longValue();
+    }
+}
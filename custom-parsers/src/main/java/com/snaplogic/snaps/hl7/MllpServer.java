@@ -0,0 +1,454 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2017, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+
+package com.snaplogic.snaps.hl7;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking MLLP server.
+ *
+ * <p>A single selector thread accepts connections, decodes frames and writes acknowledgements.
+ * Received messages are handed over through a bounded queue. When the queue is full, a
+ * connection's decoded messages are held back and the selector stops reading from it until
+ * the consumer has made room, which pushes back on its sender through TCP flow control. Other
+ * connections and acknowledgements are served meanwhile.</p>
+ */
+final class MllpServer implements Closeable {
+
+    static final String ACK_ACCEPT = "AA";
+    static final String ACK_ERROR = "AE";
+    static final String ACK_REJECT = "AR";
+
+    private static final Logger LOG = LoggerFactory.getLogger(MllpServer.class);
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long RESUME_INTERVAL_MS = 100;
+    private static final AtomicLong CONTROL_IDS = new AtomicLong(System.currentTimeMillis());
+
+    private final InetSocketAddress address;
+    private final boolean ackOnReceipt;
+    private final BlockingQueue<Received> received;
+    private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // connections holding back messages, only used by the selector thread
+    private final List<Connection> held = new ArrayList<>();
+    private final CountDownLatch readingStopped = new CountDownLatch(1);
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running;
+    private volatile boolean stopReading;
+    private volatile boolean backlogged;
+    private volatile IOException failure;
+
+    /**
+     * @param host          address to bind to, null or blank for all interfaces
+     * @param port          port to listen on, 0 for an ephemeral port
+     * @param queueCapacity maximum number of received messages waiting to be consumed
+     * @param ackOnReceipt  true to acknowledge every frame with AA as soon as it is queued
+     */
+    MllpServer(final String host, final int port, final int queueCapacity,
+            final boolean ackOnReceipt) {
+        this.address = host == null || host.trim().isEmpty()
+                ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+        this.ackOnReceipt = ackOnReceipt;
+        this.received = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                select();
+            }
+        }, "mllp-listener-" + getPort());
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        LOG.info("MLLP listener started on {}", serverChannel.socket().getLocalSocketAddress());
+    }
+
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Waits for the next received message.
+     *
+     * @return the message, or null if none arrived within the timeout
+     * @throws IOException if the selector thread stopped because of an I/O failure
+     */
+    Received poll(final long timeout, final TimeUnit unit)
+            throws IOException, InterruptedException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (backlogged) {
+            // let the selector queue the messages it holds back
+            selector.wakeup();
+        }
+        return received.poll(timeout, unit);
+    }
+
+    /**
+     * Stops accepting connections and reading messages, acknowledgements are still sent until
+     * the server is closed. Messages held back because the queue was full are dropped; they
+     * were never acknowledged, so their senders send them again.
+     *
+     * @return the messages received before, still to be consumed
+     */
+    List<Received> stopReading() {
+        stopReading = true;
+        if (running) {
+            selector.wakeup();
+            try {
+                readingStopped.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // still hand out what was received
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<Received> remaining = new ArrayList<>(received.size());
+        received.drainTo(remaining);
+        return remaining;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (selectorThread != null) {
+            try {
+                selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void select() {
+        List<byte[]> frames = new ArrayList<>();
+        try {
+            while (running) {
+                // held back messages are also retried periodically, in case a wakeup is missed
+                selector.select(held.isEmpty() ? 0 : RESUME_INTERVAL_MS);
+                if (stopReading && serverChannel.isOpen()) {
+                    closeForReading();
+                }
+                resumeHeld();
+                flushPendingWrites();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            read(key, frames);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        LOG.warn("Closing MLLP connection: {}", e.getMessage());
+                        closeConnection(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("MLLP listener failed", e);
+            failure = e;
+        } finally {
+            readingStopped.countDown();
+            // acknowledgements of the last messages are still sent, as far as the socket takes
+            // them without blocking
+            flushPendingWrites();
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid() && key.attachment() != null) {
+                    try {
+                        write(key);
+                    } catch (IOException e) {
+                        LOG.debug("Failed to send MLLP acknowledgements", e);
+                    }
+                }
+                closeConnection(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOG.debug("Failed to close selector", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection();
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        LOG.debug("Accepted MLLP connection from {}", channel.socket().getRemoteSocketAddress());
+    }
+
+    private void read(final SelectionKey key, final List<byte[]> frames) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        readBuffer.clear();
+        int count = ((SocketChannel) key.channel()).read(readBuffer);
+        if (count < 0) {
+            closeConnection(key);
+            return;
+        }
+        readBuffer.flip();
+        frames.clear();
+        connection.decoder.decode(readBuffer, frames);
+        for (byte[] frame : frames) {
+            connection.heldBack.add(new Received(connection, new String(frame, CHARSET)));
+        }
+        if (!offer(connection)) {
+            // consumer is behind, stop reading from this connection until it catches up
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            held.add(connection);
+            backlogged = true;
+        }
+    }
+
+    /**
+     * Queues the messages a connection holds back, in the order they arrived.
+     *
+     * @return true if all of them fit into the queue
+     */
+    private boolean offer(final Connection connection) {
+        Received item;
+        while ((item = connection.heldBack.peek()) != null) {
+            if (!received.offer(item)) {
+                return false;
+            }
+            connection.heldBack.poll();
+            if (ackOnReceipt) {
+                connection.outbound.add(frameAck(item.message, ACK_ACCEPT));
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queues held back messages now that there is room and reads again from the connections
+     * that have none left.
+     */
+    private void resumeHeld() {
+        Iterator<Connection> connections = held.iterator();
+        while (connections.hasNext()) {
+            Connection connection = connections.next();
+            if (!connection.key.isValid()) {
+                connections.remove();
+            } else if (offer(connection)) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+                connections.remove();
+            } else {
+                break;
+            }
+        }
+        backlogged = !held.isEmpty();
+    }
+
+    private void closeForReading() {
+        LOG.info("MLLP listener on port {} stops reading", getPort());
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            LOG.debug("Failed to close MLLP server socket", e);
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() != null) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                ((Connection) key.attachment()).heldBack.clear();
+            }
+        }
+        held.clear();
+        backlogged = false;
+        readingStopped.countDown();
+    }
+
+    private void write(final SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        while (!connection.outbound.isEmpty()) {
+            ByteBuffer buffer = connection.outbound.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            connection.outbound.poll();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    private void flushPendingWrites() {
+        PendingWrite pending;
+        while ((pending = pendingWrites.poll()) != null) {
+            SelectionKey key = pending.connection.key;
+            if (key.isValid()) {
+                pending.connection.outbound.add(pending.buffer);
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void closeConnection(final SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            LOG.debug("Failed to close MLLP connection", e);
+        }
+    }
+
+    private static ByteBuffer frameAck(final String message, final String code) {
+        return MllpFrameDecoder.encode(ack(message, code).getBytes(CHARSET));
+    }
+
+    /**
+     * Builds an ER7 acknowledgement for a message, using the separators of the message and
+     * swapping its sending and receiving application and facility.
+     *
+     * @param message the ER7 message being acknowledged
+     * @param code    the MSA-1 acknowledgement code
+     * @return the ACK message
+     */
+    static String ack(final String message, final String code) {
+        String msh = Hl7Converter.firstSegment(message);
+        if (!msh.startsWith("MSH") || msh.length() < 8) {
+            msh = "MSH|^~\\&";
+        }
+        RawHl7Reader.Delimiters delimiters = new RawHl7Reader.Delimiters(msh);
+        List<String> fields = RawHl7Reader.split(msh, delimiters.field);
+        char separator = delimiters.field;
+        // MSH-1 is the separator itself, so MSH-n is token n-1
+        String controlId = field(fields, 10);
+        String trigger = "";
+        List<String> messageType = RawHl7Reader.split(field(fields, 9), delimiters.component);
+        if (messageType.size() > 1) {
+            trigger = messageType.get(1);
+        }
+        StringBuilder ack = new StringBuilder(128)
+                .append("MSH").append(separator).append(fields.get(1))
+                .append(separator).append(field(fields, 5))
+                .append(separator).append(field(fields, 6))
+                .append(separator).append(field(fields, 3))
+                .append(separator).append(field(fields, 4))
+                .append(separator).append(new SimpleDateFormat("yyyyMMddHHmmss").format(new Date()))
+                .append(separator)
+                .append(separator).append("ACK").append(delimiters.component).append(trigger)
+                .append(delimiters.component).append("ACK")
+                .append(separator).append(CONTROL_IDS.incrementAndGet())
+                .append(separator).append(field(fields, 11))
+                .append(separator).append(field(fields, 12))
+                .append('\r')
+                .append("MSA").append(separator).append(code).append(separator).append(controlId)
+                .append('\r');
+        return ack.toString();
+    }
+
+    private static String field(final List<String> fields, final int mshField) {
+        return mshField - 1 < fields.size() ? fields.get(mshField - 1) : "";
+    }
+
+    /**
+     * A message received on one of the connections.
+     */
+    final class Received {
+        private final Connection connection;
+        private final String message;
+
+        private Received(final Connection connection, final String message) {
+            this.connection = connection;
+            this.message = message;
+        }
+
+        String getMessage() {
+            return message;
+        }
+
+        /**
+         * Sends an acknowledgement for this message back on the connection it arrived on.
+         * Safe to call from any thread.
+         *
+         * @param code the MSA-1 acknowledgement code
+         */
+        void acknowledge(final String code) {
+            pendingWrites.add(new PendingWrite(connection, frameAck(message, code)));
+            selector.wakeup();
+        }
+    }
+
+    private static final class Connection {
+        private final MllpFrameDecoder decoder = new MllpFrameDecoder(MAX_FRAME_SIZE);
+        private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+        private final Queue<Received> heldBack = new ArrayDeque<>();
+        private SelectionKey key;
+    }
+
+    private static final class PendingWrite {
+        private final Connection connection;
+        private final ByteBuffer buffer;
+
+        private PendingWrite(final Connection connection, final ByteBuffer buffer) {
+            this.connection = connection;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2017, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+
+package com.snaplogic.snaps.hl7;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads ER7 (pipe delimited) HL7 messages straight from a byte stream without building a HAPI
+ * model.
+ *
+ * <p>Each message is returned as a map keyed by segment id, holding the list of occurrences of
+ * that segment in message order. An occurrence is a list whose index N is field N of the segment
+ * (index 0 is the segment id, so {@code PID[0][3]} is PID-3). A field is a plain string unless it
+ * contains repetitions, components or sub-components, in which case it becomes a nested list at
+ * each of those levels. Separators are taken from the MSH segment of every message.</p>
+ */
+final class RawHl7Reader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String MSH = "MSH";
+    private static final List<String> BATCH_SEGMENTS = Arrays.asList("FHS", "BHS", "BTS", "FTS");
+
+    private final InputStream inputStream;
+    private final byte[] chunk = new byte[8192];
+    private int position;
+    private int limit;
+    private byte[] buffer = new byte[1024];
+    private String pendingMsh;
+    private boolean eof;
+
+    RawHl7Reader(final InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Reads the next message.
+     *
+     * @return the next message, or null when the stream is exhausted
+     * @throws IOException if reading fails or a message does not start with an MSH segment
+     */
+    Map<String, Object> next() throws IOException {
+        List<String> segments = nextSegments();
+        return segments == null ? null : toDocument(segments);
+    }
+
+    /**
+     * Reads the raw segments of the next message, skipping batch envelope segments.
+     *
+     * @return the segments of the next message, or null when the stream is exhausted
+     * @throws IOException if reading fails
+     */
+    List<String> nextSegments() throws IOException {
+        List<String> segments = new ArrayList<>();
+        if (pendingMsh != null) {
+            segments.add(pendingMsh);
+            pendingMsh = null;
+        }
+        String segment;
+        while ((segment = readSegment()) != null) {
+            if (segment.startsWith(MSH) && !segments.isEmpty()) {
+                pendingMsh = segment;
+                return segments;
+            }
+            if (segment.length() >= 3 && BATCH_SEGMENTS.contains(segment.substring(0, 3))) {
+                continue;
+            }
+            segments.add(segment);
+        }
+        return segments.isEmpty() ? null : segments;
+    }
+
+    /**
+     * Tokenizes the segments of a single message into a document.
+     *
+     * @param segments segments of one message, starting with MSH
+     * @return the message document
+     * @throws IOException if the first segment is not a valid MSH segment
+     */
+    static Map<String, Object> toDocument(final List<String> segments) throws IOException {
+        String msh = segments.get(0);
+        if (!msh.startsWith(MSH) || msh.length() < 8) {
+            throw new IOException("HL7 message does not start with an MSH segment: " + msh);
+        }
+        Delimiters delimiters = new Delimiters(msh);
+        Map<String, Object> message = new LinkedHashMap<>();
+        for (String segment : segments) {
+            List<Object> fields = parseSegment(segment, delimiters);
+            String id = (String) fields.get(0);
+            @SuppressWarnings("unchecked")
+            List<Object> occurrences = (List<Object>) message.get(id);
+            if (occurrences == null) {
+                occurrences = new ArrayList<>(1);
+                message.put(id, occurrences);
+            }
+            occurrences.add(fields);
+        }
+        return message;
+    }
+
+    private static List<Object> parseSegment(final String segment, final Delimiters delimiters) {
+        List<String> tokens = split(segment, delimiters.field);
+        List<Object> fields = new ArrayList<>(tokens.size() + 1);
+        boolean isMsh = MSH.equals(tokens.get(0));
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            if (isMsh && i == 1) {
+                // MSH-1 is the field separator itself and MSH-2 holds the encoding characters
+                fields.add(String.valueOf(delimiters.field));
+                fields.add(token);
+            } else if (i == 0) {
+                fields.add(token);
+            } else {
+                fields.add(parseField(token, delimiters));
+            }
+        }
+        return fields;
+    }
+
+    private static Object parseField(final String field, final Delimiters delimiters) {
+        if (field.indexOf(delimiters.repetition) < 0) {
+            return parseRepetition(field, delimiters);
+        }
+        List<String> tokens = split(field, delimiters.repetition);
+        List<Object> repetitions = new ArrayList<>(tokens.size());
+        for (String token : tokens) {
+            repetitions.add(parseRepetition(token, delimiters));
+        }
+        return repetitions;
+    }
+
+    private static Object parseRepetition(final String repetition, final Delimiters delimiters) {
+        if (repetition.indexOf(delimiters.component) < 0) {
+            return parseComponent(repetition, delimiters);
+        }
+        List<String> tokens = split(repetition, delimiters.component);
+        List<Object> components = new ArrayList<>(tokens.size());
+        for (String token : tokens) {
+            components.add(parseComponent(token, delimiters));
+        }
+        return components;
+    }
+
+    private static Object parseComponent(final String component, final Delimiters delimiters) {
+        if (component.indexOf(delimiters.subComponent) < 0) {
+            return unescape(component, delimiters);
+        }
+        List<String> tokens = split(component, delimiters.subComponent);
+        List<Object> subComponents = new ArrayList<>(tokens.size());
+        for (String token : tokens) {
+            subComponents.add(unescape(token, delimiters));
+        }
+        return subComponents;
+    }
+
+    /**
+     * Replaces the delimiter escape sequences (\F\, \S\, \T\, \R\ and \E\) with the characters
+     * they stand for. Other escape sequences are left untouched.
+     */
+    static String unescape(final String value, final Delimiters delimiters) {
+        char escape = delimiters.escape;
+        if (value.indexOf(escape) < 0) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        int i = 0;
+        while (i < value.length()) {
+            char c = value.charAt(i);
+            if (c == escape && i + 2 < value.length() && value.charAt(i + 2) == escape) {
+                Character replacement = delimiters.forEscapeCode(value.charAt(i + 1));
+                if (replacement != null) {
+                    result.append(replacement.charValue());
+                    i += 3;
+                    continue;
+                }
+            }
+            result.append(c);
+            i++;
+        }
+        return result.toString();
+    }
+
+    static List<String> split(final String value, final char separator) {
+        List<String> tokens = new ArrayList<>();
+        int start = 0;
+        int end;
+        while ((end = value.indexOf(separator, start)) >= 0) {
+            tokens.add(value.substring(start, end));
+            start = end + 1;
+        }
+        tokens.add(value.substring(start));
+        return tokens;
+    }
+
+    /**
+     * Reads bytes up to the next segment terminator (CR, LF or CRLF), skipping blank lines and
+     * MLLP framing bytes.
+     */
+    private String readSegment() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position == limit) {
+                if (eof || (limit = inputStream.read(chunk)) == -1) {
+                    eof = true;
+                    limit = 0;
+                    position = 0;
+                    return length > 0 ? new String(buffer, 0, length, UTF_8) : null;
+                }
+                position = 0;
+            }
+            byte b = chunk[position++];
+            if (b == '\r' || b == '\n') {
+                if (length > 0) {
+                    return new String(buffer, 0, length, UTF_8);
+                }
+            } else if (b != 0x0b && b != 0x1c) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, length * 2);
+                }
+                buffer[length++] = b;
+            }
+        }
+    }
+
+    /**
+     * Separator characters declared in MSH-1 and MSH-2. MSH-2 may declare fewer than four
+     * encoding characters, the standard ones stand in for those it leaves out.
+     */
+    static final class Delimiters {
+        private static final String DEFAULT_ENCODING_CHARACTERS = "^~\\&";
+
+        final char field;
+        final char component;
+        final char repetition;
+        final char escape;
+        final char subComponent;
+
+        /**
+         * @param msh the MSH segment, at least up to the field separator
+         */
+        Delimiters(final String msh) {
+            field = msh.charAt(3);
+            int end = msh.indexOf(field, 4);
+            String declared = msh.substring(4, end < 0 ? msh.length() : end);
+            component = encodingCharacter(declared, 0);
+            repetition = encodingCharacter(declared, 1);
+            escape = encodingCharacter(declared, 2);
+            subComponent = encodingCharacter(declared, 3);
+        }
+
+        private static char encodingCharacter(final String declared, final int index) {
+            return index < declared.length() ? declared.charAt(index)
+                    : DEFAULT_ENCODING_CHARACTERS.charAt(index);
+        }
+
+        Character forEscapeCode(final char code) {
+            switch (code) {
+                case 'F':
+                    return field;
+                case 'S':
+                    return component;
+                case 'R':
+                    return repetition;
+                case 'E':
+                    return escape;
+                case 'T':
+                    return subComponent;
+                default:
+                    return null;
+            }
+        }
+    }
+}
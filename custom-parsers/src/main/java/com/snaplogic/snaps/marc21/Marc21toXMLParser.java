@@ -13,42 +13,46 @@ package com.snaplogic.snaps.marc21;
 
 
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Callables;
 import com.snaplogic.api.ConfigurationException;
 import com.snaplogic.api.ExecutionException;
+import com.snaplogic.common.SnapType;
+import com.snaplogic.common.properties.SnapProperty;
 import com.snaplogic.common.properties.builders.PropertyBuilder;
 import com.snaplogic.snap.api.BinaryOutput;
+import com.snaplogic.snap.api.ExpressionProperty;
 import com.snaplogic.snap.api.PropertyValues;
 import com.snaplogic.snap.api.SnapCategory;
 import com.snaplogic.snap.api.SnapDataException;
 import com.snaplogic.snap.api.capabilities.*;
 import com.snaplogic.snap.api.write.SimpleBinaryWriteSnap;
-import com.sun.org.apache.xml.internal.serialize.OutputFormat;
-import com.sun.org.apache.xml.internal.serialize.XMLSerializer;
-
+import com.snaplogic.snaps.common.ParallelConverter;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.jdom.Document;
-import org.jdom.input.SAXHandler;
-import org.jdom.output.XMLOutputter;
-import org.marc4j.MarcReader;
-import org.marc4j.MarcStreamReader;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.marc4j.MarcXmlWriter;
-import org.marc4j.converter.impl.AnselToUnicode;
 import org.marc4j.marc.Record;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.InputSource;
-
-import java.io.ByteArrayOutputStream;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-
-import javax.xml.transform.Result;
-import javax.xml.transform.sax.SAXResult;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 
@@ -56,9 +60,9 @@ import javax.xml.transform.sax.SAXResult;
  * Created by bkukadia on 03/23/2017.
  */
 
-@General(title = "MARC21 Parser", purpose = "Parse Marc21 Messages (Field Snap) to XML", author = "SnapLogic")
+@General(title = "MARC21 Parser", purpose = "Parse Marc21 Messages (Field Snap) to XML or documents", author = "SnapLogic")
 @Inputs(min = 1, max = 1, accepts = {ViewType.BINARY})
-@Outputs(min = 1, max = 1, offers = {ViewType.BINARY})
+@Outputs(min = 1, max = 1, offers = {ViewType.BINARY, ViewType.DOCUMENT})
 @Errors(min = 1, max = 1, offers = {ViewType.DOCUMENT})
 @Version(snap = 1)
 @Category(snap = SnapCategory.PARSE)
@@ -66,49 +70,73 @@ public class Marc21toXMLParser extends SimpleBinaryWriteSnap {
     private static final Logger log = LoggerFactory.getLogger(Marc21toXMLParser.class);
 
     private static final String UTF_8 = "UTF-8";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String PRETTY_PRINT_PROP = "Pretty print";
+    private static final String OUTPUT_FORMAT_PROP = "Output format";
+    private static final String OUTPUT_XML = "XML";
+    private static final String OUTPUT_DOCUMENTS = "Document per record";
+    private static final String PARSE_ERROR = "Error/Exception parsing MARC21 file";
+    private static final String OFFSET_FIELD = "offset";
+    private static final String LENGTH_FIELD = "length";
+    private static final String RECORD_FIELD = "record";
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final String WORKER_THREADS_PROP = "Worker threads";
+    private static final String FIELDS_PROP = "Fields";
+    private static final String FIELD_PROP = "Field";
+    private static final String RECORD_FILTER_PROP = "Record filter";
+    private static final int IN_FLIGHT_PER_WORKER = 4;
+    // larger XML output is kept in a temporary file until it is written
+    private static final int SPILL_THRESHOLD = 16 * 1024 * 1024;
+
+    private boolean prettyPrint;
+    private boolean documentOutput;
+    private ParallelConverter converter;
+    private MarcFieldSelector selector;
+    private ExpressionProperty recordFilter;
+    private final List<File> spilled = new CopyOnWriteArrayList<>();
+
     @Override
     protected void process(final com.snaplogic.snap.api.Document header, final ReadableByteChannel readChannel) {
-        //String transformedData = null;
-        final StringBuilder transformedData = new StringBuilder();
-        OutputStream outputStream = null;
-
-        try (InputStream inputStream = Channels.newInputStream(readChannel)) {
-            //outputStream = Channels.newOutputStream(writeChannel);
-            // If you want to read as char stream rather than byte stream
-            // Reader reader = new InputStreamReader(new BufferedInputStream(inputStream), UTF_8);
-           
-            MarcReader reader = new MarcStreamReader(inputStream);
-            OutputFormat format = new OutputFormat("xml","UTF-8", true);
-           
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            OutputStream out = baos;
-            XMLSerializer serializer = new XMLSerializer(out, format);
-            Result result = new SAXResult(serializer.asContentHandler());
-            
-            MarcXmlWriter writer = new MarcXmlWriter(result);
-            writer.setConverter(new AnselToUnicode());
-            while (reader.hasNext()) {
-                Record record = reader.next();
-                writer.write(record);
-            }
+        if (documentOutput) {
+            writeDocuments(header, readChannel);
+            return;
+        }
+        // the whole input is read, checked and serialized here, so the output only streams a
+        // complete document and never depends on the input channel or the error view. Large
+        // serializations go to a temporary file, so memory use does not depend on the input.
+        final DeferredFileOutputStream xml = new DeferredFileOutputStream(SPILL_THRESHOLD,
+                "marc21-", ".xml", null);
+        try {
+            OutputStream outputStream = new BufferedOutputStream(xml, BUFFER_SIZE);
+            // marc4j serializes through a JAXP TransformerHandler, no JDK internals needed.
+            // Records arrive already converted to Unicode, so no converter is set here.
+            final MarcXmlWriter writer = new MarcXmlWriter(outputStream, UTF_8, prettyPrint);
+            parse(header, readChannel, new ParallelConverter.Sink() {
+                @Override
+                public void accept(final Object result) {
+                    writer.write((Record) result);
+                }
+            });
             writer.close();
-            
-            transformedData.append(baos.toString());
-            //IOUtils.write(transformedData, outputStream, UTF_8);
-        }catch (Exception e) {
+            IOUtils.closeQuietly(outputStream);
+        } catch (Exception e) {
             log.debug("" + e.getMessage() + " " + e.getStackTrace());
+            IOUtils.closeQuietly(xml);
+            delete(xml);
             //Stop's snap execution
             //throw new ExecutionException(e, "Failed to parse MARC21 message data").withReason(Throwables.getRootCause(e).getMessage()).withResolutionAsDefect();
             SnapDataException snapDataException = new SnapDataException(
                     e,
-                    "Error/Exception parsing MARC21 file"
+                    PARSE_ERROR
             ).withReason(Throwables.getRootCause(e).getMessage()).withResolutionAsDefect();
 
             errorViews.write(snapDataException);
             return;
-
         }
-
+        if (!xml.isInMemory()) {
+            spilled.add(xml.getFile());
+        }
 
         outputViews.write(new BinaryOutput() {
             @Override
@@ -120,27 +148,249 @@ public class Marc21toXMLParser extends SimpleBinaryWriteSnap {
             public void write(WritableByteChannel writeChannel) throws IOException {
                 OutputStream outputStream = Channels.newOutputStream(writeChannel);
                 try {
-                    IOUtils.write(transformedData.toString(), outputStream, UTF_8);
+                    if (xml.isInMemory()) {
+                        outputStream.write(xml.getData());
+                    } else {
+                        FileUtils.copyFile(xml.getFile(), outputStream);
+                    }
                 } finally {
                     IOUtils.closeQuietly(outputStream);
+                    delete(xml);
                 }
             }
 
         });
     }
 
+    private void delete(final DeferredFileOutputStream xml) {
+        if (!xml.isInMemory()) {
+            spilled.remove(xml.getFile());
+            FileUtils.deleteQuietly(xml.getFile());
+        }
+    }
+
+    /**
+     * Writes one document per record as soon as the record has been read, so downstream snaps
+     * can start working before the whole file is parsed.
+     */
+    private void writeDocuments(final com.snaplogic.snap.api.Document header,
+            final ReadableByteChannel readChannel) {
+        try {
+            parse(header, readChannel, new ParallelConverter.Sink() {
+                @Override
+                public void accept(final Object result) {
+                    outputViews.write(documentUtility.newDocumentFor(header, result));
+                }
+            });
+        } catch (Exception e) {
+            log.debug("Failed to parse MARC21 records", e);
+            SnapDataException snapDataException = new SnapDataException(e, PARSE_ERROR)
+                    .withReason(Throwables.getRootCause(e).getMessage())
+                    .withResolutionAsDefect();
+            errorViews.write(snapDataException);
+        }
+    }
+
+    /**
+     * Finds the record boundaries on this thread and decodes the records inline, or on the
+     * worker pool when one is configured. Results are handed to the sink on this thread in
+     * input order, after the record filter. A record that cannot be delimited or decoded goes
+     * to the error view with its bytes and offset, and parsing resumes with the next record.
+     */
+    private void parse(final com.snaplogic.snap.api.Document header,
+            final ReadableByteChannel readChannel, final ParallelConverter.Sink sink)
+            throws Exception {
+        ParallelConverter.Sink recordSink = new ParallelConverter.Sink() {
+            @Override
+            public void accept(final Object result) throws Exception {
+                if (result instanceof DamagedRecord) {
+                    writeError(header, (DamagedRecord) result);
+                } else if (accepts(result)) {
+                    sink.accept(result);
+                }
+            }
+        };
+        try (InputStream inputStream = new BufferedInputStream(
+                Channels.newInputStream(readChannel), BUFFER_SIZE)) {
+            MarcRecordScanner scanner = new MarcRecordScanner(inputStream);
+            while (true) {
+                Callable<Object> task;
+                try {
+                    byte[] bytes = scanner.next();
+                    if (bytes == null) {
+                        break;
+                    }
+                    task = newTask(scanner.getOffset(), bytes);
+                } catch (MarcRecordScanner.DamagedRecordException e) {
+                    // routed through the converter so it is reported in input order
+                    task = Callables.<Object>returning(
+                            new DamagedRecord(e.getOffset(), e.getBytes(), e));
+                }
+                if (converter == null) {
+                    recordSink.accept(task.call());
+                } else {
+                    converter.submit(task, recordSink);
+                }
+            }
+            if (converter != null) {
+                converter.drain(recordSink);
+            }
+        } finally {
+            if (converter != null) {
+                // no-op after a successful drain, discards queued work after a failure
+                converter.cancel();
+            }
+        }
+    }
+
+    /**
+     * Evaluates the record filter, if any, against the document form of the record.
+     */
+    private boolean accepts(final Object result) {
+        if (recordFilter == null) {
+            return true;
+        }
+        Object document = documentOutput ? result : MarcJsonMapper.toDocument((Record) result);
+        return Boolean.TRUE.equals(recordFilter.eval(documentUtility.newDocument(document)));
+    }
+
+    private Callable<Object> newTask(final long offset, final byte[] bytes) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() {
+                try {
+                    Record record = MarcRecordDecoder.decode(bytes, selector);
+                    return documentOutput ? MarcJsonMapper.toDocument(record) : record;
+                } catch (Exception e) {
+                    return new DamagedRecord(offset, bytes, e);
+                }
+            }
+        };
+    }
+
+    private void writeError(final com.snaplogic.snap.api.Document header,
+            final DamagedRecord damaged) {
+        log.debug("Skipping damaged MARC21 record at offset {}", damaged.offset, damaged.cause);
+        Map<String, Object> data = new LinkedHashMap<>(4);
+        data.put(OFFSET_FIELD, damaged.offset);
+        data.put(LENGTH_FIELD, damaged.bytes.length);
+        // one char per byte, so the raw record survives the trip through the error view
+        data.put(RECORD_FIELD, new String(damaged.bytes, ISO_8859_1));
+        SnapDataException snapDataException = new SnapDataException(
+                damaged.cause,
+                "Error/Exception parsing MARC21 record at offset " + damaged.offset
+        ).withReason(Throwables.getRootCause(damaged.cause).getMessage())
+                .withResolution("Please check the record in the source file, the remaining "
+                        + "records have been parsed");
+        errorViews.write(snapDataException, documentUtility.newDocumentFor(header, data));
+    }
+
+    /**
+     * The raw bytes of a record that could not be parsed, and why.
+     */
+    private static final class DamagedRecord {
+        private final long offset;
+        private final byte[] bytes;
+        private final Exception cause;
+
+        private DamagedRecord(final long offset, final byte[] bytes, final Exception cause) {
+            this.offset = offset;
+            this.bytes = bytes;
+            this.cause = cause;
+        }
+    }
+
     @Override
     public void defineProperties(PropertyBuilder propertyBuilder) {
+        propertyBuilder.describe(OUTPUT_FORMAT_PROP, OUTPUT_FORMAT_PROP,
+                "XML writes MARCXML to a binary output view, Document per record writes each "
+                        + "record as a MARC-in-JSON document to a document output view")
+                .type(SnapType.STRING)
+                .withAllowedValues(new HashSet<String>(Arrays.asList(OUTPUT_XML,
+                        OUTPUT_DOCUMENTS)))
+                .defaultValue(OUTPUT_XML)
+                .add();
+
+        propertyBuilder.describe(PRETTY_PRINT_PROP, PRETTY_PRINT_PROP,
+                "Indent the XML output, this noticeably increases the output size")
+                .type(SnapType.BOOLEAN)
+                .defaultValue(false)
+                .add();
 
+        propertyBuilder.describe(WORKER_THREADS_PROP, WORKER_THREADS_PROP,
+                "Number of threads decoding and converting records, 1 converts on the reader "
+                        + "thread. The output keeps the order of the input")
+                .type(SnapType.INTEGER)
+                .withMinValue(1)
+                .defaultValue(1)
+                .add();
+
+        final SnapProperty field = propertyBuilder
+                .describe(FIELD_PROP, FIELD_PROP,
+                        "Tag to keep, optionally followed by the subfields to keep, e.g. 001, "
+                                + "245$ac or 6XX$a")
+                .type(SnapType.STRING)
+                .withMinLength(1)
+                .build();
+        propertyBuilder.describe(FIELDS_PROP, FIELDS_PROP,
+                "Fields to keep, all other fields are dropped before conversion. Leave empty "
+                        + "to keep whole records")
+                .type(SnapType.TABLE)
+                .withEntry(field)
+                .add();
+
+        propertyBuilder.describe(RECORD_FILTER_PROP, RECORD_FILTER_PROP,
+                "Expression evaluated against each record in document form, after the field "
+                        + "selection; records for which it is not true are skipped, e.g. "
+                        + "$leader.charAt(6) == 'a'")
+                .type(SnapType.STRING)
+                .expression(SnapProperty.DecoratorType.ENABLED_EXPRESSION)
+                .add();
     }
 
     @Override
     public void configure(PropertyValues propertyValues) throws ConfigurationException {
+        prettyPrint = Boolean.TRUE.equals(propertyValues.get(PRETTY_PRINT_PROP));
+        documentOutput = OUTPUT_DOCUMENTS.equals(propertyValues.get(OUTPUT_FORMAT_PROP));
 
+        List<String> selections = new ArrayList<>();
+        List<Map<String, Object>> fields = propertyValues.getAsExpression(FIELDS_PROP).eval(null);
+        if (fields != null) {
+            for (Map<String, Object> aRow : fields) {
+                String selection = propertyValues.getExpressionPropertyFor(aRow, FIELD_PROP).eval(null);
+                if (selection != null && !selection.trim().isEmpty()) {
+                    selections.add(selection);
+                }
+            }
+        }
+        try {
+            selector = MarcFieldSelector.of(selections);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e, "Invalid MARC21 field selection")
+                    .withReason(e.getMessage())
+                    .withResolution("Use a three character tag, optionally followed by $ and "
+                            + "the subfield codes, e.g. 245$ac");
+        }
+        String filter = propertyValues.get(RECORD_FILTER_PROP);
+        recordFilter = filter == null || filter.trim().isEmpty()
+                ? null : propertyValues.getAsExpression(RECORD_FILTER_PROP);
+
+        Number workerThreads = propertyValues.get(WORKER_THREADS_PROP);
+        if (workerThreads != null && workerThreads.intValue() > 1) {
+            converter = new ParallelConverter("marc21-parser", workerThreads.intValue(),
+                    workerThreads.intValue() * IN_FLIGHT_PER_WORKER, true);
+        }
     }
 
     @Override
     public void cleanup() throws ExecutionException {
-
+        if (converter != null) {
+            converter.shutdown();
+        }
+        // output that was never written
+        for (File file : spilled) {
+            FileUtils.deleteQuietly(file);
+        }
+        spilled.clear();
     }
 }
\ No newline at end of file
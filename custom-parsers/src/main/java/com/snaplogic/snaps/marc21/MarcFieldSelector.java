@@ -0,0 +1,137 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2017, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+
+package com.snaplogic.snaps.marc21;
+
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+import org.marc4j.marc.VariableField;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tag and subfield projection applied to decoded records before they are converted and
+ * serialized.
+ *
+ * <p>Selections have the form {@code tag} or {@code tag$codes}, e.g. {@code 001}, {@code 245$ac}
+ * or {@code 6XX$a}. An {@code X} in the tag matches any digit. Without subfield codes the whole
+ * field is kept, otherwise only the listed subfields; a data field left without subfields is
+ * dropped. When a tag is selected more than once the subfield codes are combined. The
+ * {@code $} is required, so {@code 0010} is rejected rather than read as subfield 0 of
+ * {@code 001}, and control fields ({@code 00X}) take no subfield codes.</p>
+ */
+final class MarcFieldSelector {
+
+    private static final Pattern SELECTION_PATTERN = Pattern.compile(
+            "([0-9Xx]{3})(?:\\$([a-z0-9$]+))?");
+
+    private final List<Selection> selections;
+
+    private MarcFieldSelector(final List<Selection> selections) {
+        this.selections = selections;
+    }
+
+    /**
+     * @param selections the fields to keep, may be empty to keep whole records
+     * @return the selector
+     * @throws IllegalArgumentException if a selection is not valid
+     */
+    static MarcFieldSelector of(final List<String> selections) {
+        List<Selection> parsed = new ArrayList<>(selections.size());
+        for (String selection : selections) {
+            parsed.add(new Selection(selection.trim()));
+        }
+        return new MarcFieldSelector(parsed);
+    }
+
+    boolean hasProjection() {
+        return !selections.isEmpty();
+    }
+
+    /**
+     * Removes the fields and subfields that are not selected from the record.
+     */
+    void project(final Record record) {
+        if (!hasProjection()) {
+            return;
+        }
+        // copy, the record's field list is modified while iterating
+        for (VariableField field : new ArrayList<>(record.getVariableFields())) {
+            String codes = codesFor(field.getTag());
+            if (codes == null) {
+                record.removeVariableField(field);
+            } else if (!codes.isEmpty() && field instanceof DataField) {
+                DataField dataField = (DataField) field;
+                for (Subfield subfield : new ArrayList<>(dataField.getSubfields())) {
+                    if (codes.indexOf(subfield.getCode()) < 0) {
+                        dataField.removeSubfield(subfield);
+                    }
+                }
+                if (dataField.getSubfields().isEmpty()) {
+                    record.removeVariableField(field);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return null if the tag is not selected, an empty string if all its subfields are, or the
+     * selected subfield codes
+     */
+    private String codesFor(final String tag) {
+        String codes = null;
+        for (Selection selection : selections) {
+            if (!selection.matches(tag)) {
+                continue;
+            }
+            if (selection.codes.isEmpty()) {
+                return "";
+            }
+            codes = codes == null ? selection.codes : codes + selection.codes;
+        }
+        return codes;
+    }
+
+    private static final class Selection {
+        private final String tag;
+        private final String codes;
+
+        private Selection(final String selection) {
+            Matcher matcher = SELECTION_PATTERN.matcher(selection);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid MARC field selection: " + selection);
+            }
+            this.tag = matcher.group(1).toUpperCase();
+            this.codes = matcher.group(2) == null ? "" : matcher.group(2).replace("$", "");
+            if (!codes.isEmpty() && tag.startsWith("00")) {
+                throw new IllegalArgumentException("Control field " + tag
+                        + " has no subfields: " + selection);
+            }
+        }
+
+        private boolean matches(final String fieldTag) {
+            if (fieldTag == null || fieldTag.length() != tag.length()) {
+                return false;
+            }
+            for (int i = 0; i < tag.length(); i++) {
+                char c = tag.charAt(i);
+                if (c != 'X' && c != fieldTag.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2017, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+
+package com.snaplogic.snaps.marc21;
+
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+import org.marc4j.marc.VariableField;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps a MARC record to a document following the MARC-in-JSON layout:
+ *
+ * <pre>
+ * {"leader": "...",
+ *  "fields": [{"001": "control field data"},
+ *             {"245": {"ind1": "1", "ind2": "0", "subfields": [{"a": "Title"}]}}]}
+ * </pre>
+ *
+ * <p>Fields are kept in record order. Field data is expected to be Unicode already, see
+ * {@link MarcRecordDecoder}.</p>
+ */
+final class MarcJsonMapper {
+
+    static final String LEADER = "leader";
+    static final String FIELDS = "fields";
+    static final String IND1 = "ind1";
+    static final String IND2 = "ind2";
+    static final String SUBFIELDS = "subfields";
+
+    private MarcJsonMapper() {
+    }
+
+    /**
+     * @param record the record to map
+     * @return the record document
+     */
+    static Map<String, Object> toDocument(final Record record) {
+        List<VariableField> variableFields = record.getVariableFields();
+        List<Object> fields = new ArrayList<>(variableFields.size());
+        for (VariableField field : variableFields) {
+            if (field instanceof ControlField) {
+                fields.add(Collections.singletonMap(field.getTag(),
+                        ((ControlField) field).getData()));
+            } else if (field instanceof DataField) {
+                fields.add(Collections.singletonMap(field.getTag(),
+                        toDocument((DataField) field)));
+            }
+        }
+        Map<String, Object> document = new LinkedHashMap<>(4);
+        document.put(LEADER, record.getLeader().marshal());
+        document.put(FIELDS, fields);
+        return document;
+    }
+
+    private static Map<String, Object> toDocument(final DataField field) {
+        List<Subfield> subfields = field.getSubfields();
+        List<Object> values = new ArrayList<>(subfields.size());
+        for (Subfield subfield : subfields) {
+            values.add(Collections.singletonMap(String.valueOf(subfield.getCode()),
+                    subfield.getData()));
+        }
+        Map<String, Object> document = new LinkedHashMap<>(4);
+        document.put(IND1, String.valueOf(field.getIndicator1()));
+        document.put(IND2, String.valueOf(field.getIndicator2()));
+        document.put(SUBFIELDS, values);
+        return document;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2017, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+
+package com.snaplogic.snaps.marc21;
+
+import org.marc4j.MarcException;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.converter.CharConverter;
+import org.marc4j.converter.impl.AnselToUnicode;
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Decodes the bytes of a single record, as returned by {@link MarcRecordScanner}, drops the
+ * fields that are not selected and converts the remaining data to Unicode.
+ *
+ * <p>Safe to call from several threads.</p>
+ */
+final class MarcRecordDecoder {
+
+    /**
+     * Leader position 9 value of records that are already encoded in UCS/Unicode.
+     */
+    static final char UNICODE_CODING_SCHEME = 'a';
+
+    private MarcRecordDecoder() {
+    }
+
+    /**
+     * @param bytes    the raw record, leader included
+     * @param selector the fields to keep
+     * @return the record with all control field and subfield data in Unicode
+     */
+    static Record decode(final byte[] bytes, final MarcFieldSelector selector) {
+        MarcReader reader = new MarcStreamReader(new ByteArrayInputStream(bytes));
+        if (!reader.hasNext()) {
+            throw new MarcException("Empty record");
+        }
+        Record record = reader.next();
+        // project first so unwanted fields are never converted
+        selector.project(record);
+        // the reader already decoded UTF-8 records, only MARC-8 data needs converting
+        if (record.getLeader().getCharCodingScheme() != UNICODE_CODING_SCHEME) {
+            toUnicode(record, AnselHolder.CONVERTER);
+        }
+        return record;
+    }
+
+    private static void toUnicode(final Record record, final CharConverter converter) {
+        for (ControlField field : record.getControlFields()) {
+            field.setData(converter.convert(field.getData()));
+        }
+        for (DataField field : record.getDataFields()) {
+            for (Subfield subfield : field.getSubfields()) {
+                subfield.setData(converter.convert(subfield.getData()));
+            }
+        }
+    }
+
+    /**
+     * Loads the ANSEL tables once per class loader, on first use. The multibyte (EACC) table is
+     * loaded up front, which leaves the converter without mutable state so every thread and
+     * snap instance can share it.
+     */
+    private static final class AnselHolder {
+        static final CharConverter CONVERTER = new AnselToUnicode(true);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2017, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+
+package com.snaplogic.snaps.marc21;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+
+/**
+ * Splits an ISO 2709 stream into the raw bytes of each record.
+ *
+ * <p>The first five bytes of every leader hold the record length, so finding a record boundary
+ * only costs a read; nothing is decoded here. Decoding and character conversion can then run
+ * on other threads.</p>
+ *
+ * <p>A record whose length is not numeric or whose last byte is not the record terminator is
+ * reported as a {@link DamagedRecordException} carrying the bytes up to the next record
+ * terminator. The scanner is positioned after that terminator, so the caller can report the
+ * damaged record and carry on with the next one.</p>
+ */
+final class MarcRecordScanner {
+
+    static final int LENGTH_DIGITS = 5;
+    static final int LEADER_LENGTH = 24;
+    static final int MAX_RECORD_LENGTH = 99999;
+    static final byte RECORD_TERMINATOR = 0x1d;
+
+    private final PushbackInputStream inputStream;
+    private long position;
+    private long offset;
+
+    /**
+     * @param inputStream the stream to scan, should be buffered
+     */
+    MarcRecordScanner(final InputStream inputStream) {
+        // enough room to push back the unused part of a record read with a bad length
+        this.inputStream = new PushbackInputStream(inputStream, MAX_RECORD_LENGTH);
+    }
+
+    /**
+     * @return the bytes of the next record, leader included, or null at the end of the stream
+     * @throws DamagedRecordException if the record does not have a valid length or terminator
+     * @throws IOException            if the stream cannot be read
+     */
+    byte[] next() throws IOException {
+        skipLineBreaks();
+        offset = position;
+        byte[] lengthBytes = new byte[LENGTH_DIGITS];
+        int read = readFully(lengthBytes, 0);
+        if (read == 0) {
+            return null;
+        }
+        int length = read < LENGTH_DIGITS ? -1 : parseLength(lengthBytes);
+        if (length < LEADER_LENGTH) {
+            throw resync(Arrays.copyOf(lengthBytes, read), "Invalid record length");
+        }
+        byte[] record = new byte[length];
+        System.arraycopy(lengthBytes, 0, record, 0, LENGTH_DIGITS);
+        read = LENGTH_DIGITS + readFully(record, LENGTH_DIGITS);
+        if (read < length) {
+            throw resync(Arrays.copyOf(record, read), "Truncated record");
+        }
+        if (record[length - 1] != RECORD_TERMINATOR) {
+            throw resync(record, "Record length does not end at a record terminator");
+        }
+        return record;
+    }
+
+    /**
+     * @return the stream offset of the record last returned or reported by {@link #next()}
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Cuts the bytes read so far at the first record terminator, pushing back whatever follows
+     * it, or keeps reading until a terminator or the end of the stream when there is none.
+     */
+    private DamagedRecordException resync(final byte[] bytes, final String reason)
+            throws IOException {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == RECORD_TERMINATOR) {
+                int used = i + 1;
+                inputStream.unread(bytes, used, bytes.length - used);
+                position -= bytes.length - used;
+                return new DamagedRecordException(reason, offset, Arrays.copyOf(bytes, used));
+            }
+        }
+        ByteArrayOutputStream damaged = new ByteArrayOutputStream(bytes.length * 2);
+        damaged.write(bytes, 0, bytes.length);
+        int b;
+        while ((b = inputStream.read()) >= 0) {
+            position++;
+            damaged.write(b);
+            if (b == RECORD_TERMINATOR) {
+                break;
+            }
+        }
+        return new DamagedRecordException(reason, offset, damaged.toByteArray());
+    }
+
+    private void skipLineBreaks() throws IOException {
+        int b;
+        while ((b = inputStream.read()) == '\n' || b == '\r') {
+            position++;
+        }
+        if (b >= 0) {
+            inputStream.unread(b);
+        }
+    }
+
+    private int readFully(final byte[] buffer, final int from) throws IOException {
+        int total = 0;
+        while (from + total < buffer.length) {
+            int count = inputStream.read(buffer, from + total, buffer.length - from - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        position += total;
+        return total;
+    }
+
+    private static int parseLength(final byte[] digits) {
+        int length = 0;
+        for (byte digit : digits) {
+            if (digit < '0' || digit > '9') {
+                return -1;
+            }
+            length = length * 10 + (digit - '0');
+        }
+        return length;
+    }
+
+    /**
+     * A record that could not be delimited by its length. The scanner has already skipped it.
+     */
+    static final class DamagedRecordException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long offset;
+        private final byte[] bytes;
+
+        DamagedRecordException(final String reason, final long offset, final byte[] bytes) {
+            super(reason + " at offset " + offset);
+            this.offset = offset;
+            this.bytes = bytes;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        byte[] getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.snaplogic.snaps.common;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.common.ParallelConverter} emits results in submission
+ * order when asked to, keeps at most its window of tasks in flight and discards outstanding
+ * tasks after a failure.
+ */
+public class ParallelConverterTest {
+
+    private static final int TASKS = 4;
+
+    private ParallelConverter converter;
+    private final List<Object> emitted = new ArrayList<>();
+    private final ParallelConverter.Sink sink = new ParallelConverter.Sink() {
+        @Override
+        public void accept(final Object result) {
+            emitted.add(result);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        if (converter != null) {
+            converter.shutdown();
+        }
+    }
+
+    @Test
+    public void testEmitsInSubmissionOrder() throws Exception {
+        converter = new ParallelConverter("test", TASKS, TASKS, true);
+        submitCompletingInReverse();
+        converter.drain(sink);
+        assertEquals(Arrays.<Object>asList(0, 1, 2, 3), emitted);
+    }
+
+    @Test
+    public void testEmitsInCompletionOrderWhenUnordered() throws Exception {
+        converter = new ParallelConverter("test", TASKS, TASKS, false);
+        submitCompletingInReverse();
+        converter.drain(sink);
+        assertEquals(Arrays.<Object>asList(3, 2, 1, 0), emitted);
+    }
+
+    @Test
+    public void testBoundsTasksInFlight() throws Exception {
+        int threads = 2;
+        int window = threads * 4;
+        converter = new ParallelConverter("test", threads, window, true);
+        int maxInFlight = 0;
+        for (int i = 0; i < 5 * window; i++) {
+            converter.submit(sleeping(i, 5), sink);
+            maxInFlight = Math.max(maxInFlight, i + 1 - emitted.size());
+        }
+        assertEquals(window, maxInFlight);
+        converter.drain(sink);
+        assertEquals(5 * window, emitted.size());
+        for (int i = 0; i < emitted.size(); i++) {
+            assertEquals(i, emitted.get(i));
+        }
+    }
+
+    @Test
+    public void testWindowCoversAllThreads() throws Exception {
+        converter = new ParallelConverter("test", TASKS, 1, true);
+        for (int i = 0; i < TASKS; i++) {
+            converter.submit(sleeping(i, 50), sink);
+        }
+        // none had to be emitted to make room
+        assertTrue(emitted.isEmpty());
+    }
+
+    @Test
+    public void testRethrowsFailureAndCancelsOutstandingTasks() throws Exception {
+        converter = new ParallelConverter("test", 2, 2, true);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        converter.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                throw new IOException("Malformed input");
+            }
+        }, sink);
+        converter.submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+                started.countDown();
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return null;
+            }
+        }, sink);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        try {
+            converter.drain(sink);
+            fail("failure was not rethrown");
+        } catch (IOException e) {
+            assertEquals("Malformed input", e.getMessage());
+        }
+        converter.shutdown();
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(emitted.isEmpty());
+    }
+
+    /**
+     * Submits tasks of which each one completes only after the next one did.
+     */
+    private void submitCompletingInReverse() throws Exception {
+        final CountDownLatch[] completed = new CountDownLatch[TASKS + 1];
+        for (int i = 0; i <= TASKS; i++) {
+            completed[i] = new CountDownLatch(1);
+        }
+        completed[TASKS].countDown();
+        for (int i = 0; i < TASKS; i++) {
+            final int task = i;
+            converter.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    assertTrue(completed[task + 1].await(5, TimeUnit.SECONDS));
+                    // let the result of the next task be handed out first
+                    Thread.sleep(50);
+                    completed[task].countDown();
+                    return task;
+                }
+            }, sink);
+        }
+    }
+
+    private static Callable<Object> sleeping(final int result, final long millis) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                Thread.sleep(millis);
+                return result;
+            }
+        };
+    }
+}
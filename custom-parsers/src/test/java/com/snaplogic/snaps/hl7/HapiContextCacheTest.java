@@ -0,0 +1,35 @@
+package com.snaplogic.snaps.hl7;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.hl7.HapiContextCache} shares one entry per set of parser
+ * settings.
+ */
+public class HapiContextCacheTest {
+
+    @Test
+    public void testSharesEntryOfEqualSettings() {
+        HapiContextCache.Entry entry = HapiContextCache.get(true, false);
+        assertSame(entry, HapiContextCache.get(true, false));
+        assertSame(entry.getXmlParser(), HapiContextCache.get(true, false).getXmlParser());
+    }
+
+    @Test
+    public void testSeparatesEntriesOfDifferentSettings() {
+        HapiContextCache.Entry validating = HapiContextCache.get(true, false);
+        HapiContextCache.Entry lenient = HapiContextCache.get(false, false);
+        HapiContextCache.Entry unknownVersions = HapiContextCache.get(true, true);
+        assertNotSame(validating, lenient);
+        assertNotSame(validating, unknownVersions);
+        assertNotSame(lenient, HapiContextCache.get(false, true));
+        assertFalse(validating.getContext().getParserConfiguration().isAllowUnknownVersions());
+        assertTrue(unknownVersions.getContext().getParserConfiguration()
+                .isAllowUnknownVersions());
+    }
+}
@@ -0,0 +1,105 @@
+package com.snaplogic.snaps.hl7;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.hl7.Hl7FieldSelector} selects fields by Terser style
+ * paths and filters messages on MSH-9.
+ */
+public class Hl7FieldSelectorTest {
+
+    private static final String MSH =
+            "MSH|^~\\&|APP|FAC|RCV|RFAC|201701011200||ADT^A01^ADT_A01|42|P|2.5";
+    private static final List<String> SEGMENTS = Hl7FieldSelector.segments(MSH + "\r"
+            + "PID|||123^^^MRN~456^^^SSN||DOE\\S\\SMITH^JANE||19700101|F\r\n"
+            + "OBX|1|NM|GLU||98\r"
+            + "OBX|2|ST|NOTE||high&low\r"
+            + "OBX|3|NM|K||\r");
+
+    @Test
+    public void testSelectsComponentsOfFirstRepetition() {
+        Map<String, Object> document = project("PID-3-1", "PID-3(1)-1", "PID-3(*)-4");
+        assertEquals("123", document.get("PID-3-1"));
+        assertEquals("456", document.get("PID-3(1)-1"));
+        assertEquals(Arrays.asList("MRN", "SSN"), document.get("PID-3(*)-4"));
+    }
+
+    @Test
+    public void testSelectsEverySegmentRepetition() {
+        Map<String, Object> document = project("OBX(*)-5", "OBX(1)-5-1-2", "OBX(2)-5");
+        // the empty OBX-5 of the third segment is left out
+        assertEquals(Arrays.asList("98", "high&low"), document.get("OBX(*)-5"));
+        assertEquals("low", document.get("OBX(1)-5-1-2"));
+        assertNull(document.get("OBX(2)-5"));
+    }
+
+    @Test
+    public void testOffsetsMshFieldsByTheSeparator() {
+        Map<String, Object> document = project("MSH-1", "MSH-2", "MSH-9-2", "MSH-10");
+        assertEquals("|", document.get("MSH-1"));
+        assertEquals("^~\\&", document.get("MSH-2"));
+        assertEquals("A01", document.get("MSH-9-2"));
+        assertEquals("42", document.get("MSH-10"));
+    }
+
+    @Test
+    public void testUnescapesValues() {
+        assertEquals("DOE^SMITH", project("PID-5-1").get("PID-5-1"));
+    }
+
+    @Test
+    public void testMissingFieldsAreNull() {
+        Map<String, Object> document = project("PID-30", "PID-5-9", "ZZZ-1", "ZZZ(*)-1");
+        assertNull(document.get("PID-30"));
+        assertNull(document.get("PID-5-9"));
+        assertNull(document.get("ZZZ-1"));
+        assertEquals(Collections.emptyList(), document.get("ZZZ(*)-1"));
+    }
+
+    @Test
+    public void testRejectsInvalidPaths() {
+        for (String path : Arrays.asList("PID", "PID-0", "pid-3", "PID-3-0-1", "PID-3(x)")) {
+            try {
+                Hl7FieldSelector.of(Collections.singletonList(path), null);
+                fail("accepted " + path);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesMessageCodeAndTriggerEvent() {
+        assertTrue(accepts(null));
+        assertTrue(accepts(" "));
+        assertTrue(accepts("ADT"));
+        assertTrue(accepts("ADT^A01"));
+        assertTrue(accepts("ORU, ADT^A01"));
+        assertFalse(accepts("ADT^A04"));
+        assertFalse(accepts("ORU"));
+        assertFalse(accepts("ADT^A01^ADT_A01^X"));
+        assertFalse(Hl7FieldSelector.of(Collections.<String>emptyList(), "ADT")
+                .accepts("MSH|^~\\&|APP"));
+    }
+
+    private static Map<String, Object> project(final String... paths) {
+        Hl7FieldSelector selector = Hl7FieldSelector.of(Arrays.asList(paths), null);
+        assertTrue(selector.hasProjection());
+        return selector.project(SEGMENTS);
+    }
+
+    private static boolean accepts(final String messageTypes) {
+        return Hl7FieldSelector.of(Collections.<String>emptyList(), messageTypes).accepts(MSH);
+    }
+}
@@ -0,0 +1,229 @@
+package com.snaplogic.snaps.hl7;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link com.snaplogic.snaps.hl7.MllpServer} against a plain socket client acting as the
+ * sending system.
+ */
+public class MllpServerTest {
+
+    private static final String ADT = "MSH|^~\\&|SENDER|FAC|RECEIVER|RFAC|201701011200||ADT^A01|MSG0001|P|2.5\r"
+            + "PID|||123^^^MRN||DOE^JANE\r";
+    private static final String ORU = "MSH|^~\\&|LAB|FAC|RECEIVER|RFAC|201701011201||ORU^R01|MSG0002|P|2.5\r"
+            + "OBX|1|NM|GLU||98\r";
+
+    private MllpServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testAcknowledgesAfterProcessing() throws Exception {
+        server = new MllpServer("127.0.0.1", 0, 16, false);
+        server.start();
+        try (Socket client = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort())) {
+            OutputStream out = client.getOutputStream();
+            // both frames in one write, the second split across two writes
+            byte[] second = frame(ORU);
+            out.write(concat(frame(ADT), slice(second, 0, 10)));
+            out.flush();
+            out.write(slice(second, 10, second.length));
+            out.flush();
+
+            MllpServer.Received first = server.poll(5, TimeUnit.SECONDS);
+            assertNotNull(first);
+            assertEquals(ADT, first.getMessage());
+            MllpServer.Received next = server.poll(5, TimeUnit.SECONDS);
+            assertNotNull(next);
+            assertEquals(ORU, next.getMessage());
+
+            first.acknowledge(MllpServer.ACK_ACCEPT);
+            next.acknowledge(MllpServer.ACK_ERROR);
+
+            InputStream in = client.getInputStream();
+            String ack = readFrame(in);
+            assertTrue(ack, ack.startsWith("MSH|^~\\&|RECEIVER|RFAC|SENDER|FAC|"));
+            assertTrue(ack, ack.contains("|ACK^A01^ACK|"));
+            assertTrue(ack, ack.endsWith("MSA|AA|MSG0001\r"));
+            assertTrue(readFrame(in).endsWith("MSA|AE|MSG0002\r"));
+        }
+    }
+
+    @Test
+    public void testAcknowledgesOnReceipt() throws Exception {
+        server = new MllpServer("127.0.0.1", 0, 16, true);
+        server.start();
+        try (Socket client = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort())) {
+            client.getOutputStream().write(frame(ADT));
+            client.getOutputStream().flush();
+            assertTrue(readFrame(client.getInputStream()).endsWith("MSA|AA|MSG0001\r"));
+            assertNotNull(server.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testHoldsBackMessagesWhileQueueIsFull() throws Exception {
+        server = new MllpServer("127.0.0.1", 0, 1, true);
+        server.start();
+        try (Socket client = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort())) {
+            client.getOutputStream().write(concat(frame(ADT), frame(ORU)));
+            client.getOutputStream().flush();
+            InputStream in = client.getInputStream();
+            // only the queued message is acknowledged on receipt
+            assertTrue(readFrame(in).endsWith("MSA|AA|MSG0001\r"));
+            client.setSoTimeout(300);
+            try {
+                readFrame(in);
+                fail("held back message was acknowledged");
+            } catch (SocketTimeoutException e) {
+                // expected
+            }
+            client.setSoTimeout(5000);
+
+            assertEquals(ADT, server.poll(5, TimeUnit.SECONDS).getMessage());
+            assertTrue(readFrame(in).endsWith("MSA|AA|MSG0002\r"));
+            assertEquals(ORU, server.poll(5, TimeUnit.SECONDS).getMessage());
+        }
+    }
+
+    @Test
+    public void testServesOtherConnectionsWhileQueueIsFull() throws Exception {
+        server = new MllpServer("127.0.0.1", 0, 1, false);
+        server.start();
+        try (Socket first = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort());
+             Socket second = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort())) {
+            first.getOutputStream().write(concat(frame(ADT), frame(ADT)));
+            first.getOutputStream().flush();
+            MllpServer.Received received = server.poll(5, TimeUnit.SECONDS);
+            assertEquals(ADT, received.getMessage());
+
+            second.getOutputStream().write(frame(ORU));
+            second.getOutputStream().flush();
+            // the queue holds the second ADT, the ORU waits, acknowledgements still go out
+            received.acknowledge(MllpServer.ACK_ACCEPT);
+            assertTrue(readFrame(first.getInputStream()).endsWith("MSA|AA|MSG0001\r"));
+            assertEquals(ADT, server.poll(5, TimeUnit.SECONDS).getMessage());
+            MllpServer.Received oru = server.poll(5, TimeUnit.SECONDS);
+            assertNotNull(oru);
+            assertEquals(ORU, oru.getMessage());
+            oru.acknowledge(MllpServer.ACK_ACCEPT);
+            assertTrue(readFrame(second.getInputStream()).endsWith("MSA|AA|MSG0002\r"));
+        }
+    }
+
+    @Test
+    public void testStopReadingKeepsQueuedMessages() throws Exception {
+        server = new MllpServer("127.0.0.1", 0, 16, false);
+        server.start();
+        int port = server.getPort();
+        try (Socket client = new Socket(InetAddress.getByName("127.0.0.1"), port)) {
+            client.getOutputStream().write(concat(frame(ADT), frame(ORU)));
+            client.getOutputStream().flush();
+            assertEquals(ADT, server.poll(5, TimeUnit.SECONDS).getMessage());
+            // give the selector time to queue the second message
+            Thread.sleep(200);
+
+            List<MllpServer.Received> remaining = server.stopReading();
+            assertEquals(1, remaining.size());
+            assertEquals(ORU, remaining.get(0).getMessage());
+
+            // messages consumed after stopping are still acknowledged
+            remaining.get(0).acknowledge(MllpServer.ACK_ACCEPT);
+            assertTrue(readFrame(client.getInputStream()).endsWith("MSA|AA|MSG0002\r"));
+        }
+        try {
+            new Socket(InetAddress.getByName("127.0.0.1"), port).close();
+            fail("connection accepted after the listener stopped reading");
+        } catch (ConnectException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInterruptKeepsMessagesAcknowledgedOnReceipt() throws Exception {
+        server = new MllpServer("127.0.0.1", 0, 16, true);
+        server.start();
+        try (Socket client = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort())) {
+            client.getOutputStream().write(concat(frame(ADT), frame(ORU)));
+            client.getOutputStream().flush();
+            InputStream in = client.getInputStream();
+            // both are queued once they are acknowledged
+            assertTrue(readFrame(in).endsWith("MSA|AA|MSG0001\r"));
+            assertTrue(readFrame(in).endsWith("MSA|AA|MSG0002\r"));
+
+            // as when the pipeline stops the listener
+            Thread.currentThread().interrupt();
+            try {
+                server.poll(5, TimeUnit.SECONDS);
+                fail("poll ignored the interrupt");
+            } catch (InterruptedException e) {
+                // expected, the flag is cleared
+            }
+
+            List<MllpServer.Received> remaining = server.stopReading();
+            assertEquals(2, remaining.size());
+            assertEquals(ADT, remaining.get(0).getMessage());
+            assertEquals(ORU, remaining.get(1).getMessage());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    private static byte[] frame(final String message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x0b);
+        out.write(message.getBytes("UTF-8"));
+        out.write(0x1c);
+        out.write(0x0d);
+        return out.toByteArray();
+    }
+
+    private static String readFrame(final InputStream in) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != 0x0b) {
+            assertTrue("connection closed", b != -1);
+        }
+        while ((b = in.read()) != 0x1c) {
+            assertTrue("connection closed", b != -1);
+            frame.write(b);
+        }
+        assertEquals(0x0d, in.read());
+        return frame.toString("UTF-8");
+    }
+
+    private static byte[] concat(final byte[] a, final byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] slice(final byte[] bytes, final int from, final int to) {
+        byte[] result = new byte[to - from];
+        System.arraycopy(bytes, from, result, 0, result.length);
+        return result;
+    }
+}
@@ -0,0 +1,72 @@
+package com.snaplogic.snaps.hl7;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.hl7.RawHl7Reader} splits ER7 messages on the MSH
+ * separators.
+ */
+public class RawHl7ReaderTest {
+
+    @Test
+    public void testReadsEveryMessageOfBatchFile() throws Exception {
+        try (InputStream inputStream = getClass().getClassLoader()
+                .getResourceAsStream("data/hl7-multiple.txt")) {
+            RawHl7Reader reader = new RawHl7Reader(inputStream);
+            int count = 0;
+            while (reader.next() != null) {
+                count++;
+            }
+            assertEquals(2, count);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSplitsFieldsComponentsAndRepetitions() throws Exception {
+        String hl7 = "MSH|^~\\&|APP|FAC|||201701011200||ADT^A01|42|P|2.5\r"
+                + "PID|||123^^^MRN~456^^^SSN||DOE^JANE||19700101|F|||A\\S\\B\r";
+        RawHl7Reader reader = new RawHl7Reader(new ByteArrayInputStream(hl7.getBytes("UTF-8")));
+        Map<String, Object> message = reader.next();
+
+        List<Object> msh = ((List<List<Object>>) message.get("MSH")).get(0);
+        assertEquals("|", msh.get(1));
+        assertEquals("^~\\&", msh.get(2));
+        assertEquals("APP", msh.get(3));
+        assertEquals("A01", ((List<Object>) msh.get(9)).get(1));
+
+        List<Object> pid = ((List<List<Object>>) message.get("PID")).get(0);
+        List<Object> identifiers = (List<Object>) pid.get(3);
+        assertEquals(2, identifiers.size());
+        assertEquals("456", ((List<Object>) identifiers.get(1)).get(0));
+        assertEquals("A^B", pid.get(11));
+        assertNull(reader.next());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDefaultsEncodingCharactersMissingFromMsh2() throws Exception {
+        String hl7 = "MSH|^~\\|APP|FAC|||201701011200||ADT^A01|42|P|2.5\r"
+                + "PID|||123^MRN&LOCAL||DOE^JANE\r";
+        RawHl7Reader reader = new RawHl7Reader(new ByteArrayInputStream(hl7.getBytes("UTF-8")));
+        Map<String, Object> message = reader.next();
+
+        List<Object> msh = ((List<List<Object>>) message.get("MSH")).get(0);
+        assertEquals("^~\\", msh.get(2));
+        assertEquals("APP", msh.get(3));
+        List<Object> pid = ((List<List<Object>>) message.get("PID")).get(0);
+        List<Object> identifier = (List<Object>) pid.get(3);
+        assertEquals("123", identifier.get(0));
+        assertEquals(Arrays.asList("MRN", "LOCAL"), identifier.get(1));
+        assertEquals(Arrays.asList("DOE", "JANE"), pid.get(5));
+    }
+}
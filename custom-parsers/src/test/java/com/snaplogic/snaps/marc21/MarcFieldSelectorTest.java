@@ -0,0 +1,88 @@
+package com.snaplogic.snaps.marc21;
+
+import org.junit.Test;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.marc21.MarcFieldSelector} parses selections and keeps
+ * only the selected fields and subfields.
+ */
+public class MarcFieldSelectorTest {
+
+    private static final MarcFactory FACTORY = MarcFactory.newInstance();
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsCodesWithoutSeparator() {
+        MarcFieldSelector.of(Collections.singletonList("0010"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsDataFieldCodesWithoutSeparator() {
+        MarcFieldSelector.of(Collections.singletonList("245ab"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsSubfieldsOfControlField() {
+        MarcFieldSelector.of(Collections.singletonList("001$a"));
+    }
+
+    @Test
+    public void testEmptySelectionKeepsWholeRecord() {
+        MarcFieldSelector selector = MarcFieldSelector.of(Collections.<String>emptyList());
+        Record record = record();
+        selector.project(record);
+
+        assertFalse(selector.hasProjection());
+        assertEquals(4, record.getVariableFields().size());
+    }
+
+    @Test
+    public void testKeepsSelectedFieldsAndSubfields() {
+        MarcFieldSelector selector = MarcFieldSelector.of(Arrays.asList("001", " 245$a$c ",
+                "6xx$a"));
+        Record record = record();
+        selector.project(record);
+
+        assertTrue(selector.hasProjection());
+        assertEquals("ocm42", record.getControlNumber());
+        DataField title = (DataField) record.getVariableField("245");
+        assertEquals(2, title.getSubfields().size());
+        assertEquals("Title", title.getSubfield('a').getData());
+        assertNull(title.getSubfield('b'));
+        assertEquals("Author", title.getSubfield('c').getData());
+        // 650 has no subfield a left and is dropped, 100 is not selected
+        assertNull(record.getVariableField("650"));
+        assertNull(record.getVariableField("100"));
+    }
+
+    @Test
+    public void testCombinesCodesOfRepeatedTag() {
+        MarcFieldSelector selector = MarcFieldSelector.of(Arrays.asList("245$a", "245$b"));
+        Record record = record();
+        selector.project(record);
+
+        DataField title = (DataField) record.getVariableField("245");
+        assertEquals(2, title.getSubfields().size());
+        assertNull(title.getSubfield('c'));
+    }
+
+    private static Record record() {
+        Record record = FACTORY.newRecord("00000nam a2200000 a 4500");
+        record.addVariableField(FACTORY.newControlField("001", "ocm42"));
+        record.addVariableField(FACTORY.newDataField("100", '1', ' ', "a", "Author"));
+        record.addVariableField(FACTORY.newDataField("245", '1', '0', "a", "Title", "b",
+                "Subtitle", "c", "Author"));
+        record.addVariableField(FACTORY.newDataField("650", ' ', '0', "x", "History"));
+        return record;
+    }
+}
@@ -0,0 +1,53 @@
+package com.snaplogic.snaps.marc21;
+
+import org.junit.Test;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.marc21.MarcJsonMapper} maps a record to its document
+ * layout, keeping the field order.
+ */
+public class MarcJsonMapperTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMapsControlAndDataFieldsInRecordOrder() {
+        MarcFactory factory = MarcFactory.newInstance();
+        Record record = factory.newRecord("00000nam a2200000 a 4500");
+        record.addVariableField(factory.newControlField("001", "ocm42"));
+        record.addVariableField(factory.newDataField("245", '1', '0', "a", "Title", "c",
+                "Author"));
+        record.addVariableField(factory.newDataField("650", ' ', '0', "a", "History"));
+
+        Map<String, Object> document = MarcJsonMapper.toDocument(record);
+
+        assertEquals(Arrays.asList(MarcJsonMapper.LEADER, MarcJsonMapper.FIELDS),
+                Arrays.asList(document.keySet().toArray()));
+        assertEquals("00000nam a2200000 a 4500", document.get(MarcJsonMapper.LEADER));
+        List<Map<String, Object>> fields =
+                (List<Map<String, Object>>) document.get(MarcJsonMapper.FIELDS);
+        assertEquals(3, fields.size());
+        assertEquals("ocm42", fields.get(0).get("001"));
+
+        Map<String, Object> title = (Map<String, Object>) fields.get(1).get("245");
+        assertEquals(Arrays.asList(MarcJsonMapper.IND1, MarcJsonMapper.IND2,
+                MarcJsonMapper.SUBFIELDS), Arrays.asList(title.keySet().toArray()));
+        assertEquals("1", title.get(MarcJsonMapper.IND1));
+        assertEquals("0", title.get(MarcJsonMapper.IND2));
+        List<Map<String, Object>> subfields =
+                (List<Map<String, Object>>) title.get(MarcJsonMapper.SUBFIELDS);
+        assertEquals(2, subfields.size());
+        assertEquals("Title", subfields.get(0).get("a"));
+        assertEquals("Author", subfields.get(1).get("c"));
+
+        Map<String, Object> subject = (Map<String, Object>) fields.get(2).get("650");
+        assertEquals(" ", subject.get(MarcJsonMapper.IND1));
+    }
+}
@@ -0,0 +1,73 @@
+package com.snaplogic.snaps.marc21;
+
+import org.junit.Test;
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+import java.io.ByteArrayOutputStream;
+import java.text.Normalizer;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.marc21.MarcRecordDecoder} converts MARC-8 records to
+ * Unicode and leaves records that are already Unicode (leader/09 {@code a}) as they are.
+ */
+public class MarcRecordDecoderTest {
+
+    private static final MarcFieldSelector ALL_FIELDS =
+            MarcFieldSelector.of(Collections.<String>emptyList());
+
+    @Test
+    public void testKeepsUnicodeRecordData() throws Exception {
+        byte[] bytes = write("00000nam a2200000 a 4500", "Caf\u00e9 \u00c5ngstr\u00f6m", "UTF-8");
+
+        Record record = MarcRecordDecoder.decode(bytes, ALL_FIELDS);
+
+        assertEquals(MarcRecordDecoder.UNICODE_CODING_SCHEME,
+                record.getLeader().getCharCodingScheme());
+        assertEquals("Caf\u00e9 \u00c5ngstr\u00f6m", title(record));
+    }
+
+    @Test
+    public void testConvertsMarc8RecordData() throws Exception {
+        // ANSEL puts the combining acute (0xE2) before its base character
+        byte[] bytes = write("00000nam  2200000 a 4500", "Caf\u00e2e", "ISO-8859-1");
+
+        Record record = MarcRecordDecoder.decode(bytes, ALL_FIELDS);
+
+        assertEquals("Caf\u00e9", Normalizer.normalize(title(record), Normalizer.Form.NFC));
+    }
+
+    @Test
+    public void testProjectsBeforeConverting() throws Exception {
+        byte[] bytes = write("00000nam  2200000 a 4500", "Title", "ISO-8859-1");
+
+        Record record = MarcRecordDecoder.decode(bytes,
+                MarcFieldSelector.of(Collections.singletonList("001")));
+
+        assertEquals("ocm42", record.getControlNumber());
+        assertNull(record.getVariableField("245"));
+    }
+
+    private static byte[] write(final String leader, final String title, final String encoding)
+            throws Exception {
+        MarcFactory factory = MarcFactory.newInstance();
+        Record record = factory.newRecord(leader);
+        record.addVariableField(factory.newControlField("001", "ocm42"));
+        record.addVariableField(factory.newDataField("245", '1', '0', "a", title));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MarcStreamWriter writer = new MarcStreamWriter(bytes, encoding);
+        writer.write(record);
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private static String title(final Record record) {
+        return ((DataField) record.getVariableField("245")).getSubfield('a').getData();
+    }
+}
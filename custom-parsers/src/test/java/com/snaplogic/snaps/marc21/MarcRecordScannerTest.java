@@ -0,0 +1,135 @@
+package com.snaplogic.snaps.marc21;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.marc21.MarcRecordScanner} splits records on their
+ * length and recovers at the next record terminator after a damaged one.
+ */
+public class MarcRecordScannerTest {
+
+    @Test
+    public void testSplitsRecordsAndSkipsLineBreaks() throws Exception {
+        byte[] first = record(40, 'a');
+        byte[] second = record(96, 'b');
+        MarcRecordScanner scanner = scanner(first, "\r\n".getBytes("US-ASCII"), second,
+                "\n".getBytes("US-ASCII"));
+
+        assertArrayEquals(first, scanner.next());
+        assertEquals(0, scanner.getOffset());
+        assertArrayEquals(second, scanner.next());
+        assertEquals(42, scanner.getOffset());
+        assertNull(scanner.next());
+    }
+
+    @Test
+    public void testResyncsAfterNonNumericLength() throws Exception {
+        byte[] damaged = record(30, 'x');
+        damaged[2] = 'X';
+        byte[] good = record(50, 'g');
+        MarcRecordScanner scanner = scanner(damaged, good);
+
+        MarcRecordScanner.DamagedRecordException e = nextDamaged(scanner);
+        assertEquals(0, e.getOffset());
+        assertArrayEquals(damaged, e.getBytes());
+        assertArrayEquals(good, scanner.next());
+        assertEquals(30, scanner.getOffset());
+        assertNull(scanner.next());
+    }
+
+    @Test
+    public void testResyncsAfterLengthPastTerminator() throws Exception {
+        byte[] damaged = record(30, 'x');
+        setLength(damaged, 60);
+        byte[] first = record(40, 'a');
+        byte[] second = record(40, 'b');
+        MarcRecordScanner scanner = scanner(damaged, first, second);
+
+        // the 60 bytes read run into the next record, which is pushed back
+        assertArrayEquals(damaged, nextDamaged(scanner).getBytes());
+        assertArrayEquals(first, scanner.next());
+        assertEquals(30, scanner.getOffset());
+        assertArrayEquals(second, scanner.next());
+        assertNull(scanner.next());
+    }
+
+    @Test
+    public void testPushesBackUpToMaximumRecordLength() throws Exception {
+        byte[] damaged = record(30, 'x');
+        setLength(damaged, MarcRecordScanner.MAX_RECORD_LENGTH);
+        ByteArrayOutputStream following = new ByteArrayOutputStream();
+        int count = 2 * MarcRecordScanner.MAX_RECORD_LENGTH / 96;
+        for (int i = 0; i < count; i++) {
+            following.write(record(96, (char) ('a' + i % 26)));
+        }
+        MarcRecordScanner scanner = scanner(damaged, following.toByteArray());
+
+        assertArrayEquals(damaged, nextDamaged(scanner).getBytes());
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(record(96, (char) ('a' + i % 26)), scanner.next());
+            assertEquals(30 + 96L * i, scanner.getOffset());
+        }
+        assertNull(scanner.next());
+    }
+
+    @Test
+    public void testReportsTruncatedLastRecord() throws Exception {
+        byte[] good = record(40, 'a');
+        byte[] truncated = Arrays.copyOf(record(40, 'b'), 35);
+        MarcRecordScanner scanner = scanner(good, truncated);
+
+        assertArrayEquals(good, scanner.next());
+        MarcRecordScanner.DamagedRecordException e = nextDamaged(scanner);
+        assertEquals(40, e.getOffset());
+        assertArrayEquals(truncated, e.getBytes());
+        assertNull(scanner.next());
+    }
+
+    private static MarcRecordScanner scanner(final byte[]... parts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            bytes.write(part);
+        }
+        return new MarcRecordScanner(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static MarcRecordScanner.DamagedRecordException nextDamaged(
+            final MarcRecordScanner scanner) throws IOException {
+        try {
+            scanner.next();
+            fail("Expected a damaged record");
+            return null;
+        } catch (MarcRecordScanner.DamagedRecordException e) {
+            return e;
+        }
+    }
+
+    /**
+     * @return a record of the given length, filled with one character and ended with the
+     * record terminator
+     */
+    private static byte[] record(final int length, final char fill) {
+        byte[] record = new byte[length];
+        Arrays.fill(record, (byte) fill);
+        setLength(record, length);
+        record[length - 1] = MarcRecordScanner.RECORD_TERMINATOR;
+        return record;
+    }
+
+    private static void setLength(final byte[] record, final int length) {
+        String digits = String.format("%05d", length);
+        for (int i = 0; i < MarcRecordScanner.LENGTH_DIGITS; i++) {
+            record[i] = (byte) digits.charAt(i);
+        }
+    }
+}
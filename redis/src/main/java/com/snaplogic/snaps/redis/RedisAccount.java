@@ -11,7 +11,12 @@
 
 package com.snaplogic.snaps.redis;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -22,6 +27,7 @@ import com.snaplogic.account.api.AccountVariableProvider;
 import com.snaplogic.account.api.ValidatableAccount;
 import com.snaplogic.account.api.capabilities.AccountCategory;
 import com.snaplogic.api.ExecutionException;
+import com.snaplogic.common.SnapType;
 import com.snaplogic.common.properties.SnapProperty;
 import com.snaplogic.common.properties.builders.PropertyBuilder;
 import com.snaplogic.snap.api.DocumentUtility;
@@ -30,8 +36,11 @@ import com.snaplogic.snap.api.PropertyValues;
 import com.snaplogic.snap.api.capabilities.General;
 import com.snaplogic.snap.api.capabilities.Version;
 
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.Pool;
 
 /**
  * Demonstrates Snap Accounts. Two security-sensitive properties, User ID and Passphrase, are used
@@ -49,6 +58,8 @@ public class RedisAccount implements Account<Jedis>, ValidatableAccount<Jedis>,
     private static final String REDIS_USER_ID = "redis_user_id";
     private static final String REDIS_PASSWORD = "redis_password";
     
+    private static final String REDIS_TOPOLOGY = "redis_topology";
+    private static final String REDIS_SENTINEL_MASTER = "redis_sentinel_master";
     private static final String REDIS_CLUSTER_HOST = "redis_cluster_host";
     private static final String REDIS_HOST = "redis_host";
     private static final String REDIS_PORT = "redis_port";
@@ -56,11 +67,12 @@ public class RedisAccount implements Account<Jedis>, ValidatableAccount<Jedis>,
     private static final String REDIS_CONNECTION_TIMEOUT = "redis_connection_timeOut";
     private static final String REDIS_CONNECTION_POOL = "redis_connection_pool";
 	
-    
-    
-    
-    private static JedisPool jedispool = null;
-    private static Jedis jedis = null;
+    private static final int DEFAULT_TIMEOUT_SECONDS = 2;
+    private static final int DEFAULT_POOL_SIZE = 8;
+
+    private static final String TOPOLOGY_STANDALONE = "Standalone";
+    private static final String TOPOLOGY_SENTINEL = "Sentinel";
+    private static final String TOPOLOGY_CLUSTER = "Cluster";
 
     
     private ExpressionProperty usernameExpr;
@@ -70,11 +82,32 @@ public class RedisAccount implements Account<Jedis>, ValidatableAccount<Jedis>,
     private ExpressionProperty  portExpr;
     private ExpressionProperty  connTimeOutExpr;
     private ExpressionProperty  connPoolExpr;
+    private ExpressionProperty  sentinelMasterExpr;
+    private RedisPools.Topology topology;
+    // resolved on first use after configure, holds a reference on the shared pools until
+    // disconnect
+    private RedisPools.Settings settings;
 
     
     @Override
     public void defineProperties(PropertyBuilder propertyBuilder) {
-    	propertyBuilder.describe(REDIS_CLUSTER_HOST, REDIS_CLUSTER_HOST , "Cluster host separated by comma")        
+        propertyBuilder.describe(REDIS_TOPOLOGY, REDIS_TOPOLOGY, "Deployment of the Redis "
+                + "servers. Sentinel connects to the master monitored by the Sentinels, Cluster "
+                + "routes every key to the node serving its hash slot")
+        .type(SnapType.STRING)
+        .withAllowedValues(new HashSet<String>(Arrays.asList(TOPOLOGY_STANDALONE,
+                TOPOLOGY_SENTINEL, TOPOLOGY_CLUSTER)))
+        .defaultValue(TOPOLOGY_STANDALONE)
+        .add();
+
+        propertyBuilder.describe(REDIS_SENTINEL_MASTER, REDIS_SENTINEL_MASTER,
+                "Name of the master monitored by the Sentinels, required in Sentinel mode")
+        .expression()
+        .add();
+
+    	propertyBuilder.describe(REDIS_CLUSTER_HOST, REDIS_CLUSTER_HOST , "Cluster host separated by comma. "
+                + "Further host:port pairs of the cluster nodes in Cluster mode, or of the "
+                + "Sentinels in Sentinel mode, used together with the server host and port")        
         // for Enhanced Account Encryption; indicate to the SnapLogic Platform
         // that Medium/High Sensitivity-configured Organizations should encrypt
         // this data
@@ -129,6 +162,8 @@ public class RedisAccount implements Account<Jedis>, ValidatableAccount<Jedis>,
 
     @Override
     public void configure(PropertyValues propertyValues) {
+        // a reconfigured account may point at other servers
+        disconnect();
         // Exercise: sanitize and validate
         usernameExpr = propertyValues.getAsExpression(REDIS_USER_ID);
         passwordExpr = propertyValues.getAsExpression(REDIS_PASSWORD);
@@ -137,6 +172,15 @@ public class RedisAccount implements Account<Jedis>, ValidatableAccount<Jedis>,
         portExpr = propertyValues.getAsExpression(REDIS_PORT);
         connTimeOutExpr = propertyValues.getAsExpression(REDIS_CONNECTION_TIMEOUT);
         connPoolExpr = propertyValues.getAsExpression(REDIS_CONNECTION_POOL);
+        sentinelMasterExpr = propertyValues.getAsExpression(REDIS_SENTINEL_MASTER);
+        String topologyValue = propertyValues.get(REDIS_TOPOLOGY);
+        if (TOPOLOGY_CLUSTER.equals(topologyValue)) {
+            topology = RedisPools.Topology.CLUSTER;
+        } else if (TOPOLOGY_SENTINEL.equals(topologyValue)) {
+            topology = RedisPools.Topology.SENTINEL;
+        } else {
+            topology = RedisPools.Topology.STANDALONE;
+        }
         /*try {
             new BigDecimal((portExpr.toString()));
         } catch (NumberFormatException e) {
@@ -160,34 +204,103 @@ public class RedisAccount implements Account<Jedis>, ValidatableAccount<Jedis>,
         }
   */  }
 
+    /**
+     * Borrows a connection from the node-wide pool of this account, to the current master in
+     * Sentinel mode. Callers must {@link Jedis#close() close} the connection when done, which
+     * returns it to the pool.
+     *
+     * <p>Not available in Cluster mode, where every key may live on another node; use
+     * {@link #connectCluster()} instead.</p>
+     */
     @Override
     public Jedis connect() throws ExecutionException {
+        if (isCluster()) {
+            throw new ExecutionException("Redis account is configured for a cluster")
+                    .withResolution("Please use a snap that supports Redis Cluster, or set "
+                            + REDIS_TOPOLOGY + " to " + TOPOLOGY_STANDALONE + ".");
+        }
+        RedisPools.Settings settings = settings();
+        try {
+            // creating a Sentinel pool already asks the Sentinels for the master
+            Pool<Jedis> pool = RedisPools.get(settings);
+            return pool.getResource();
+        } catch (JedisException e) {
+            throw new ExecutionException(e, "Unable to establish connection to Redis instance")
+                    .withReason(e.getMessage())
+                    .withResolution("Please make sure that Redis server is up, or increase "
+                            + REDIS_CONNECTION_POOL + " if all connections are in use.");
+        }
+    }
+
+    /**
+     * @return true if the account connects to a Redis Cluster
+     */
+    boolean isCluster() {
+        return topology == RedisPools.Topology.CLUSTER;
+    }
+
+    /**
+     * @return the node-wide cluster client of this account, which routes commands by hash slot
+     * and keeps a connection pool per node
+     */
+    RedisCluster connectCluster() throws ExecutionException {
+        RedisPools.Settings settings = settings();
+        try {
+            return RedisPools.cluster(settings);
+        } catch (JedisException e) {
+            throw new ExecutionException(e, "Unable to establish connection to Redis cluster")
+                    .withReason(e.getMessage())
+                    .withResolution("Please make sure that at least one of the cluster nodes "
+                            + "is up and check connection details provided.");
+        }
+    }
+
+    /**
+     * Opens a connection outside the pool to the server holding the key, the current master in
+     * Sentinel mode, for commands that block on the server. Callers must
+     * {@link RedisStreamClient#close() close} it.
+     *
+     * @param blockMillis the longest time a command blocks, added to the socket timeout
+     */
+    RedisStreamClient connectStream(final String key, final int blockMillis)
+            throws ExecutionException {
+        HostAndPort node;
+        // the pools already know where the key is served
+        try (Jedis pooled = isCluster()
+                ? connectCluster().getConnectionFromSlot(JedisClusterCRC16.getSlot(key))
+                : connect()) {
+            node = new HostAndPort(pooled.getClient().getHost(), pooled.getClient().getPort());
+        }
+        RedisPools.Settings settings = settings();
+        RedisStreamClient client = new RedisStreamClient(node, settings.timeoutMillis(),
+                blockMillis);
+        try {
+            client.connect(settings.password());
+        } catch (JedisException e) {
+            client.close();
+            throw new ExecutionException(e, "Unable to establish connection to Redis instance")
+                    .withReason(e.getMessage())
+                    .withResolution("Please make sure that Redis server is up and check "
+                            + "connection details provided.");
+        }
+        return client;
+    }
+
+    /**
+     * @return the connection settings, which identify the servers of this account, evaluated
+     * once after the account is configured
+     */
+    synchronized RedisPools.Settings settings() {
+        if (settings == null) {
+            RedisPools.Settings resolved = resolveSettings();
+            RedisPools.acquire(resolved);
+            settings = resolved;
+        }
+        return settings;
+    }
+
+    private RedisPools.Settings resolveSettings() {
         try {
-            
-       /* 	String username = usernameExpr.eval(null);
-            if (StringUtils.isBlank(username)) {
-                throwExceptionEmptyProperty("USERNAME");
-            }
-            String password = passwordExpr.eval(null);
-            if (StringUtils.isBlank(password)) {
-                throwExceptionEmptyProperty("PASSWORD");
-            }
-            String cluster = clusterHostExpr.eval(null);
-            if (StringUtils.isBlank(cluster)) {
-                throwExceptionEmptyProperty("CLUSTER HOST");
-            }
-             String pool = connPoolExpr.eval(null);
-            if (StringUtils.isBlank(pool)) {
-                throwExceptionEmptyProperty("CONNECTION POOL");
-            }
-            
-            String timeout = connTimeOutExpr.eval(null);
-            if (StringUtils.isBlank(timeout)) {
-                throwExceptionEmptyProperty("CONNECTION TIMEOUT");
-            }
-            
-            
-       */     
         	String host = hostExpr.eval(null);
             if (StringUtils.isBlank(host)) {
                 throwExceptionEmptyProperty("HOST");
@@ -198,23 +311,62 @@ public class RedisAccount implements Account<Jedis>, ValidatableAccount<Jedis>,
             if (StringUtils.isBlank(port)) {
                 throwExceptionEmptyProperty("PORT");
             }
-            
-           
-            
-        	jedis = new Jedis(host,Integer.parseInt(port));
-        	
-        	
+
+            List<HostAndPort> nodes = new ArrayList<>();
+            nodes.add(new HostAndPort(host.trim(), Integer.parseInt(port.trim())));
+            String clusterHosts = clusterHostExpr == null ? null : clusterHostExpr.eval(null);
+            if (topology != RedisPools.Topology.STANDALONE
+                    && StringUtils.isNotBlank(clusterHosts)) {
+                for (String node : clusterHosts.split(",")) {
+                    if (StringUtils.isNotBlank(node)) {
+                        nodes.add(HostAndPort.parseString(node.trim()));
+                    }
+                }
+            }
+
+            String masterName = null;
+            if (topology == RedisPools.Topology.SENTINEL) {
+                masterName = sentinelMasterExpr == null ? null : sentinelMasterExpr.eval(null);
+                if (StringUtils.isBlank(masterName)) {
+                    throwExceptionEmptyProperty("SENTINEL MASTER");
+                }
+                masterName = masterName.trim();
+            }
+
+            String password = passwordExpr.eval(null);
+            int timeoutSeconds = intValue(connTimeOutExpr, DEFAULT_TIMEOUT_SECONDS);
+            int poolSize = intValue(connPoolExpr, DEFAULT_POOL_SIZE);
+
+            return new RedisPools.Settings(topology, nodes, masterName,
+                    StringUtils.isBlank(password) ? null : password,
+                    (int) TimeUnit.SECONDS.toMillis(timeoutSeconds), poolSize);
         } catch (Exception e) {
             throw new ExecutionException(e, "Unable to establish connection to Redis instance")
                     .withResolution("Please make sure that Redis server is up and check connection details provided.");
         }
-
-        return jedis;
     }
 
+    /**
+     * Releases the shared pools of this account, which are closed once no account has used
+     * them for a while. Connections go back to the pool when the snaps close them.
+     */
     @Override
-    public void disconnect() throws ExecutionException {
-        // no-op
+    public synchronized void disconnect() throws ExecutionException {
+        if (settings != null) {
+            RedisPools.release(settings);
+            settings = null;
+        }
+    }
+
+    private static int intValue(final ExpressionProperty expression, final int defaultValue) {
+        Object value = expression == null ? null : expression.eval(null);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value == null || StringUtils.isBlank(value.toString())) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.toString().trim());
     }
 
     private void throwExceptionEmptyProperty(String property) {
@@ -233,4 +385,4 @@ public class RedisAccount implements Account<Jedis>, ValidatableAccount<Jedis>,
 	
 
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,1354 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2016, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+package com.snaplogic.snaps.redis;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.snaplogic.api.ExecutionException;
+import com.snaplogic.common.SnapType;
+import com.snaplogic.common.properties.builders.PropertyBuilder;
+import com.snaplogic.snap.api.Document;
+import com.snaplogic.snap.api.DocumentUtility;
+import com.snaplogic.snap.api.ErrorViews;
+import com.snaplogic.snap.api.OutputViews;
+import com.snaplogic.snap.api.PropertyValues;
+import com.snaplogic.snap.api.SnapDataException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Collects the commands of several documents and sends them to Redis in one pipeline.
+ *
+ * <p>A batch is flushed once it holds the configured number of documents, or when a document
+ * arrives after the batch window has elapsed since the first document of the batch. The replies
+ * are mapped back to the document that queued each command and the documents are written out in
+ * input order.</p>
+ *
+ * <p>Against a Redis Cluster every command goes to the pipeline of the node serving the hash
+ * slot of its key, and multi-key commands are split by slot. Commands answered with
+ * {@code MOVED} are sent once more after the slot map has been reloaded.</p>
+ *
+ * <p>With batches in flight, batches are sent by a dedicated I/O thread while the snap keeps
+ * evaluating documents; the results are written on the snap thread in input order.</p>
+ *
+ * <p>The round trip of every pipeline and the wait for its connections go into the
+ * {@link RedisMetrics} of the snap, which are logged when the batch is closed.</p>
+ */
+final class RedisBatch {
+
+    static final String BATCH_SIZE_PROP = "Batch size";
+    static final String BATCH_WINDOW_PROP = "Batch window";
+    static final String IN_FLIGHT_PROP = "Batches in flight";
+
+    /** the output field of a script's reply */
+    static final String SCRIPT_RESULT = "result";
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisBatch.class);
+
+    /**
+     * {@code XADD key * field value ...}, sent as a script since the client has no stream
+     * commands.
+     */
+    private static final byte[] XADD_SCRIPT = SafeEncoder.encode(
+            "return redis.call('XADD', KEYS[1], '*', unpack(ARGV))");
+
+    /**
+     * Non-blocking {@code XREAD COUNT n STREAMS key id}. {@code XREAD} may not be called from
+     * scripts, {@code XRANGE} from the ID gives the same entries once the entry with that ID
+     * itself is dropped. The ID must be complete, {@code ms-seq}, to compare equal to the one
+     * the server replies.
+     */
+    private static final byte[] XREAD_SCRIPT = SafeEncoder.encode(
+            "local count = tonumber(ARGV[2])\n"
+                    + "local entries = redis.call('XRANGE', KEYS[1], ARGV[1], '+', "
+                    + "'COUNT', count + 1)\n"
+                    + "if #entries > 0 and entries[1][1] == ARGV[1] then\n"
+                    + "  table.remove(entries, 1)\n"
+                    + "elseif #entries > count then\n"
+                    + "  table.remove(entries)\n"
+                    + "end\n"
+                    + "return entries");
+
+    /**
+     * Receives the result of every document once its batch has been executed.
+     */
+    interface Writer {
+        /**
+         * @param input the document that queued the commands, null without an input view
+         * @param data  the replies, or null if one of the commands failed
+         * @param error the first command failure of the document, null on success
+         */
+        void write(Document input, Map<String, Object> data, RuntimeException error);
+    }
+
+    private final int size;
+    private final long maxBytes;
+    private final long windowMillis;
+    private final int maxInFlight;
+    private final List<Entry> entries;
+    private final Deque<Future<List<Result>>> inFlight = new ArrayDeque<>();
+    private final Stats stats = new Stats();
+    private boolean addMetrics;
+    private RedisMetrics metrics;
+    private ExecutorService executor;
+    private long started;
+    private long bytes;
+
+    /**
+     * @param maxBytes also send the batch once its keys and values take this many bytes, 0 for
+     *                 no limit
+     */
+    private RedisBatch(final int size, final long maxBytes, final long windowMillis,
+            final int maxInFlight) {
+        this.size = size;
+        this.maxBytes = maxBytes;
+        this.windowMillis = windowMillis;
+        this.maxInFlight = maxInFlight;
+        this.entries = new ArrayList<>(Math.min(size, 1024));
+    }
+
+    static void defineProperties(final PropertyBuilder propertyBuilder) {
+        propertyBuilder.describe(BATCH_SIZE_PROP, BATCH_SIZE_PROP,
+                "Number of documents whose commands are sent to Redis in one pipeline")
+                .type(SnapType.INTEGER)
+                .withMinValue(1)
+                .defaultValue(1)
+                .add();
+
+        propertyBuilder.describe(BATCH_WINDOW_PROP, "Batch window (ms)",
+                "Also send a batch when it has been filling for this many milliseconds, "
+                        + "checked whenever a document arrives. 0 waits for a full batch")
+                .type(SnapType.INTEGER)
+                .withMinValue(0)
+                .defaultValue(0)
+                .add();
+
+        propertyBuilder.describe(IN_FLIGHT_PROP, IN_FLIGHT_PROP,
+                "Number of batches that may be waiting for Redis while the snap goes on with "
+                        + "the next documents. The batches are sent in order by one I/O thread "
+                        + "and the results are still written in input order. 0 sends every "
+                        + "batch on the snap thread")
+                .type(SnapType.INTEGER)
+                .withMinValue(0)
+                .defaultValue(0)
+                .add();
+
+        RedisMetrics.defineProperties(propertyBuilder);
+    }
+
+    static RedisBatch configure(final PropertyValues propertyValues) {
+        Number size = propertyValues.get(BATCH_SIZE_PROP);
+        return configure(propertyValues, size == null ? 1 : Math.max(1, size.intValue()), 0, 0);
+    }
+
+    /**
+     * A batch of the given size instead of the configured one, also bounded by the bytes it
+     * holds.
+     *
+     * @param minInFlight the least number of batches in flight, whatever is configured
+     */
+    static RedisBatch configure(final PropertyValues propertyValues, final int size,
+            final long maxBytes, final int minInFlight) {
+        Number window = propertyValues.get(BATCH_WINDOW_PROP);
+        Number inFlightBatches = propertyValues.get(IN_FLIGHT_PROP);
+        RedisBatch batch = new RedisBatch(size, maxBytes, window == null ? 0 : window.longValue(),
+                Math.max(minInFlight, inFlightBatches == null ? 0 : inFlightBatches.intValue()));
+        batch.addMetrics = RedisMetrics.isAdded(propertyValues);
+        return batch;
+    }
+
+    /**
+     * Starts collecting the commands of a document.
+     */
+    Entry add(final Document input) {
+        if (entries.isEmpty()) {
+            started = System.currentTimeMillis();
+        }
+        Entry entry = new Entry(this, input);
+        entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * @return true if the batch should be flushed now
+     */
+    boolean isReady() {
+        return entries.size() >= size || (maxBytes > 0 && bytes >= maxBytes)
+                || (windowMillis > 0 && !entries.isEmpty()
+                && System.currentTimeMillis() - started >= windowMillis);
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * @return the counters of the commands sent so far
+     */
+    Stats stats() {
+        return stats;
+    }
+
+    /**
+     * Sends the batch, on the I/O thread when batches may be in flight, and writes the results
+     * of the batches that have completed. Blocks while the window of batches in flight is full.
+     */
+    void flush(final RedisAccount account, final Writer writer) {
+        if (!entries.isEmpty()) {
+            final List<Entry> sent = new ArrayList<>(entries);
+            entries.clear();
+            bytes = 0;
+            if (metrics == null) {
+                metrics = RedisMetrics.forAccount(account.settings()).forSnap();
+            }
+            final RedisMetrics batchMetrics = metrics;
+            if (maxInFlight == 0) {
+                send(account, sent, writer, batchMetrics);
+                return;
+            }
+            inFlight.add(executor().submit(new Callable<List<Result>>() {
+                @Override
+                public List<Result> call() {
+                    ResultCollector collector = new ResultCollector(sent.size());
+                    send(account, sent, collector, batchMetrics);
+                    return collector.results;
+                }
+            }));
+        }
+        drain(writer, maxInFlight);
+    }
+
+    /**
+     * Sends the last batch and waits until the results of all batches have been written.
+     */
+    void finish(final RedisAccount account, final Writer writer) {
+        flush(account, writer);
+        drain(writer, 0);
+    }
+
+    /**
+     * Stops the I/O thread, batches still in flight are abandoned, and logs the metrics of the
+     * batches sent.
+     */
+    void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        inFlight.clear();
+        if (metrics != null) {
+            LOG.info("Redis metrics: {}", metrics);
+        }
+    }
+
+    /**
+     * Writes the results of completed batches, in the order the batches were sent, waiting for
+     * the oldest ones while more than {@code maxPending} are in flight.
+     */
+    private void drain(final Writer writer, final int maxPending) {
+        while (!inFlight.isEmpty()
+                && (inFlight.size() > maxPending || inFlight.peek().isDone())) {
+            List<Result> results;
+            try {
+                results = inFlight.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ExecutionException(e, "Interrupted while waiting for Redis")
+                        .withResolution("Please retry the pipeline.");
+            } catch (java.util.concurrent.ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new ExecutionException(e.getCause(), "Redis batch failed")
+                        .withResolution("Please make sure that Redis server is up.");
+            }
+            for (Result result : results) {
+                writer.write(result.input, result.data, result.error);
+            }
+        }
+    }
+
+    private ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable, "redis-io");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Borrows a connection from the account and sends the entries on it, or on the cluster
+     * nodes when the account connects to a cluster.
+     */
+    private static void send(final RedisAccount account, final List<Entry> sent,
+            final Writer writer, final RedisMetrics metrics) {
+        Timing timing = new Timing(sent.size());
+        // without commands everything was answered from the near cache
+        if (hasCommands(sent)) {
+            try {
+                if (account.isCluster()) {
+                    send(account.connectCluster(), sent, timing, metrics);
+                } else {
+                    long borrowing = System.nanoTime();
+                    // closing the connection returns it to the pool
+                    try (Jedis redisConn = account.connect()) {
+                        timing.poolWaitNanos = System.nanoTime() - borrowing;
+                        metrics.poolWait(timing.poolWaitNanos);
+                        send(redisConn, sent, timing);
+                    }
+                }
+            } catch (JedisConnectionException e) {
+                throw new ExecutionException(e, "Lost connection to Redis instance")
+                        .withResolution("Please make sure that Redis server is up.");
+            }
+        }
+        completeAll(sent, writer, timing, metrics);
+    }
+
+    /**
+     * Sends the commands of all entries in one pipeline.
+     */
+    private static void send(final Jedis redisConn, final List<Entry> sent,
+            final Timing timing) {
+        long started = System.nanoTime();
+        final Pipeline pipeline = redisConn.pipelined();
+        final String node = redisConn.getClient().getHost() + ":"
+                + redisConn.getClient().getPort();
+        Router router = new Router() {
+            @Override
+            public Pipeline pipeline(final String key) {
+                return pipeline;
+            }
+
+            @Override
+            public int slot(final String key) {
+                return 0;
+            }
+
+            @Override
+            public String node(final String key) {
+                return node;
+            }
+        };
+        queueAll(sent, router);
+        pipeline.sync();
+        List<Command> resend = toResend(sent);
+        if (!resend.isEmpty()) {
+            // the server lost the scripts it had, e.g. after a restart
+            for (Command command : resend) {
+                command.queue(router);
+            }
+            pipeline.sync();
+        }
+        timing.roundTripNanos = System.nanoTime() - started;
+    }
+
+    /**
+     * Sends the commands in one pipeline per cluster node, the round trip leaves out the wait
+     * for the connections to the nodes.
+     */
+    private static void send(final RedisCluster cluster, final List<Entry> sent,
+            final Timing timing, final RedisMetrics metrics) {
+        long started = System.nanoTime();
+        try (ClusterRouter router = new ClusterRouter(cluster, metrics, timing)) {
+            queueAll(sent, router);
+            router.sync();
+        }
+        List<Command> resend = toResend(sent);
+        if (!resend.isEmpty()) {
+            for (Command command : resend) {
+                if (command.isMoved()) {
+                    // slots were resharded since the slot map was loaded
+                    cluster.renewSlotCache();
+                    break;
+                }
+            }
+            try (ClusterRouter router = new ClusterRouter(cluster, metrics, timing)) {
+                for (Command command : resend) {
+                    command.queue(router);
+                }
+                router.sync();
+            }
+        }
+        timing.roundTripNanos = System.nanoTime() - started - timing.poolWaitNanos;
+    }
+
+    private static boolean hasCommands(final List<Entry> sent) {
+        for (Entry entry : sent) {
+            if (!entry.commands.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the commands that went to a node that no longer serves their slot, or that ran
+     * a script the node no longer has
+     */
+    private static List<Command> toResend(final List<Entry> sent) {
+        List<Command> resend = new ArrayList<>();
+        for (Entry entry : sent) {
+            for (Command command : entry.commands) {
+                if (command.isMoved() || command.forgetMissingScript()) {
+                    resend.add(command);
+                }
+            }
+        }
+        return resend;
+    }
+
+    private static void queueAll(final List<Entry> sent, final Router router) {
+        for (Entry entry : sent) {
+            for (Command command : entry.commands) {
+                command.queue(router);
+            }
+        }
+    }
+
+    private static void completeAll(final List<Entry> sent, final Writer writer,
+            final Timing timing, final RedisMetrics metrics) {
+        int commands = 0;
+        long bytes = 0;
+        for (Entry entry : sent) {
+            for (Command command : entry.commands) {
+                if (command.name != null) {
+                    commands++;
+                }
+            }
+            bytes += entry.bytes;
+        }
+        if (commands > 0) {
+            metrics.batch(sent.size(), commands, bytes);
+        }
+        for (Entry entry : sent) {
+            entry.complete(writer, timing, metrics);
+        }
+    }
+
+    /**
+     * The round trip of a batch's pipeline and the wait for its connections.
+     */
+    private static final class Timing {
+        private final int documents;
+        private long poolWaitNanos;
+        private long roundTripNanos;
+
+        private Timing(final int documents) {
+            this.documents = documents;
+        }
+
+        private Map<String, Object> toOutput() {
+            Map<String, Object> output = new LinkedHashMap<>(4);
+            output.put("batchDocuments", documents);
+            output.put("roundTripMillis",
+                    RedisMetrics.millis(TimeUnit.NANOSECONDS.toMicros(roundTripNanos)));
+            output.put("poolWaitMillis",
+                    RedisMetrics.millis(TimeUnit.NANOSECONDS.toMicros(poolWaitNanos)));
+            return output;
+        }
+    }
+
+    /**
+     * The outcome of a document sent on the I/O thread, written on the snap thread.
+     */
+    private static final class Result {
+        private final Document input;
+        private final Map<String, Object> data;
+        private final RuntimeException error;
+
+        private Result(final Document input, final Map<String, Object> data,
+                final RuntimeException error) {
+            this.input = input;
+            this.data = data;
+            this.error = error;
+        }
+    }
+
+    private static final class ResultCollector implements Writer {
+        private final List<Result> results;
+
+        private ResultCollector(final int size) {
+            this.results = new ArrayList<>(size);
+        }
+
+        @Override
+        public void write(final Document input, final Map<String, Object> data,
+                final RuntimeException error) {
+            results.add(new Result(input, data, error));
+        }
+    }
+
+    /**
+     * Counters of the commands of a batch, updated as their replies are collected, which may
+     * happen on the I/O thread.
+     */
+    static final class Stats {
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        private void add(final long succeededCommands, final long failedCommands) {
+            succeeded.addAndGet(succeededCommands);
+            failed.addAndGet(failedCommands);
+        }
+
+        long succeeded() {
+            return succeeded.get();
+        }
+
+        long failed() {
+            return failed.get();
+        }
+    }
+
+    /**
+     * The commands queued for one document.
+     */
+    static final class Entry {
+        private final RedisBatch batch;
+        private final Document input;
+        private final List<Command> commands = new ArrayList<>(4);
+        private final Map<String, Object> data = new LinkedHashMap<>();
+        private long bytes;
+
+        private Entry(final RedisBatch batch, final Document input) {
+            this.batch = batch;
+            this.input = input;
+        }
+
+        /**
+         * Counts the bytes of keys and values the batch holds.
+         */
+        private void weigh(final String key, final long valueBytes) {
+            bytes += key.length() + valueBytes;
+            batch.bytes += key.length() + valueBytes;
+        }
+
+        /**
+         * Queues {@code SET}, as {@code SETEX} when an expiry is given.
+         *
+         * @param value         the encoded value, see {@link RedisValueCodec}
+         * @param expirySeconds expiry of the key, -1 for none
+         */
+        void set(final String key, final byte[] value, final int expirySeconds) {
+            weigh(key, value.length);
+            commands.add(new KeyCommand(expirySeconds < 0 ? "SET" : "SETEX", key) {
+                @Override
+                Response<?> queue(final Pipeline pipeline) {
+                    byte[] rawKey = SafeEncoder.encode(key);
+                    return expirySeconds < 0 ? pipeline.set(rawKey, value)
+                            : pipeline.setex(rawKey, expirySeconds, value);
+                }
+            });
+        }
+
+        /**
+         * Queues {@code GET}, the decoded reply is put into the output under the key.
+         */
+        void get(final String key) {
+            weigh(key, 0);
+            commands.add(new KeyCommand("GET", key) {
+                @Override
+                Response<?> queue(final Pipeline pipeline) {
+                    return pipeline.get(SafeEncoder.encode(key));
+                }
+
+                @Override
+                void collect(final Map<String, Object> data, final Object reply) {
+                    data.put(key, RedisValueCodec.decode((byte[]) reply));
+                }
+            });
+        }
+
+        /**
+         * Queues one {@code MGET} for all keys, one per hash slot in a cluster, the decoded
+         * values are put into the output under their keys.
+         */
+        void mget(final List<String> keys) {
+            mget(keys, null);
+        }
+
+        /**
+         * Queues {@code MGET} like {@link #mget(List)} and also puts the values into the near
+         * cache.
+         */
+        void mget(final List<String> keys, final RedisNearCache nearCache) {
+            if (keys.isEmpty()) {
+                return;
+            }
+            for (String key : keys) {
+                weigh(key, 0);
+            }
+            commands.add(new MgetCommand(keys, nearCache));
+        }
+
+        /**
+         * Queues {@code INCRBY}, the new value is put into the output under the key.
+         */
+        void incrBy(final String key, final long increment) {
+            weigh(key, Long.SIZE / Byte.SIZE);
+            commands.add(new KeyCommand("INCRBY", key) {
+                @Override
+                Response<?> queue(final Pipeline pipeline) {
+                    return pipeline.incrBy(SafeEncoder.encode(key), increment);
+                }
+
+                @Override
+                void collect(final Map<String, Object> data, final Object reply) {
+                    data.put(key, reply);
+                }
+            });
+        }
+
+        /**
+         * Sets fields of a hash, with {@code HMSET} so servers before 4.0 take several fields.
+         *
+         * @param fields the field names and encoded values
+         */
+        void hset(final String key, final Map<String, byte[]> fields) {
+            if (fields.isEmpty()) {
+                return;
+            }
+            final Map<byte[], byte[]> rawFields = new LinkedHashMap<>(fields.size() * 2);
+            weigh(key, 0);
+            for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+                rawFields.put(SafeEncoder.encode(field.getKey()), field.getValue());
+                weigh(field.getKey(), field.getValue().length);
+            }
+            commands.add(new KeyCommand("HMSET", key) {
+                @Override
+                Response<?> queue(final Pipeline pipeline) {
+                    return pipeline.hmset(SafeEncoder.encode(key), rawFields);
+                }
+            });
+        }
+
+        /**
+         * Queues {@code HMGET}, the decoded values are put into the output as a map under the
+         * key of the hash.
+         */
+        void hmget(final String key, final List<String> fields) {
+            if (fields.isEmpty()) {
+                return;
+            }
+            final byte[][] rawFields = encode(fields);
+            weigh(key, 0);
+            for (String field : fields) {
+                weigh(field, 0);
+            }
+            commands.add(new KeyCommand("HMGET", key) {
+                @Override
+                Response<?> queue(final Pipeline pipeline) {
+                    return pipeline.hmget(SafeEncoder.encode(key), rawFields);
+                }
+
+                @Override
+                void collect(final Map<String, Object> data, final Object reply) {
+                    List<?> values = (List<?>) reply;
+                    Map<String, Object> hash = new LinkedHashMap<>(fields.size() * 2);
+                    for (int i = 0; i < fields.size(); i++) {
+                        hash.put(fields.get(i), RedisValueCodec.decode((byte[]) values.get(i)));
+                    }
+                    data.put(key, hash);
+                }
+            });
+        }
+
+        /**
+         * Queues {@code LPUSH}, the length of the list is put into the output under the key.
+         *
+         * @param elements the encoded elements, pushed in order
+         */
+        void lpush(final String key, final List<byte[]> elements) {
+            if (elements.isEmpty()) {
+                return;
+            }
+            final byte[][] rawElements = elements.toArray(new byte[elements.size()][]);
+            for (byte[] element : rawElements) {
+                weigh(key, element.length);
+            }
+            commands.add(new KeyCommand("LPUSH", key) {
+                @Override
+                Response<?> queue(final Pipeline pipeline) {
+                    return pipeline.lpush(SafeEncoder.encode(key), rawElements);
+                }
+
+                @Override
+                void collect(final Map<String, Object> data, final Object reply) {
+                    data.put(key, reply);
+                }
+            });
+        }
+
+        /**
+         * Queues {@code RPOP}, the decoded element is put into the output under the key, null
+         * if the list is empty.
+         */
+        void rpop(final String key) {
+            weigh(key, 0);
+            commands.add(new KeyCommand("RPOP", key) {
+                @Override
+                Response<?> queue(final Pipeline pipeline) {
+                    return pipeline.rpop(SafeEncoder.encode(key));
+                }
+
+                @Override
+                void collect(final Map<String, Object> data, final Object reply) {
+                    data.put(key, RedisValueCodec.decode((byte[]) reply));
+                }
+            });
+        }
+
+        /**
+         * Queues {@code ZADD}, the number of new members is put into the output under the key.
+         *
+         * @param members the members and their scores
+         */
+        void zadd(final String key, final Map<String, Double> members) {
+            if (members.isEmpty()) {
+                return;
+            }
+            final Map<byte[], Double> rawMembers = new LinkedHashMap<>(members.size() * 2);
+            weigh(key, 0);
+            for (Map.Entry<String, Double> member : members.entrySet()) {
+                rawMembers.put(SafeEncoder.encode(member.getKey()), member.getValue());
+                weigh(member.getKey(), Double.SIZE / Byte.SIZE);
+            }
+            commands.add(new KeyCommand("ZADD", key) {
+                @Override
+                Response<?> queue(final Pipeline pipeline) {
+                    return pipeline.zadd(SafeEncoder.encode(key), rawMembers);
+                }
+
+                @Override
+                void collect(final Map<String, Object> data, final Object reply) {
+                    data.put(key, reply);
+                }
+            });
+        }
+
+        /**
+         * Queues {@code ZRANGEBYSCORE}, the members are put into the output as a list under the
+         * key, lowest score first.
+         *
+         * @param min lowest score, may be exclusive like {@code (1} or {@code -inf}
+         * @param max highest score, may be exclusive like {@code (5} or {@code +inf}
+         */
+        void zrangeByScore(final String key, final String min, final String max) {
+            weigh(key, min.length() + max.length());
+            commands.add(new KeyCommand("ZRANGEBYSCORE", key) {
+                @Override
+                Response<?> queue(final Pipeline pipeline) {
+                    return pipeline.zrangeByScore(SafeEncoder.encode(key),
+                            SafeEncoder.encode(min), SafeEncoder.encode(max));
+                }
+
+                @Override
+                void collect(final Map<String, Object> data, final Object reply) {
+                    List<Object> members = new ArrayList<>();
+                    for (Object member : (Iterable<?>) reply) {
+                        members.add(RedisValueCodec.decode((byte[]) member));
+                    }
+                    data.put(key, members);
+                }
+            });
+        }
+
+        /**
+         * Appends an entry with an ID generated by the server to a stream, the ID is put into
+         * the output under the key.
+         *
+         * @param fields the field names and encoded values of the entry
+         */
+        void xadd(final String key, final Map<String, byte[]> fields) {
+            if (fields.isEmpty()) {
+                return;
+            }
+            final List<byte[]> args = new ArrayList<>(fields.size() * 2);
+            weigh(key, 0);
+            for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+                args.add(SafeEncoder.encode(field.getKey()));
+                args.add(field.getValue());
+                weigh(field.getKey(), field.getValue().length);
+            }
+            commands.add(new KeyCommand("XADD", key) {
+                @Override
+                Response<?> queue(final Pipeline pipeline) {
+                    return pipeline.eval(XADD_SCRIPT,
+                            Collections.singletonList(SafeEncoder.encode(key)), args);
+                }
+
+                @Override
+                void collect(final Map<String, Object> data, final Object reply) {
+                    data.put(key, SafeEncoder.encode((byte[]) reply));
+                }
+            });
+        }
+
+        /**
+         * Reads the entries of a stream after an ID, put into the output under the key as a
+         * list of {@code {id, fields}} maps.
+         *
+         * @param afterId the complete {@code ms-seq} ID of the last entry already read,
+         *                {@code 0-0} for the first entry
+         * @param count   the maximum number of entries to read
+         */
+        void xread(final String key, final String afterId, final int count) {
+            final List<byte[]> args = Arrays.asList(SafeEncoder.encode(afterId),
+                    SafeEncoder.encode(String.valueOf(count)));
+            weigh(key, afterId.length());
+            commands.add(new KeyCommand("XREAD", key) {
+                @Override
+                Response<?> queue(final Pipeline pipeline) {
+                    return pipeline.eval(XREAD_SCRIPT,
+                            Collections.singletonList(SafeEncoder.encode(key)), args);
+                }
+
+                @Override
+                void collect(final Map<String, Object> data, final Object reply) {
+                    data.put(key, toStreamEntries((List<?>) reply));
+                }
+            });
+        }
+
+        /**
+         * Runs a Lua script, its reply is put into the output as {@code result}. Strings in
+         * the reply are decoded like stored values.
+         *
+         * @param keys the keys passed as {@code KEYS}, they must share a hash slot in a cluster
+         * @param args the arguments passed as {@code ARGV}
+         */
+        void eval(final RedisScript script, final List<String> keys, final List<byte[]> args) {
+            for (String key : keys) {
+                weigh(key, 0);
+            }
+            for (byte[] arg : args) {
+                weigh("", arg.length);
+            }
+            commands.add(new ScriptCommand(script, keys, args));
+        }
+
+        /**
+         * Queues {@code FLUSHALL}, which deletes every key of the server. A cluster has no
+         * single server to flush, the document fails there.
+         */
+        void flushAll() {
+            commands.add(new Command("FLUSHALL") {
+                private Response<?> response;
+
+                @Override
+                void queue(final Router router) {
+                    response = router instanceof ClusterRouter ? null
+                            : router.pipeline(null).flushAll();
+                }
+
+                @Override
+                void collect(final Map<String, Object> data) {
+                    if (response == null) {
+                        throw new JedisDataException("FLUSH ALL is not supported on a cluster");
+                    }
+                    response.get();
+                }
+
+                @Override
+                boolean isMoved() {
+                    return false;
+                }
+            });
+        }
+
+        /**
+         * Fails the document without sending anything, e.g. when its settings do not fit the
+         * command. It is still written out in input order.
+         */
+        void fail(final RuntimeException error) {
+            commands.clear();
+            // without a name it is left out of the metrics
+            commands.add(new Command(null) {
+                @Override
+                void queue(final Router router) {
+                }
+
+                @Override
+                void collect(final Map<String, Object> data) {
+                    throw error;
+                }
+
+                @Override
+                boolean isMoved() {
+                    return false;
+                }
+            });
+        }
+
+        /**
+         * Adds a fixed value to the output of the document. A command reply for the same field
+         * replaces the value but keeps its position.
+         */
+        void put(final String field, final Object value) {
+            data.put(field, value);
+        }
+
+        private void complete(final Writer writer, final Timing timing,
+                final RedisMetrics metrics) {
+            RuntimeException error = null;
+            int failed = 0;
+            for (Command command : commands) {
+                boolean succeeded = false;
+                try {
+                    command.collect(data);
+                    succeeded = true;
+                } catch (RuntimeException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                    failed++;
+                }
+                if (command.name != null) {
+                    metrics.command(command.name, timing.roundTripNanos,
+                            succeeded ? command.replyBytes() : 0, !succeeded);
+                }
+            }
+            batch.stats.add(commands.size() - failed, failed);
+            if (batch.addMetrics) {
+                data.put(RedisMetrics.METRICS_FIELD, timing.toOutput());
+            }
+            if (error != null) {
+                writer.write(input, null, error);
+            } else {
+                writer.write(input, data, null);
+            }
+        }
+    }
+
+    private static byte[][] encode(final List<String> strings) {
+        byte[][] raw = new byte[strings.size()][];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = SafeEncoder.encode(strings.get(i));
+        }
+        return raw;
+    }
+
+    /**
+     * Decodes the strings of a script reply, which may be nested lists.
+     */
+    private static Object toScriptResult(final Object reply) {
+        if (reply instanceof byte[]) {
+            return RedisValueCodec.decode((byte[]) reply);
+        }
+        if (reply instanceof List) {
+            List<Object> values = new ArrayList<>(((List<?>) reply).size());
+            for (Object value : (List<?>) reply) {
+                values.add(toScriptResult(value));
+            }
+            return values;
+        }
+        return reply;
+    }
+
+    /**
+     * Turns the {@code [[id, [field, value, ...]], ...]} reply of a stream read into documents.
+     */
+    static List<Map<String, Object>> toStreamEntries(final List<?> reply) {
+        List<Map<String, Object>> entries = new ArrayList<>(reply.size());
+        for (Object item : reply) {
+            List<?> streamEntry = (List<?>) item;
+            List<?> values = (List<?>) streamEntry.get(1);
+            Map<String, Object> fields = new LinkedHashMap<>(values.size());
+            for (int i = 0; i + 1 < values.size(); i += 2) {
+                fields.put(SafeEncoder.encode((byte[]) values.get(i)),
+                        RedisValueCodec.decode((byte[]) values.get(i + 1)));
+            }
+            Map<String, Object> entry = new LinkedHashMap<>(4);
+            entry.put("id", SafeEncoder.encode((byte[]) streamEntry.get(0)));
+            entry.put("fields", fields);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Writes results to the output view and failures to the error view of a snap.
+     */
+    static Writer toViews(final OutputViews outputViews, final ErrorViews errorViews,
+            final DocumentUtility documentUtility) {
+        return new Writer() {
+            @Override
+            public void write(final Document input, final Map<String, Object> data,
+                    final RuntimeException error) {
+                if (error != null) {
+                    errorViews.write(new SnapDataException(error, "Redis command failed")
+                            .withReason(error.getMessage())
+                            .withResolution("Please check the keys and values of the document"),
+                            input);
+                } else {
+                    outputViews.write(documentUtility.newDocument(data), input);
+                }
+            }
+        };
+    }
+
+    /**
+     * Hands out the pipeline a command has to be queued on.
+     */
+    private interface Router {
+        /**
+         * @param key the key the command works on
+         */
+        Pipeline pipeline(String key);
+
+        /**
+         * @return the hash slot of the key, keys of one multi-key command must share it
+         */
+        int slot(String key);
+
+        /**
+         * @return {@code host:port} of the server the command on the key is sent to
+         */
+        String node(String key);
+    }
+
+    /**
+     * Opens one pipeline per cluster node, on a connection borrowed from the node's pool.
+     */
+    private static final class ClusterRouter implements Router, Closeable {
+        private final RedisCluster cluster;
+        private final RedisMetrics metrics;
+        private final Timing timing;
+        private final Map<Integer, Pipeline> slots = new HashMap<>();
+        private final Map<Integer, String> slotNodes = new HashMap<>();
+        private final Map<String, Pipeline> nodes = new LinkedHashMap<>();
+        private final List<Jedis> connections = new ArrayList<>();
+
+        /**
+         * @param timing adds up the wait for the connections
+         */
+        private ClusterRouter(final RedisCluster cluster, final RedisMetrics metrics,
+                final Timing timing) {
+            this.cluster = cluster;
+            this.metrics = metrics;
+            this.timing = timing;
+        }
+
+        @Override
+        public Pipeline pipeline(final String key) {
+            int slot = slot(key);
+            Pipeline pipeline = slots.get(slot);
+            if (pipeline == null) {
+                long borrowing = System.nanoTime();
+                Jedis redisConn = cluster.getConnectionFromSlot(slot);
+                long waited = System.nanoTime() - borrowing;
+                timing.poolWaitNanos += waited;
+                metrics.poolWait(waited);
+                String node = redisConn.getClient().getHost() + ":"
+                        + redisConn.getClient().getPort();
+                pipeline = nodes.get(node);
+                if (pipeline == null) {
+                    connections.add(redisConn);
+                    pipeline = redisConn.pipelined();
+                    nodes.put(node, pipeline);
+                } else {
+                    // the node already has a pipeline for another slot
+                    redisConn.close();
+                }
+                slots.put(slot, pipeline);
+                slotNodes.put(slot, node);
+            }
+            return pipeline;
+        }
+
+        @Override
+        public int slot(final String key) {
+            return JedisClusterCRC16.getSlot(key);
+        }
+
+        @Override
+        public String node(final String key) {
+            pipeline(key);
+            return slotNodes.get(slot(key));
+        }
+
+        private void sync() {
+            for (Pipeline pipeline : nodes.values()) {
+                pipeline.sync();
+            }
+        }
+
+        @Override
+        public void close() {
+            for (Jedis redisConn : connections) {
+                redisConn.close();
+            }
+        }
+    }
+
+    /**
+     * A command queued on a pipeline and how its replies go into the output.
+     */
+    private abstract static class Command {
+        private final String name;
+
+        /**
+         * @param name the Redis command, as counted in the metrics
+         */
+        Command(final String name) {
+            this.name = name;
+        }
+
+        abstract void queue(Router router);
+
+        /**
+         * Puts the replies into the output.
+         *
+         * @throws RuntimeException if the command failed
+         */
+        abstract void collect(Map<String, Object> data);
+
+        /**
+         * @return true if the command was sent to a node that no longer serves its slot
+         */
+        abstract boolean isMoved();
+
+        /**
+         * Forgets that the node has the script the command ran, if the node replied it has not.
+         *
+         * @return true if the script was missing
+         */
+        boolean forgetMissingScript() {
+            return false;
+        }
+
+        /**
+         * @return the bytes of the replies, once they were collected
+         */
+        long replyBytes() {
+            return 0;
+        }
+
+        static boolean isMoved(final Response<?> response) {
+            try {
+                response.get();
+                return false;
+            } catch (JedisMovedDataException e) {
+                return true;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * A command on a single key with a single reply.
+     */
+    private abstract static class KeyCommand extends Command {
+        private final String key;
+        private Response<?> response;
+
+        KeyCommand(final String name, final String key) {
+            super(name);
+            this.key = key;
+        }
+
+        abstract Response<?> queue(Pipeline pipeline);
+
+        void collect(final Map<String, Object> data, final Object reply) {
+            // status replies are not part of the output
+        }
+
+        @Override
+        void queue(final Router router) {
+            response = queue(router.pipeline(key));
+        }
+
+        @Override
+        void collect(final Map<String, Object> data) {
+            collect(data, response.get());
+        }
+
+        @Override
+        boolean isMoved() {
+            return isMoved(response);
+        }
+
+        @Override
+        long replyBytes() {
+            return RedisMetrics.sizeOf(response.get());
+        }
+    }
+
+    /**
+     * {@code MGET} of several keys, split into one command per hash slot.
+     */
+    private static final class MgetCommand extends Command {
+        private final List<String> keys;
+        private final RedisNearCache nearCache;
+        private final Map<Integer, List<String>> keysBySlot = new LinkedHashMap<>();
+        private final List<Response<List<byte[]>>> responses = new ArrayList<>();
+
+        private MgetCommand(final List<String> keys, final RedisNearCache nearCache) {
+            super("MGET");
+            this.keys = keys;
+            this.nearCache = nearCache;
+        }
+
+        @Override
+        void queue(final Router router) {
+            keysBySlot.clear();
+            responses.clear();
+            for (String key : keys) {
+                int slot = router.slot(key);
+                List<String> slotKeys = keysBySlot.get(slot);
+                if (slotKeys == null) {
+                    slotKeys = new ArrayList<>();
+                    keysBySlot.put(slot, slotKeys);
+                }
+                slotKeys.add(key);
+            }
+            for (List<String> slotKeys : keysBySlot.values()) {
+                responses.add(router.pipeline(slotKeys.get(0)).mget(encode(slotKeys)));
+            }
+        }
+
+        @Override
+        void collect(final Map<String, Object> data) {
+            Map<String, byte[]> values = new HashMap<>(keys.size() * 2);
+            int i = 0;
+            for (List<String> slotKeys : keysBySlot.values()) {
+                List<byte[]> slotValues = responses.get(i++).get();
+                for (int k = 0; k < slotKeys.size(); k++) {
+                    values.put(slotKeys.get(k), slotValues.get(k));
+                    if (nearCache != null) {
+                        nearCache.put(slotKeys.get(k), slotValues.get(k));
+                    }
+                }
+            }
+            // keep the order of the keys in the output
+            for (String key : keys) {
+                data.put(key, RedisValueCodec.decode(values.get(key)));
+            }
+        }
+
+        @Override
+        boolean isMoved() {
+            for (Response<?> response : responses) {
+                if (isMoved(response)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        long replyBytes() {
+            long bytes = 0;
+            for (Response<List<byte[]>> response : responses) {
+                bytes += RedisMetrics.sizeOf(response.get());
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * A Lua script, run by its digest on the nodes that already have it.
+     */
+    private static final class ScriptCommand extends Command {
+        private final RedisScript script;
+        private final List<byte[]> keys;
+        private final List<byte[]> args;
+        private final String routingKey;
+        private String node;
+        private Response<Object> response;
+
+        private ScriptCommand(final RedisScript script, final List<String> keys,
+                final List<byte[]> args) {
+            super("EVALSHA");
+            this.script = script;
+            this.keys = Arrays.asList(encode(keys));
+            this.args = args;
+            // a script without keys may run anywhere, the slot of "" is as good as any
+            this.routingKey = keys.isEmpty() ? "" : keys.get(0);
+        }
+
+        @Override
+        void queue(final Router router) {
+            Pipeline pipeline = router.pipeline(routingKey);
+            node = router.node(routingKey);
+            if (script.isLoadedOn(node)) {
+                response = pipeline.evalsha(script.sha(), keys, args);
+            } else {
+                // EVAL caches the script on the server, later calls in the pipeline follow it
+                response = pipeline.eval(script.body(), keys, args);
+                script.loadedOn(node);
+            }
+        }
+
+        @Override
+        void collect(final Map<String, Object> data) {
+            data.put(SCRIPT_RESULT, toScriptResult(response.get()));
+        }
+
+        @Override
+        boolean isMoved() {
+            return isMoved(response);
+        }
+
+        @Override
+        boolean forgetMissingScript() {
+            try {
+                response.get();
+                return false;
+            } catch (JedisNoScriptException e) {
+                script.unloadedOn(node);
+                return true;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        @Override
+        long replyBytes() {
+            return RedisMetrics.sizeOf(response.get());
+        }
+    }
+}
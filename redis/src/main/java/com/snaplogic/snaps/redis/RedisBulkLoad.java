@@ -0,0 +1,149 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2016, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+package com.snaplogic.snaps.redis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.snaplogic.common.SnapType;
+import com.snaplogic.common.properties.builders.PropertyBuilder;
+import com.snaplogic.snap.api.Document;
+import com.snaplogic.snap.api.PropertyValues;
+
+/**
+ * Bulk load mode of a Redis write snap, for loading many keys as fast as the server takes
+ * them.
+ *
+ * <p>Documents are sent in large pipelined batches, bounded by count and by the bytes of their
+ * keys and values, with at least one batch in flight so reading documents and writing to
+ * Redis overlap. Only failed documents are written out, to the error view. The throughput is
+ * logged periodically and written as one summary document once the input is done.</p>
+ */
+final class RedisBulkLoad {
+
+    static final String BULK_LOAD_PROP = "Bulk load";
+    static final String BULK_BATCH_SIZE_PROP = "Bulk batch size";
+    static final String BULK_BUFFER_PROP = "Bulk buffer";
+
+    private static final int DEFAULT_BATCH_SIZE = 10000;
+    private static final int DEFAULT_BUFFER_MB = 16;
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisBulkLoad.class);
+
+    private final int batchSize;
+    private final long maxBytes;
+    private long started;
+    private long nextReport;
+    private long documents;
+    private long failedDocuments;
+    private RedisBatch.Stats stats;
+
+    private RedisBulkLoad(final int batchSize, final long maxBytes) {
+        this.batchSize = batchSize;
+        this.maxBytes = maxBytes;
+    }
+
+    static void defineProperties(final PropertyBuilder propertyBuilder) {
+        propertyBuilder.describe(BULK_LOAD_PROP, BULK_LOAD_PROP,
+                "Load keys as fast as Redis takes them: documents are sent in large batches "
+                        + "with at least one batch in flight, only failed documents are "
+                        + "written, to the error view, and one document with the number of "
+                        + "keys written, failed and per second is written at the end")
+                .type(SnapType.BOOLEAN)
+                .defaultValue(false)
+                .add();
+
+        propertyBuilder.describe(BULK_BATCH_SIZE_PROP, BULK_BATCH_SIZE_PROP,
+                "Number of documents sent in one pipeline in bulk load mode")
+                .type(SnapType.INTEGER)
+                .withMinValue(1)
+                .defaultValue(DEFAULT_BATCH_SIZE)
+                .add();
+
+        propertyBuilder.describe(BULK_BUFFER_PROP, "Bulk buffer (MB)",
+                "A bulk load batch is also sent once its keys and values take this much "
+                        + "memory. Each batch in flight holds up to this much as well")
+                .type(SnapType.INTEGER)
+                .withMinValue(1)
+                .defaultValue(DEFAULT_BUFFER_MB)
+                .add();
+    }
+
+    /**
+     * @return the bulk load settings of a snap, null if bulk load mode is off
+     */
+    static RedisBulkLoad configure(final PropertyValues propertyValues) {
+        Boolean enabled = propertyValues.get(BULK_LOAD_PROP);
+        if (enabled == null || !enabled) {
+            return null;
+        }
+        Number size = propertyValues.get(BULK_BATCH_SIZE_PROP);
+        Number buffer = propertyValues.get(BULK_BUFFER_PROP);
+        return new RedisBulkLoad(size == null ? DEFAULT_BATCH_SIZE : Math.max(1, size.intValue()),
+                (buffer == null ? DEFAULT_BUFFER_MB : buffer.longValue()) * 1024 * 1024);
+    }
+
+    /**
+     * Creates the batch of the load, the batch window and batches in flight settings still
+     * apply. The throughput is measured from here.
+     */
+    RedisBatch batch(final PropertyValues propertyValues) {
+        RedisBatch batch = RedisBatch.configure(propertyValues, batchSize, maxBytes, 1);
+        stats = batch.stats();
+        started = System.nanoTime();
+        nextReport = started + REPORT_INTERVAL_NANOS;
+        return batch;
+    }
+
+    /**
+     * @param errors writes the failed documents
+     * @return a writer that drops the results of documents that were loaded
+     */
+    RedisBatch.Writer writer(final RedisBatch.Writer errors) {
+        return new RedisBatch.Writer() {
+            @Override
+            public void write(final Document input, final Map<String, Object> data,
+                    final RuntimeException error) {
+                documents++;
+                if (error != null) {
+                    failedDocuments++;
+                    errors.write(input, null, error);
+                }
+                long now = System.nanoTime();
+                if (now >= nextReport) {
+                    nextReport = now + REPORT_INTERVAL_NANOS;
+                    LOG.info("Redis bulk load: {}", summary());
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the documents and keys loaded and failed so far and the keys loaded per second;
+     * every command counts as one key
+     */
+    Map<String, Object> summary() {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("documents", documents);
+        summary.put("failedDocuments", failedDocuments);
+        summary.put("keys", stats.succeeded());
+        summary.put("failedKeys", stats.failed());
+        summary.put("seconds", Math.round(seconds * 1000) / 1000.0);
+        summary.put("keysPerSecond", seconds > 0 ? Math.round(stats.succeeded() / seconds) : 0L);
+        return summary;
+    }
+}
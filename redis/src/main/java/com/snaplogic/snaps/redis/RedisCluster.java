@@ -0,0 +1,51 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2016, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+package com.snaplogic.snaps.redis;
+
+import java.util.Set;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisSlotBasedConnectionHandler;
+
+/**
+ * A {@link JedisCluster} that also hands out the connection of the node owning a slot, so
+ * commands can be pipelined per node instead of sent one at a time.
+ *
+ * <p>The cluster keeps one pool per node, sized by the account's pool size.</p>
+ */
+final class RedisCluster extends JedisCluster {
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    RedisCluster(final Set<HostAndPort> nodes, final int timeoutMillis, final String password,
+            final GenericObjectPoolConfig poolConfig) {
+        super(nodes, timeoutMillis, timeoutMillis, MAX_ATTEMPTS, password, poolConfig);
+    }
+
+    /**
+     * Borrows a connection to the node serving the slot. Callers must close it, which returns
+     * it to the node's pool.
+     */
+    Jedis getConnectionFromSlot(final int slot) {
+        return ((JedisSlotBasedConnectionHandler) connectionHandler).getConnectionFromSlot(slot);
+    }
+
+    /**
+     * Reloads the slot to node mapping, after a reply told us a slot has moved.
+     */
+    void renewSlotCache() {
+        connectionHandler.renewSlotCache();
+    }
+}
@@ -0,0 +1,637 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2016, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+package com.snaplogic.snaps.redis;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.snaplogic.common.SnapType;
+import com.snaplogic.common.properties.builders.PropertyBuilder;
+import com.snaplogic.snap.api.Document;
+import com.snaplogic.snap.api.ExpressionProperty;
+import com.snaplogic.snap.api.PropertyValues;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * The commands the Redis snaps can run, and how each turns the settings of a document into
+ * commands of its batch.
+ *
+ * <p>The rows of the keys table are {@code key: value} pairs. String commands use them as keys
+ * and values; the hash, list, sorted set and stream commands work on the collection key and
+ * use the rows as fields, elements or members. Replies are put into the output under the key
+ * they belong to.</p>
+ */
+enum RedisCommand {
+
+    /** {@code SET} every row, as {@code SETEX} when an expiry is given */
+    SET(true) {
+        @Override
+        void queue(final RedisBatch.Entry entry, final Request request) {
+            Rows rows = request.rows;
+            for (int i = 0; i < rows.size(); i++) {
+                entry.set(rows.key(i), request.encode(rows.value(i)), request.expirySeconds);
+            }
+            entry.put("status", "success");
+        }
+    },
+    /** {@code GET} the key of every row */
+    GET(false) {
+        @Override
+        void queue(final RedisBatch.Entry entry, final Request request) {
+            Rows rows = request.rows;
+            for (int i = 0; i < rows.size(); i++) {
+                entry.get(rows.key(i));
+            }
+        }
+    },
+    /** {@code INCRBY} the key of every row by its value */
+    INCRBY(true) {
+        @Override
+        void queue(final RedisBatch.Entry entry, final Request request) {
+            Rows rows = request.rows;
+            for (int i = 0; i < rows.size(); i++) {
+                entry.incrBy(rows.key(i), toLong(rows.value(i)));
+            }
+        }
+    },
+    /** set the fields of the hash to the values of the rows */
+    HSET(true) {
+        @Override
+        void queue(final RedisBatch.Entry entry, final Request request) {
+            entry.hset(request.collectionKey(), request.encodedRows());
+            entry.put("status", "success");
+        }
+    },
+    /** read the fields named by the rows from the hash */
+    HMGET(false) {
+        @Override
+        void queue(final RedisBatch.Entry entry, final Request request) {
+            entry.hmget(request.collectionKey(), new ArrayList<>(request.rowKeys()));
+        }
+    },
+    /** push the values of the rows onto the head of the list */
+    LPUSH(true) {
+        @Override
+        void queue(final RedisBatch.Entry entry, final Request request) {
+            Rows rows = request.rows;
+            List<byte[]> elements = new ArrayList<>(rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                elements.add(request.encode(rows.value(i)));
+            }
+            entry.lpush(request.collectionKey(), elements);
+        }
+    },
+    /** pop one element from the tail of the list */
+    RPOP(false) {
+        @Override
+        void queue(final RedisBatch.Entry entry, final Request request) {
+            entry.rpop(request.collectionKey());
+        }
+    },
+    /** add the rows to the sorted set, the row key is the member and the value its score */
+    ZADD(true) {
+        @Override
+        void queue(final RedisBatch.Entry entry, final Request request) {
+            Rows rows = request.rows;
+            Map<String, Double> members = new LinkedHashMap<>(rows.size() * 2);
+            for (int i = 0; i < rows.size(); i++) {
+                members.put(rows.key(i), toDouble(rows.value(i)));
+            }
+            entry.zadd(request.collectionKey(), members);
+        }
+    },
+    /** read the members of the sorted set between the minimum and maximum score */
+    ZRANGEBYSCORE(false) {
+        @Override
+        void queue(final RedisBatch.Entry entry, final Request request) {
+            entry.zrangeByScore(request.collectionKey(), request.minScore, request.maxScore);
+        }
+    },
+    /** append the rows as the fields of one entry to the stream */
+    XADD(true) {
+        @Override
+        void queue(final RedisBatch.Entry entry, final Request request) {
+            entry.xadd(request.collectionKey(), request.encodedRows());
+        }
+    },
+    /** read up to count entries of the stream after the start ID */
+    XREAD(false) {
+        @Override
+        void queue(final RedisBatch.Entry entry, final Request request) {
+            entry.xread(request.collectionKey(), streamId(request.startId), request.count);
+        }
+    },
+    /** run the Lua script with the script keys and arguments, atomically on the server */
+    EVALSHA(true) {
+        @Override
+        void queue(final RedisBatch.Entry entry, final Request request) {
+            entry.eval(request.script(), request.scriptKeys(), request.scriptArgs());
+        }
+    },
+    /** delete every key of the server, only run when the snap allows it */
+    FLUSH_ALL("FLUSH ALL", true) {
+        @Override
+        void queue(final RedisBatch.Entry entry, final Request request) {
+            entry.flushAll();
+            entry.put("status", "success");
+        }
+    };
+
+    static final String COLLECTION_KEY_PROP = "Collection key";
+    static final String MIN_SCORE_PROP = "Min score";
+    static final String MAX_SCORE_PROP = "Max score";
+    static final String START_ID_PROP = "Start ID";
+    static final String COUNT_PROP = "Count";
+    static final String SCRIPT_PROP = "Script";
+    static final String SCRIPT_KEYS_PROP = "Script keys";
+    static final String SCRIPT_ARGS_PROP = "Script arguments";
+    static final String ALLOW_FLUSH_ALL_PROP = "Allow FLUSH ALL";
+
+    private static final int DEFAULT_COUNT = 100;
+
+    private final String label;
+    private final boolean write;
+
+    RedisCommand(final boolean write) {
+        this.label = name();
+        this.write = write;
+    }
+
+    RedisCommand(final String label, final boolean write) {
+        this.label = label;
+        this.write = write;
+    }
+
+    /**
+     * @return the name of the command in the command property
+     */
+    String label() {
+        return label;
+    }
+
+    /**
+     * @return true if the command changes data
+     */
+    boolean isWrite() {
+        return write;
+    }
+
+    /**
+     * @param writesOnly true to leave out the commands that only read, except {@code GET}
+     * @return the command names, for the command property
+     */
+    static Set<String> names(final boolean writesOnly) {
+        Set<String> names = new LinkedHashSet<>();
+        for (RedisCommand command : values()) {
+            if (!writesOnly || command.write || command == GET) {
+                names.add(command.label);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Defines the settings the collection commands take besides the keys table.
+     *
+     * @param reads true to also define the settings of the range and stream reads
+     */
+    static void defineProperties(final PropertyBuilder propertyBuilder, final boolean reads) {
+        propertyBuilder.describe(ALLOW_FLUSH_ALL_PROP, ALLOW_FLUSH_ALL_PROP,
+                "FLUSH ALL deletes every key of the server and only runs when this is checked")
+                .type(SnapType.BOOLEAN)
+                .defaultValue(false)
+                .add();
+
+        propertyBuilder.describe(COLLECTION_KEY_PROP, COLLECTION_KEY_PROP,
+                "Key of the hash, list, sorted set or stream the command works on. The rows of "
+                        + "the keys table are its fields, elements or members")
+                .expression()
+                .add();
+
+        propertyBuilder.describe(SCRIPT_PROP, SCRIPT_PROP,
+                "Lua script run by EVALSHA. It is sent to each server once and then called by "
+                        + "its SHA1 digest")
+                .type(SnapType.STRING)
+                .add();
+
+        propertyBuilder.describe(SCRIPT_KEYS_PROP, SCRIPT_KEYS_PROP,
+                "Keys passed to the script as KEYS, a list or a single key. In a cluster they "
+                        + "must share a hash slot")
+                .expression()
+                .add();
+
+        propertyBuilder.describe(SCRIPT_ARGS_PROP, SCRIPT_ARGS_PROP,
+                "Arguments passed to the script as ARGV, a list or a single value")
+                .expression()
+                .add();
+        if (!reads) {
+            return;
+        }
+        propertyBuilder.describe(MIN_SCORE_PROP, MIN_SCORE_PROP,
+                "Lowest score read by ZRANGEBYSCORE, prefix with ( to exclude it")
+                .expression()
+                .defaultValue("-inf")
+                .add();
+
+        propertyBuilder.describe(MAX_SCORE_PROP, MAX_SCORE_PROP,
+                "Highest score read by ZRANGEBYSCORE, prefix with ( to exclude it")
+                .expression()
+                .defaultValue("+inf")
+                .add();
+
+        propertyBuilder.describe(START_ID_PROP, START_ID_PROP,
+                "XREAD returns the stream entries after this ID, 0 reads from the start")
+                .expression()
+                .defaultValue("0")
+                .add();
+
+        propertyBuilder.describe(COUNT_PROP, COUNT_PROP,
+                "Maximum number of stream entries read by XREAD")
+                .type(SnapType.INTEGER)
+                .withMinValue(1)
+                .defaultValue(DEFAULT_COUNT)
+                .add();
+    }
+
+    /**
+     * @param reads true if the range and stream read settings were defined
+     */
+    static Arguments configure(final PropertyValues propertyValues, final boolean reads) {
+        String script = propertyValues.get(SCRIPT_PROP);
+        Scripting scripting = new Scripting(
+                StringUtils.isBlank(script) ? null : new RedisScript(script),
+                propertyValues.getAsExpression(SCRIPT_KEYS_PROP),
+                propertyValues.getAsExpression(SCRIPT_ARGS_PROP));
+        if (!reads) {
+            return new Arguments(propertyValues.getAsExpression(COLLECTION_KEY_PROP), null,
+                    null, null, DEFAULT_COUNT, scripting);
+        }
+        Number count = propertyValues.get(COUNT_PROP);
+        return new Arguments(propertyValues.getAsExpression(COLLECTION_KEY_PROP),
+                propertyValues.getAsExpression(MIN_SCORE_PROP),
+                propertyValues.getAsExpression(MAX_SCORE_PROP),
+                propertyValues.getAsExpression(START_ID_PROP),
+                count == null ? DEFAULT_COUNT : count.intValue(), scripting);
+    }
+
+    /**
+     * @param writesOnly true if only the commands of {@link #names(boolean) names(true)} are
+     *                   allowed
+     * @throws IllegalArgumentException if there is no such command
+     */
+    static RedisCommand of(final String name, final boolean writesOnly) {
+        String command = name == null ? "" : name.trim().toUpperCase();
+        if (names(writesOnly).contains(command)) {
+            for (RedisCommand redisCommand : values()) {
+                if (redisCommand.label.equals(command)) {
+                    return redisCommand;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unsupported Redis command: " + name);
+    }
+
+    /**
+     * @return false for {@code FLUSH ALL} unless the snap explicitly allows it
+     */
+    static boolean isAllowed(final RedisCommand command, final PropertyValues propertyValues) {
+        if (command != FLUSH_ALL) {
+            return true;
+        }
+        Boolean allowed = propertyValues.get(ALLOW_FLUSH_ALL_PROP);
+        return allowed != null && allowed;
+    }
+
+    /**
+     * Queues the commands for one document.
+     *
+     * @throws IllegalArgumentException if the document's settings do not fit the command
+     */
+    abstract void queue(RedisBatch.Entry entry, Request request);
+
+    /**
+     * Completes a stream ID to {@code ms-seq}, as {@code XREAD} reads an ID given in
+     * milliseconds only: {@code 1526985054069} starts after {@code 1526985054069-0}.
+     *
+     * @param id the ID, blank for the start of the stream
+     * @throws IllegalArgumentException if the ID is not a stream ID, e.g. {@code $}
+     */
+    static String streamId(final String id) {
+        String trimmed = id == null ? "" : id.trim();
+        if (trimmed.isEmpty()) {
+            return "0-0";
+        }
+        if ("$".equals(trimmed)) {
+            throw new IllegalArgumentException("XREAD cannot start at $, only after a stream "
+                    + "ID such as 0 or 1526985054069-0");
+        }
+        if (!trimmed.matches("\\d+(-\\d+)?")) {
+            throw new IllegalArgumentException("Invalid stream ID: " + id);
+        }
+        int separator = trimmed.indexOf('-');
+        try {
+            long milliseconds = Long.parseUnsignedLong(separator < 0 ? trimmed
+                    : trimmed.substring(0, separator));
+            long sequence = separator < 0 ? 0
+                    : Long.parseUnsignedLong(trimmed.substring(separator + 1));
+            return Long.toUnsignedString(milliseconds) + "-" + Long.toUnsignedString(sequence);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid stream ID: " + id, e);
+        }
+    }
+
+    private static long toLong(final Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return Long.parseLong(String.valueOf(value).trim());
+    }
+
+    private static double toDouble(final Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return Double.parseDouble(String.valueOf(value).trim());
+    }
+
+    /**
+     * The collection command settings of a snap, evaluated per document.
+     */
+    static final class Arguments {
+        private final ExpressionProperty collectionKey;
+        private final ExpressionProperty minScore;
+        private final ExpressionProperty maxScore;
+        private final ExpressionProperty startId;
+        private final int count;
+        private final Scripting scripting;
+
+        private Arguments(final ExpressionProperty collectionKey,
+                final ExpressionProperty minScore, final ExpressionProperty maxScore,
+                final ExpressionProperty startId, final int count, final Scripting scripting) {
+            this.collectionKey = collectionKey;
+            this.minScore = minScore;
+            this.maxScore = maxScore;
+            this.startId = startId;
+            this.count = count;
+            this.scripting = scripting;
+        }
+
+        /**
+         * @param rows          the evaluated rows of the keys table
+         * @param expirySeconds expiry of keys set by {@code SET}, -1 for none
+         */
+        Request evaluate(final Document document, final RedisValueCodec codec,
+                final Rows rows, final int expirySeconds) {
+            Request request = new Request(codec, rows, eval(collectionKey, document, null),
+                    expirySeconds, eval(minScore, document, "-inf"),
+                    eval(maxScore, document, "+inf"), eval(startId, document, "0"), count);
+            if (scripting.script != null) {
+                request.script = scripting.script;
+                request.scriptKeys = evalList(scripting.keys, document);
+                request.scriptArgs = evalList(scripting.args, document);
+            }
+            return request;
+        }
+
+        private static List<?> evalList(final ExpressionProperty expression,
+                final Document document) {
+            Object value = expression == null ? null : expression.eval(document);
+            if (value == null) {
+                return Collections.emptyList();
+            }
+            return value instanceof List ? (List<?>) value : Collections.singletonList(value);
+        }
+
+        private static String eval(final ExpressionProperty expression,
+                final Document document, final String defaultValue) {
+            Object value = expression == null ? null : expression.eval(document);
+            return value == null ? defaultValue : value.toString();
+        }
+    }
+
+    /**
+     * The key and value expressions of the keys table, resolved once when the snap is
+     * configured so a document only evaluates them.
+     */
+    static final class Table {
+        private final ExpressionProperty[] keys;
+        private final ExpressionProperty[] values;
+
+        private Table(final ExpressionProperty[] keys, final ExpressionProperty[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        /**
+         * @param valueProp the value column, null if the table only has keys
+         */
+        static Table compile(final PropertyValues propertyValues, final String tableProp,
+                final String keyProp, final String valueProp) {
+            List<Map<String, Object>> table = propertyValues.getAsExpression(tableProp)
+                    .eval(null);
+            int size = table == null ? 0 : table.size();
+            ExpressionProperty[] keys = new ExpressionProperty[size];
+            ExpressionProperty[] values = new ExpressionProperty[size];
+            for (int i = 0; i < size; i++) {
+                Map<String, Object> row = table.get(i);
+                keys[i] = propertyValues.getExpressionPropertyFor(row, keyProp);
+                if (valueProp != null) {
+                    values[i] = propertyValues.getExpressionPropertyFor(row, valueProp);
+                }
+            }
+            return new Table(keys, values);
+        }
+
+        Rows evaluate(final Document document) {
+            String[] rowKeys = new String[keys.length];
+            Object[] rowValues = new Object[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                rowKeys[i] = keys[i].eval(document);
+                if (values[i] != null) {
+                    rowValues[i] = values[i].eval(document);
+                }
+            }
+            return new Rows(rowKeys, rowValues);
+        }
+    }
+
+    /**
+     * The evaluated rows of the keys table of one document.
+     */
+    static final class Rows {
+        private final String[] keys;
+        private final Object[] values;
+
+        Rows(final String[] keys, final Object[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        int size() {
+            return keys.length;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the key evaluated to null
+         */
+        String key(final int row) {
+            String key = keys[row];
+            if (key == null) {
+                throw new IllegalArgumentException("Key is missing");
+            }
+            return key;
+        }
+
+        Object value(final int row) {
+            return values[row];
+        }
+
+        /**
+         * @return the keys of all rows
+         * @throws IllegalArgumentException if a key evaluated to null
+         */
+        List<String> keys() {
+            for (int i = 0; i < keys.length; i++) {
+                key(i);
+            }
+            return Arrays.asList(keys);
+        }
+    }
+
+    /**
+     * The script of a snap and the expressions of its keys and arguments.
+     */
+    private static final class Scripting {
+        private final RedisScript script;
+        private final ExpressionProperty keys;
+        private final ExpressionProperty args;
+
+        private Scripting(final RedisScript script, final ExpressionProperty keys,
+                final ExpressionProperty args) {
+            this.script = script;
+            this.keys = keys;
+            this.args = args;
+        }
+    }
+
+    /**
+     * The evaluated settings of one document.
+     */
+    static final class Request {
+        private final RedisValueCodec codec;
+        private final Rows rows;
+        private final String collectionKey;
+        private final int expirySeconds;
+        private final String minScore;
+        private final String maxScore;
+        private final String startId;
+        private final int count;
+        private RedisScript script;
+        private List<?> scriptKeys = Collections.emptyList();
+        private List<?> scriptArgs = Collections.emptyList();
+
+        /**
+         * @param codec         encodes the values that are stored
+         * @param rows          the rows of the keys table
+         * @param collectionKey the key of the hash, list, sorted set or stream
+         * @param expirySeconds expiry of keys set by {@code SET}, -1 for none
+         * @param minScore      lowest score read by {@code ZRANGEBYSCORE}
+         * @param maxScore      highest score read by {@code ZRANGEBYSCORE}
+         * @param startId       stream ID after which {@code XREAD} starts
+         * @param count         maximum number of stream entries read by {@code XREAD}
+         */
+        Request(final RedisValueCodec codec, final Rows rows,
+                final String collectionKey, final int expirySeconds, final String minScore,
+                final String maxScore, final String startId, final int count) {
+            this.codec = codec;
+            this.rows = rows;
+            this.collectionKey = collectionKey;
+            this.expirySeconds = expirySeconds;
+            this.minScore = minScore;
+            this.maxScore = maxScore;
+            this.startId = startId;
+            this.count = count;
+        }
+
+        private String collectionKey() {
+            if (collectionKey == null || collectionKey.isEmpty()) {
+                throw new IllegalArgumentException("Collection key is required");
+            }
+            return collectionKey;
+        }
+
+        private RedisScript script() {
+            if (script == null) {
+                throw new IllegalArgumentException("Script is required");
+            }
+            return script;
+        }
+
+        private List<String> scriptKeys() {
+            List<String> keys = new ArrayList<>(scriptKeys.size());
+            for (Object key : scriptKeys) {
+                if (key == null) {
+                    throw new IllegalArgumentException("Script key is missing");
+                }
+                keys.add(key.toString());
+            }
+            return keys;
+        }
+
+        /**
+         * Scripts get their arguments as text, so numbers arrive as Lua can convert them.
+         */
+        private List<byte[]> scriptArgs() {
+            List<byte[]> args = new ArrayList<>(scriptArgs.size());
+            for (Object arg : scriptArgs) {
+                if (arg == null) {
+                    throw new IllegalArgumentException("Script argument is missing");
+                }
+                args.add(SafeEncoder.encode(arg instanceof BigDecimal
+                        ? ((BigDecimal) arg).toPlainString() : arg.toString()));
+            }
+            return args;
+        }
+
+        private Set<String> rowKeys() {
+            Set<String> keys = new LinkedHashSet<>(rows.size() * 2);
+            for (int i = 0; i < rows.size(); i++) {
+                keys.add(rows.key(i));
+            }
+            return keys;
+        }
+
+        private Map<String, byte[]> encodedRows() {
+            Map<String, byte[]> encoded = new LinkedHashMap<>(rows.size() * 2);
+            for (int i = 0; i < rows.size(); i++) {
+                encoded.put(rows.key(i), encode(rows.value(i)));
+            }
+            return encoded;
+        }
+
+        private byte[] encode(final Object value) {
+            if (value == null) {
+                throw new IllegalArgumentException("Value is missing");
+            }
+            return codec.encode(value);
+        }
+    }
+}
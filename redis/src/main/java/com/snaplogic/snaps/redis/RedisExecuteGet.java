@@ -14,6 +14,7 @@ import java.math.BigInteger;
 import com.google.inject.Inject;
 import com.snaplogic.account.api.capabilities.Accounts;
 import com.snaplogic.api.ConfigurationException;
+import com.snaplogic.api.ExecutionException;
 import com.snaplogic.common.SnapType;
 import com.snaplogic.common.properties.SnapProperty;
 import com.snaplogic.common.properties.builders.PropertyBuilder;
@@ -30,7 +31,6 @@ import com.snaplogic.snap.api.capabilities.Outputs;
 import com.snaplogic.snap.api.capabilities.Version;
 import com.snaplogic.snap.api.capabilities.ViewType;
 
-import redis.clients.jedis.Jedis;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -71,6 +71,10 @@ public class RedisExecuteGet extends SimpleSnap {
     String command;    
     List<String> keys = new ArrayList<String>();    
     private PropertyValues propertyValues;
+    private RedisCommand.Table table;
+    private RedisBatch batch;
+    private RedisNearCache.Config nearCacheConfig;
+    private RedisNearCache nearCache;
     
     @Inject
     private RedisAccount snapAccount;
@@ -98,59 +102,78 @@ public class RedisExecuteGet extends SimpleSnap {
         .type(SnapType.TABLE)
         .withEntry(keyName)
         .add();
-       
-         
+
+        RedisBatch.defineProperties(propertyBuilder);
+        RedisNearCache.defineProperties(propertyBuilder);
     }
 
     @Override
     public void configure(PropertyValues propertyValues) throws ConfigurationException {
     	this.propertyValues = propertyValues;
+        // resolve the key expressions once, only their evaluation happens per document
+        table = RedisCommand.Table.compile(propertyValues, KEYS_TABLE_PROP, KEY_NAME_PROP, null);
+        command = propertyValues.get(REDIS_COMMAND_PROP);
+        batch = RedisBatch.configure(propertyValues);
+        nearCacheConfig = RedisNearCache.configure(propertyValues);
     }
     
    
      
-    protected List<String> buildTable(final PropertyValues propertyValues,
-            Document document) {
-    	
-        // a List of Maps to represent the evaluated property values in a table
-        List<String> table = new ArrayList<String>();
-
-        // get the table property as an expression
-        List<String> tableProp = propertyValues.getAsExpression(KEYS_TABLE_PROP).eval(document);
-
-        // for each row of the props in a table, get the child properties as an expression
-        
-        for(int i =0;i<tableProp.size();i++){
-        	LOG.info("tablePropRaw = " + tableProp.get(i));
-        	String cacheKey = propertyValues.getAsExpression(tableProp.get(i)).eval(document);
-        	LOG.info("cacheKey = " + cacheKey);
-        	table.add(cacheKey);
-            
+    @Override
+    protected void process(Document document, String inputViewName) {
+        // one MGET for all keys of the document, pipelined with the rest of the batch
+        RedisBatch.Entry batchEntry = batch.add(document);
+        try {
+            keys = table.evaluate(document).keys();
+            if (nearCacheConfig == null) {
+                batchEntry.mget(keys);
+            } else {
+                if (nearCache == null) {
+                    nearCache = nearCacheConfig.forAccount(snapAccount.settings());
+                }
+                Map<String, Object> cached = new LinkedHashMap<>();
+                List<String> missing = nearCache.lookup(keys, cached);
+                for (Map.Entry<String, Object> value : cached.entrySet()) {
+                    batchEntry.put(value.getKey(), value.getValue());
+                }
+                batchEntry.mget(missing, nearCache);
+            }
+        } catch (IllegalArgumentException e) {
+            batchEntry.fail(e);
+        }
+        if (batch.isReady()) {
+            flush();
         }
-		return table;
-                   
     }
 
     @Override
-    protected void process(Document document, String inputViewName) {
-        // get a connection to redis host
-    	Jedis redisConn = snapAccount.connect();
-        // get list of key:value pairs
-        keys = buildTable(propertyValues, document);
-        // create a map that holds snap outputview data        
-        Map<String, String> data = new LinkedHashMap<>();
- 
-        command = propertyValues.getAsExpression(REDIS_COMMAND_PROP).eval(document);
-        for (int j = 0; j<getTable().size();j++) {
-        	        LOG.info("Inside GET");
-        	        data.put(getTable().get(j),redisConn.get(getTable().get(j)));
-        	        LOG.info("Inside GET" + data);
-        	        }
-        
-        // do something with the token
-
-        outputViews.write(documentUtility.newDocument(data),document);
+    public void execute() throws ExecutionException {
+        super.execute();
+        // the last batch is usually not full, and earlier ones may still be in flight
+        batch.finish(snapAccount, writer());
+    }
+
+    private void flush() {
+        batch.flush(snapAccount, writer());
+    }
+
+    private RedisBatch.Writer writer() {
+        return RedisBatch.toViews(outputViews, errorViews, documentUtility);
+    }
+
+    @Override
+    public void cleanup() throws ExecutionException {
+        if (batch != null) {
+            batch.close();
         }
+        // lets the shared pools of an edited account be closed
+        if (snapAccount != null) {
+            snapAccount.disconnect();
+        }
+        if (nearCache != null) {
+            LOG.info("Redis near cache: {}", nearCache.stats());
+        }
+    }
     
     
     public List<String> getTable() {
@@ -162,4 +185,4 @@ public class RedisExecuteGet extends SimpleSnap {
 	}
 
 	
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -14,11 +14,13 @@ import java.math.BigInteger;
 import com.google.inject.Inject;
 import com.snaplogic.account.api.capabilities.Accounts;
 import com.snaplogic.api.ConfigurationException;
+import com.snaplogic.api.ExecutionException;
 import com.snaplogic.common.SnapType;
 import com.snaplogic.common.properties.SnapProperty;
 import com.snaplogic.common.properties.builders.PropertyBuilder;
 import com.snaplogic.snap.api.Document;
 import com.snaplogic.snap.api.DocumentUtility;
+import com.snaplogic.snap.api.ExpressionProperty;
 import com.snaplogic.snap.api.PropertyValues;
 import com.snaplogic.snap.api.SimpleSnap;
 import com.snaplogic.snap.api.SnapCategory;
@@ -30,14 +32,8 @@ import com.snaplogic.snap.api.capabilities.Outputs;
 import com.snaplogic.snap.api.capabilities.Version;
 import com.snaplogic.snap.api.capabilities.ViewType;
 
-import redis.clients.jedis.Jedis;
 
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -72,8 +68,14 @@ public class RedisExecuteSet extends SimpleSnap {
     
     String command;
     String keyexpiry;
-    List<Map<String, Object>> keytable;    
     private PropertyValues propertyValues;
+    private RedisBatch batch;
+    private RedisValueCodec codec;
+    private RedisCommand redisCommand;
+    private RedisCommand.Arguments arguments;
+    private RedisCommand.Table table;
+    private ExpressionProperty expiryExpression;
+    private RedisBulkLoad bulkLoad;
     
     @Inject
     private RedisAccount snapAccount;
@@ -87,7 +89,7 @@ public class RedisExecuteSet extends SimpleSnap {
        propertyBuilder.describe(REDIS_COMMAND_PROP, REDIS_COMMAND_PROP,
                 "Select redis command to run")
                 .required()
-                .type(SnapType.STRING).withAllowedValues(new HashSet<String>( Arrays.asList("SET","GET","FLUSH ALL")))
+                .type(SnapType.STRING).withAllowedValues(RedisCommand.names(true))
                 .defaultValue("SET")
                 .add();
        final SnapProperty keyName = propertyBuilder
@@ -117,95 +119,93 @@ public class RedisExecuteSet extends SimpleSnap {
                 .type(SnapType.STRING)
                 .defaultValue("-1")
                 .add();
-       
-        
+
+        RedisCommand.defineProperties(propertyBuilder, false);
+        RedisValueCodec.defineProperties(propertyBuilder);
+        RedisBatch.defineProperties(propertyBuilder);
+        RedisBulkLoad.defineProperties(propertyBuilder);
     }
 
     @Override
     public void configure(PropertyValues propertyValues) throws ConfigurationException {
     	this.propertyValues = propertyValues;
+    	command = propertyValues.get(REDIS_COMMAND_PROP);
+    	try {
+    	    redisCommand = RedisCommand.of(command, true);
+    	} catch (IllegalArgumentException e) {
+    	    throw new ConfigurationException(e, e.getMessage())
+    	            .withResolution("Please select one of " + RedisCommand.names(true));
+    	}
+    	if (!RedisCommand.isAllowed(redisCommand, propertyValues)) {
+    	    throw new ConfigurationException("FLUSH ALL deletes every key of the server")
+    	            .withResolution("Please check " + RedisCommand.ALLOW_FLUSH_ALL_PROP
+    	                    + " to run it.");
+    	}
+    	arguments = RedisCommand.configure(propertyValues, false);
+    	// resolve the expressions once, only their evaluation happens per document
+    	table = RedisCommand.Table.compile(propertyValues, KEYS_TABLE_PROP, KEY_NAME_PROP,
+    	        KEY_VALUE_PROP);
+    	expiryExpression = propertyValues.getAsExpression(KEY_EXPIRY_PROP);
+    	bulkLoad = RedisBulkLoad.configure(propertyValues);
+    	batch = bulkLoad == null ? RedisBatch.configure(propertyValues)
+    	        : bulkLoad.batch(propertyValues);
+    	codec = RedisValueCodec.configure(propertyValues);
     }
     
    
      
-    protected List<Map<String, Object>> buildTable(final PropertyValues propertyValues,
-            Document document) {
-    	
-        // a List of Maps to represent the evaluated property values in a table
-        List<Map<String, Object>> table = new ArrayList<>();
-
-        // get the table property as an expression
-        List<Map<String, Object>> tableProp = propertyValues.getAsExpression(KEYS_TABLE_PROP).eval(document);
-
-        // for each row of the props in a table, get the child properties as an expression
-        for (Map<String, Object> aRow : tableProp) {
-            Map<String, Object> row = new LinkedHashMap<>();
-
-            String cacheKey = propertyValues.getExpressionPropertyFor(aRow, KEY_NAME_PROP).eval(document);
-            String cacheKeyValue = propertyValues.getExpressionPropertyFor(aRow, KEY_VALUE_PROP).eval(document);
-
-            LOG.info("cacheKey = " + cacheKey);
-            LOG.info("cacheKeyValue = " + cacheKeyValue);
-            
-            row.put(cacheKey,cacheKeyValue);
-            table.add(row);
+    @Override
+    protected void process(Document document, String inputViewName) {
+        // collects the commands of this document, the output is written once its batch ran
+        RedisBatch.Entry batchEntry = batch.add(document);
+ 
+        keyexpiry = expiryExpression.eval(document);
+        try {
+            int expiry = keyexpiry.equals("-1") ? -1 : Integer.parseInt(keyexpiry);
+            redisCommand.queue(batchEntry,
+                    arguments.evaluate(document, codec, table.evaluate(document), expiry));
+        } catch (IllegalArgumentException e) {
+            batchEntry.fail(e);
         }
 
-        return table;
+        if (batch.isReady()) {
+            flush();
+        }
     }
 
     @Override
-    protected void process(Document document, String inputViewName) {
-        // get a connection to redis host
-    	Jedis redisConn = snapAccount.connect();
-        // get list of key:value pairs
-        keytable = buildTable(propertyValues, document);
-        // create a map that holds snap outputview data        
-        Map<String, Object> data = new LinkedHashMap<>();
- 
-        command = propertyValues.getAsExpression(REDIS_COMMAND_PROP).eval(document);
-        keyexpiry = propertyValues.getAsExpression(KEY_EXPIRY_PROP).eval(document);
-        
-        if(command.equals("SET")){        	
-        	for (Map<String, Object> map : getTable()) {
-        	    for (Map.Entry<String, Object> entry : map.entrySet()) {
-        	        String key = entry.getKey();
-        	        Object value = entry.getValue();
-        	        LOG.info("Key = " + key);
-                    LOG.info("Value = " + value.toString());                            
-        	        redisConn.set(key, value.toString());
-            			if(!keyexpiry.equals("-1"))	redisConn.expire(key, Integer.parseInt(keyexpiry));    
-        	    }
-        	}
-        	data.put("status", "success");
-        }
-        else if(command.equals("GET")){
-        	for (Map<String, Object> map : getTable()) {
-        	    for (Map.Entry<String, Object> entry : map.entrySet()) {
-        	    	String key = entry.getKey();
-        	        LOG.info("Inside GET");
-        	        LOG.info("Key = " + key);
-        	        
-        	        data.put(key,redisConn.get(key));
-        	        LOG.info("Value = " + redisConn.get(key));
-        	        }
-        	    }
-        	}
-        else{
-        	redisConn.flushAll();        
-        	data.put("status","success");
+    public void execute() throws ExecutionException {
+        super.execute();
+        // the last batch is usually not full, and earlier ones may still be in flight
+        batch.finish(snapAccount, writer());
+        if (bulkLoad != null) {
+            Map<String, Object> summary = bulkLoad.summary();
+            LOG.info("Redis bulk load done: {}", summary);
+            outputViews.write(documentUtility.newDocument(summary));
         }
+    }
 
-        // do something with the token
+    private void flush() {
+        batch.flush(snapAccount, writer());
+    }
+
+    private RedisBatch.Writer writer() {
+        RedisBatch.Writer views = RedisBatch.toViews(outputViews, errorViews, documentUtility);
+        return bulkLoad == null ? views : bulkLoad.writer(views);
+    }
 
-        outputViews.write(documentUtility.newDocument(data),document);
+    @Override
+    public void cleanup() throws ExecutionException {
+        if (batch != null) {
+            batch.close();
+        }
+        // lets the shared pools of an edited account be closed
+        if (snapAccount != null) {
+            snapAccount.disconnect();
+        }
     }
     
     
-    public List<Map<String, Object>> getTable() {
-        return keytable;
-    }
-
 	public String getCommand() {
 		return command;
 	}
@@ -213,4 +213,4 @@ public class RedisExecuteSet extends SimpleSnap {
 	public String getKeyexpiry() {
 		return keyexpiry;
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,336 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2016, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+package com.snaplogic.snaps.redis;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.snaplogic.common.SnapType;
+import com.snaplogic.common.properties.builders.PropertyBuilder;
+import com.snaplogic.snap.api.PropertyValues;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+/**
+ * Latency, pool and throughput metrics of the Redis snaps.
+ *
+ * <p>Every account has node-wide metrics, registered with JMX, which the metrics of each snap
+ * run add to; a snap logs its own when it is done. Commands sent in one pipeline all take the
+ * round trip of the pipeline, the wait for a pooled connection is counted apart from it. Bytes
+ * are those of the keys, values and replies, without the protocol around them.</p>
+ */
+final class RedisMetrics implements RedisMetricsMXBean {
+
+    static final String ADD_METRICS_PROP = "Add metrics";
+
+    /** the output field with the metrics of the pipeline a document was sent in */
+    static final String METRICS_FIELD = "redisMetrics";
+
+    private static final String OBJECT_NAME = "com.snaplogic.snaps.redis:type=RedisMetrics,name=";
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p99", "p999"};
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisMetrics.class);
+    private static final ConcurrentMap<RedisPools.Settings, RedisMetrics> METRICS =
+            new ConcurrentHashMap<>();
+
+    private final RedisPools.Settings settings;
+    private final RedisMetrics parent;
+    private final ConcurrentMap<String, CommandMetrics> commands = new ConcurrentHashMap<>();
+    // in microseconds
+    private final RedisHistogram poolWait = new RedisHistogram();
+    // documents and commands per pipeline
+    private final RedisHistogram batchDocuments = new RedisHistogram();
+    private final RedisHistogram batchCommands = new RedisHistogram();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private volatile boolean registered;
+
+    private RedisMetrics(final RedisPools.Settings settings, final RedisMetrics parent) {
+        this.settings = settings;
+        this.parent = parent;
+    }
+
+    static void defineProperties(final PropertyBuilder propertyBuilder) {
+        propertyBuilder.describe(ADD_METRICS_PROP, ADD_METRICS_PROP,
+                "Add the number of documents, the round trip and the wait for a connection of "
+                        + "the pipeline each document was sent in to its output, as "
+                        + METRICS_FIELD)
+                .type(SnapType.BOOLEAN)
+                .defaultValue(false)
+                .add();
+    }
+
+    /**
+     * @return true if the metrics of its pipeline go into the output of each document
+     */
+    static boolean isAdded(final PropertyValues propertyValues) {
+        Boolean added = propertyValues.get(ADD_METRICS_PROP);
+        return added != null && added;
+    }
+
+    /**
+     * @return the node-wide metrics of the account, created and registered with JMX on first
+     * use
+     */
+    static RedisMetrics forAccount(final RedisPools.Settings settings) {
+        RedisMetrics metrics = METRICS.get(settings);
+        if (metrics == null) {
+            RedisMetrics created = new RedisMetrics(settings, null);
+            metrics = METRICS.putIfAbsent(settings, created);
+            if (metrics == null) {
+                metrics = created;
+                register(created);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Drops the node-wide metrics of the settings and unregisters them from JMX, once no
+     * account uses them any more.
+     */
+    static void evict(final RedisPools.Settings settings) {
+        RedisMetrics metrics = METRICS.remove(settings);
+        if (metrics != null && metrics.registered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metrics.objectName());
+            } catch (JMException e) {
+                LOG.debug("Failed to unregister Redis metrics of {} from JMX", settings, e);
+            }
+        }
+    }
+
+    /**
+     * @return metrics of one snap run, which also count in these
+     */
+    RedisMetrics forSnap() {
+        return new RedisMetrics(settings, this);
+    }
+
+    void poolWait(final long nanos) {
+        poolWait.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        if (parent != null) {
+            parent.poolWait(nanos);
+        }
+    }
+
+    /**
+     * @param name           the Redis command
+     * @param roundTripNanos the round trip of the pipeline it was sent in
+     * @param replyBytes     the bytes of its reply
+     */
+    void command(final String name, final long roundTripNanos, final long replyBytes,
+            final boolean failed) {
+        CommandMetrics metrics = commands.get(name);
+        if (metrics == null) {
+            CommandMetrics created = new CommandMetrics();
+            metrics = commands.putIfAbsent(name, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        metrics.latency.record(TimeUnit.NANOSECONDS.toMicros(roundTripNanos));
+        if (failed) {
+            metrics.failed.incrementAndGet();
+        }
+        bytesIn.addAndGet(replyBytes);
+        if (parent != null) {
+            parent.command(name, roundTripNanos, replyBytes, failed);
+        }
+    }
+
+    /**
+     * @param bytes the bytes of the keys and values sent
+     */
+    void batch(final int documents, final int commandCount, final long bytes) {
+        batchDocuments.record(documents);
+        batchCommands.record(commandCount);
+        bytesOut.addAndGet(bytes);
+        if (parent != null) {
+            parent.batch(documents, commandCount, bytes);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCommands() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, CommandMetrics> command : commands.entrySet()) {
+            counts.put(command.getKey(), command.getValue().latency.count());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getFailedCommands() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, CommandMetrics> command : commands.entrySet()) {
+            counts.put(command.getKey(), command.getValue().failed.get());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMillis() {
+        Map<String, Double> latencies = new TreeMap<>();
+        for (Map.Entry<String, CommandMetrics> command : commands.entrySet()) {
+            RedisHistogram latency = command.getValue().latency;
+            for (int i = 0; i < QUANTILES.length; i++) {
+                latencies.put(command.getKey() + " " + QUANTILE_NAMES[i],
+                        millis(latency.percentile(QUANTILES[i])));
+            }
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Double> getPoolWaitMillis() {
+        Map<String, Double> waits = new TreeMap<>();
+        for (int i = 0; i < QUANTILES.length; i++) {
+            waits.put(QUANTILE_NAMES[i], millis(poolWait.percentile(QUANTILES[i])));
+        }
+        waits.put("max", millis(poolWait.max()));
+        return waits;
+    }
+
+    @Override
+    public int getPoolActive() {
+        int active = 0;
+        for (Pool<Jedis> pool : pools()) {
+            active += pool.getNumActive();
+        }
+        return active;
+    }
+
+    @Override
+    public int getPoolIdle() {
+        int idle = 0;
+        for (Pool<Jedis> pool : pools()) {
+            idle += pool.getNumIdle();
+        }
+        return idle;
+    }
+
+    @Override
+    public int getPoolWaiters() {
+        int waiters = 0;
+        for (Pool<Jedis> pool : pools()) {
+            waiters += pool.getNumWaiters();
+        }
+        return waiters;
+    }
+
+    @Override
+    public Map<String, Long> getBatchSizes() {
+        Map<String, Long> sizes = new TreeMap<>();
+        sizes.put("documents p50", batchDocuments.percentile(0.5));
+        sizes.put("documents p99", batchDocuments.percentile(0.99));
+        sizes.put("documents max", batchDocuments.max());
+        sizes.put("commands p50", batchCommands.percentile(0.5));
+        sizes.put("commands p99", batchCommands.percentile(0.99));
+        sizes.put("commands max", batchCommands.max());
+        return sizes;
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    @Override
+    public void reset() {
+        commands.clear();
+        poolWait.reset();
+        batchDocuments.reset();
+        batchCommands.reset();
+        bytesOut.set(0);
+        bytesIn.set(0);
+    }
+
+    /**
+     * @return the metrics in one line, for the log
+     */
+    @Override
+    public String toString() {
+        return String.format("commands=%s, failed=%s, latencyMillis=%s, poolWaitMillis=%s, "
+                + "pool active=%d, idle=%d, waiters=%d, batchSizes=%s, bytesOut=%d, bytesIn=%d",
+                getCommands(), getFailedCommands(), getLatencyMillis(), getPoolWaitMillis(),
+                getPoolActive(), getPoolIdle(), getPoolWaiters(), getBatchSizes(),
+                getBytesOut(), getBytesIn());
+    }
+
+    /**
+     * @return the bytes of a reply, strings and nested lists of them
+     */
+    static long sizeOf(final Object reply) {
+        if (reply instanceof byte[]) {
+            return ((byte[]) reply).length;
+        }
+        if (reply instanceof List) {
+            long size = 0;
+            for (Object value : (List<?>) reply) {
+                size += sizeOf(value);
+            }
+            return size;
+        }
+        if (reply instanceof String) {
+            return ((String) reply).length();
+        }
+        return reply == null ? 0 : Long.SIZE / Byte.SIZE;
+    }
+
+    static double millis(final long micros) {
+        return micros / 1000.0;
+    }
+
+    private List<Pool<Jedis>> pools() {
+        return RedisPools.existing(settings);
+    }
+
+    private ObjectName objectName() throws JMException {
+        return new ObjectName(OBJECT_NAME + ObjectName.quote(settings.toString()));
+    }
+
+    private static void register(final RedisMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    metrics.objectName());
+            metrics.registered = true;
+        } catch (JMException e) {
+            // e.g. another account for the same servers with a different pool size
+            LOG.debug("Failed to register Redis metrics of {} with JMX", metrics.settings, e);
+        }
+    }
+
+    private static final class CommandMetrics {
+        // in microseconds, its count is the number of commands
+        private final RedisHistogram latency = new RedisHistogram();
+        private final AtomicLong failed = new AtomicLong();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2016, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+package com.snaplogic.snaps.redis;
+
+import java.util.Map;
+
+/**
+ * The metrics of the Redis snaps using one account, as registered with JMX under
+ * {@code com.snaplogic.snaps.redis:type=RedisMetrics}.
+ *
+ * <p>Latencies are in milliseconds and cover the round trip of the pipeline a command was sent
+ * in, without waiting for a connection. A command slow in all snaps while the pool wait is low
+ * points at the network or the server, a high pool wait at too few connections.</p>
+ */
+public interface RedisMetricsMXBean {
+
+    /**
+     * @return the number of commands sent, by command
+     */
+    Map<String, Long> getCommands();
+
+    /**
+     * @return the number of commands that failed, by command
+     */
+    Map<String, Long> getFailedCommands();
+
+    /**
+     * @return the p50, p99 and p999 round trip of every command, e.g. {@code GET p99}
+     */
+    Map<String, Double> getLatencyMillis();
+
+    /**
+     * @return the p50, p99, p999 and max wait for a pooled connection
+     */
+    Map<String, Double> getPoolWaitMillis();
+
+    /**
+     * @return the connections in use, summed over the nodes of a cluster
+     */
+    int getPoolActive();
+
+    /**
+     * @return the idle pooled connections, summed over the nodes of a cluster
+     */
+    int getPoolIdle();
+
+    /**
+     * @return the threads waiting for a connection, summed over the nodes of a cluster
+     */
+    int getPoolWaiters();
+
+    /**
+     * @return the p50, p99 and max of the documents and of the commands per pipeline
+     */
+    Map<String, Long> getBatchSizes();
+
+    /**
+     * @return the bytes of keys and values sent
+     */
+    long getBytesOut();
+
+    /**
+     * @return the bytes of the values received
+     */
+    long getBytesIn();
+
+    /**
+     * Starts counting from zero, e.g. before measuring a pipeline run.
+     */
+    void reset();
+}
@@ -0,0 +1,283 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2016, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+package com.snaplogic.snaps.redis;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.snaplogic.common.SnapType;
+import com.snaplogic.common.properties.builders.PropertyBuilder;
+import com.snaplogic.snap.api.PropertyValues;
+
+/**
+ * In-process cache of the values read from Redis, shared by all snaps on a node that use the
+ * same account and cache settings.
+ *
+ * <p>The cache holds at most the configured number of entries and an estimated number of bytes
+ * and evicts the least recently used entries beyond that. Entries expire after the TTL, which
+ * bounds how stale a value can be; writes made by other clients are not seen before that.
+ * Missing keys are cached as well.</p>
+ */
+final class RedisNearCache {
+
+    static final String NEAR_CACHE_ENTRIES_PROP = "Near cache entries";
+    static final String NEAR_CACHE_MEMORY_PROP = "Near cache memory";
+    static final String NEAR_CACHE_TTL_PROP = "Near cache TTL";
+
+    private static final int DEFAULT_MEMORY_MB = 64;
+    private static final int DEFAULT_TTL_SECONDS = 60;
+    // rough per entry cost of the map entry, the holder and the two string headers
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private static final ConcurrentMap<Scope, RedisNearCache> CACHES = new ConcurrentHashMap<>();
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Value> values = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    RedisNearCache(final int maxEntries, final long maxBytes, final long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    static void defineProperties(final PropertyBuilder propertyBuilder) {
+        propertyBuilder.describe(NEAR_CACHE_ENTRIES_PROP, NEAR_CACHE_ENTRIES_PROP,
+                "Number of values kept in memory and shared by the snaps on a node using this "
+                        + "account, so repeated keys are not read from Redis again. 0 disables "
+                        + "the cache")
+                .type(SnapType.INTEGER)
+                .withMinValue(0)
+                .defaultValue(0)
+                .add();
+
+        propertyBuilder.describe(NEAR_CACHE_MEMORY_PROP, "Near cache memory (MB)",
+                "Estimated memory the cached values may take")
+                .type(SnapType.INTEGER)
+                .withMinValue(1)
+                .defaultValue(DEFAULT_MEMORY_MB)
+                .add();
+
+        propertyBuilder.describe(NEAR_CACHE_TTL_PROP, "Near cache TTL (s)",
+                "Time after which a cached value is read from Redis again")
+                .type(SnapType.INTEGER)
+                .withMinValue(1)
+                .defaultValue(DEFAULT_TTL_SECONDS)
+                .add();
+    }
+
+    /**
+     * @return the cache settings of a snap, null if the cache is disabled
+     */
+    static Config configure(final PropertyValues propertyValues) {
+        Number entries = propertyValues.get(NEAR_CACHE_ENTRIES_PROP);
+        if (entries == null || entries.intValue() <= 0) {
+            return null;
+        }
+        Number memory = propertyValues.get(NEAR_CACHE_MEMORY_PROP);
+        Number ttl = propertyValues.get(NEAR_CACHE_TTL_PROP);
+        return new Config(entries.intValue(),
+                (memory == null ? DEFAULT_MEMORY_MB : memory.longValue()) * 1024 * 1024,
+                (ttl == null ? DEFAULT_TTL_SECONDS : ttl.longValue()) * 1000);
+    }
+
+    /**
+     * Copies the decoded cached values of the keys into the output, in key order, and leaves
+     * a null placeholder for the others.
+     *
+     * @return the keys that have to be read from Redis
+     */
+    synchronized List<String> lookup(final List<String> keys, final Map<String, Object> into) {
+        List<String> missing = new ArrayList<>(keys.size());
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            Value value = values.get(key);
+            if (value != null && value.expires <= now) {
+                remove(key);
+                expirations++;
+                value = null;
+            }
+            if (value == null) {
+                misses++;
+                missing.add(key);
+                into.put(key, null);
+            } else {
+                hits++;
+                into.put(key, RedisValueCodec.decode(value.data));
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Caches a value as read from Redis, null for a missing key. Values are kept encoded so
+     * every hit gets its own copy of maps and lists.
+     */
+    synchronized void put(final String key, final byte[] data) {
+        Value value = new Value(data, System.currentTimeMillis() + ttlMillis,
+                weigh(key, data));
+        Value previous = values.put(key, value);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += value.bytes;
+        Iterator<Map.Entry<String, Value>> eldest = values.entrySet().iterator();
+        while ((values.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            Map.Entry<String, Value> entry = eldest.next();
+            bytes -= entry.getValue().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    synchronized Stats stats() {
+        return new Stats(values.size(), bytes, hits, misses, evictions, expirations);
+    }
+
+    private void remove(final String key) {
+        Value value = values.remove(key);
+        if (value != null) {
+            bytes -= value.bytes;
+        }
+    }
+
+    private static long weigh(final String key, final byte[] data) {
+        return ENTRY_OVERHEAD_BYTES + 2L * key.length() + (data == null ? 0 : data.length);
+    }
+
+    private static final class Value {
+        private final byte[] data;
+        private final long expires;
+        private final long bytes;
+
+        private Value(final byte[] data, final long expires, final long bytes) {
+            this.data = data;
+            this.expires = expires;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Drops the caches of the settings, once no account uses them any more.
+     */
+    static void evict(final RedisPools.Settings settings) {
+        Iterator<Scope> scopes = CACHES.keySet().iterator();
+        while (scopes.hasNext()) {
+            if (scopes.next().settings.equals(settings)) {
+                scopes.remove();
+            }
+        }
+    }
+
+    /**
+     * Cache settings of a snap.
+     */
+    static final class Config {
+        private final int maxEntries;
+        private final long maxBytes;
+        private final long ttlMillis;
+
+        private Config(final int maxEntries, final long maxBytes, final long ttlMillis) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.ttlMillis = ttlMillis;
+        }
+
+        /**
+         * @return the node-wide cache for the account, created on first use
+         */
+        RedisNearCache forAccount(final RedisPools.Settings settings) {
+            Scope scope = new Scope(settings, this);
+            RedisNearCache cache = CACHES.get(scope);
+            if (cache == null) {
+                RedisNearCache created = new RedisNearCache(maxEntries, maxBytes, ttlMillis);
+                cache = CACHES.putIfAbsent(scope, created);
+                if (cache == null) {
+                    cache = created;
+                }
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Snaps share a cache when they read from the same servers with the same bounds.
+     */
+    private static final class Scope {
+        private final RedisPools.Settings settings;
+        private final Config config;
+
+        private Scope(final RedisPools.Settings settings, final Config config) {
+            this.settings = settings;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Scope)) {
+                return false;
+            }
+            Scope other = (Scope) o;
+            return settings.equals(other.settings)
+                    && config.maxEntries == other.config.maxEntries
+                    && config.maxBytes == other.config.maxBytes
+                    && config.ttlMillis == other.config.ttlMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(settings, config.maxEntries, config.maxBytes, config.ttlMillis);
+        }
+    }
+
+    /**
+     * A snapshot of the cache counters.
+     */
+    static final class Stats {
+        final int entries;
+        final long bytes;
+        final long hits;
+        final long misses;
+        final long evictions;
+        final long expirations;
+
+        private Stats(final int entries, final long bytes, final long hits, final long misses,
+                final long evictions, final long expirations) {
+            this.entries = entries;
+            this.bytes = bytes;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("entries=%d, bytes=%d, hits=%d, misses=%d, evictions=%d, "
+                    + "expirations=%d", entries, bytes, hits, misses, evictions, expirations);
+        }
+    }
+}
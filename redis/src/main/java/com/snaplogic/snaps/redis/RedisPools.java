@@ -0,0 +1,301 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2016, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+package com.snaplogic.snaps.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisSentinelPool;
+import redis.clients.util.Pool;
+
+/**
+ * Connection pools shared by all snaps on a node.
+ *
+ * <p>Pools are keyed on every connection setting of the account, so snaps using the same
+ * account share one pool and a changed account gets a fresh one. A Redis Cluster is one
+ * {@link RedisCluster} holding a pool per node.</p>
+ *
+ * <p>Accounts {@link #acquire acquire} their settings when they first connect and
+ * {@link #release release} them when the snap is done. Settings no account has used for
+ * {@link #UNUSED_EVICT_MILLIS} are dropped together with their pools, near caches and
+ * metrics, so editing an account does not leave the old connections open for the life of the
+ * node, while pipelines run one after the other keep their pool.</p>
+ */
+final class RedisPools {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisPools.class);
+    private static final ConcurrentMap<Settings, Pool<Jedis>> POOLS =
+            new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Settings, RedisCluster> CLUSTERS =
+            new ConcurrentHashMap<>();
+    static final long UNUSED_EVICT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    // guarded by itself, eviction happens under the lock so an account acquiring the settings
+    // again never gets a pool that is being closed
+    private static final Map<Settings, Usage> USAGES = new HashMap<>();
+
+    /**
+     * How the nodes of an account are deployed.
+     */
+    enum Topology {
+        /** a single server */
+        STANDALONE,
+        /** a master found through Sentinel, which fails over to a replica */
+        SENTINEL,
+        /** a Redis Cluster, keys are spread over the masters by hash slot */
+        CLUSTER
+    }
+
+    private RedisPools() {
+    }
+
+    /**
+     * @return the pool of the server, or of the current master in Sentinel mode, created on
+     * first use
+     */
+    static Pool<Jedis> get(final Settings settings) {
+        Pool<Jedis> pool = POOLS.get(settings);
+        if (pool == null) {
+            Pool<Jedis> created = settings.topology == Topology.SENTINEL
+                    ? new JedisSentinelPool(settings.masterName, settings.sentinels(),
+                            settings.poolConfig(), settings.timeoutMillis, settings.password)
+                    : new JedisPool(settings.poolConfig(), settings.host(), settings.port(),
+                            settings.timeoutMillis, settings.password);
+            pool = POOLS.putIfAbsent(settings, created);
+            if (pool == null) {
+                LOG.debug("Created Redis {} pool for {} with {} connections",
+                        settings.topology, settings.nodes, settings.poolSize);
+                pool = created;
+            } else {
+                created.destroy();
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * @return the cluster client for the given settings, created on first use
+     */
+    static RedisCluster cluster(final Settings settings) {
+        RedisCluster cluster = CLUSTERS.get(settings);
+        if (cluster == null) {
+            RedisCluster created = new RedisCluster(new LinkedHashSet<>(settings.nodes),
+                    settings.timeoutMillis, settings.password, settings.poolConfig());
+            cluster = CLUSTERS.putIfAbsent(settings, created);
+            if (cluster == null) {
+                LOG.debug("Connected to Redis cluster through {} with {} connections per node",
+                        settings.nodes, settings.poolSize);
+                cluster = created;
+            } else {
+                try {
+                    created.close();
+                } catch (IOException e) {
+                    LOG.debug("Failed to close redundant Redis cluster client", e);
+                }
+            }
+        }
+        return cluster;
+    }
+
+    /**
+     * @return the pools created so far for the settings, one per node of a cluster, without
+     * creating any
+     */
+    static List<Pool<Jedis>> existing(final Settings settings) {
+        List<Pool<Jedis>> pools = new ArrayList<>();
+        Pool<Jedis> pool = POOLS.get(settings);
+        if (pool != null) {
+            pools.add(pool);
+        }
+        RedisCluster cluster = CLUSTERS.get(settings);
+        if (cluster != null) {
+            pools.addAll(cluster.getClusterNodes().values());
+        }
+        return pools;
+    }
+
+    /**
+     * Counts an account as using the settings until it releases them.
+     */
+    static void acquire(final Settings settings) {
+        synchronized (USAGES) {
+            Usage usage = USAGES.get(settings);
+            if (usage == null) {
+                usage = new Usage();
+                USAGES.put(settings, usage);
+            }
+            usage.references++;
+            evictUnused(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Ends one {@link #acquire(Settings)}. The pools stay open for
+     * {@link #UNUSED_EVICT_MILLIS} after the last account released them.
+     */
+    static void release(final Settings settings) {
+        synchronized (USAGES) {
+            long now = System.currentTimeMillis();
+            Usage usage = USAGES.get(settings);
+            if (usage != null && --usage.references == 0) {
+                usage.releasedAt = now;
+            }
+            evictUnused(now);
+        }
+    }
+
+    private static void evictUnused(final long now) {
+        Iterator<Map.Entry<Settings, Usage>> usages = USAGES.entrySet().iterator();
+        while (usages.hasNext()) {
+            Map.Entry<Settings, Usage> usage = usages.next();
+            if (usage.getValue().references <= 0
+                    && now - usage.getValue().releasedAt >= UNUSED_EVICT_MILLIS) {
+                usages.remove();
+                evict(usage.getKey());
+            }
+        }
+    }
+
+    private static void evict(final Settings settings) {
+        Pool<Jedis> pool = POOLS.remove(settings);
+        if (pool != null) {
+            pool.destroy();
+        }
+        RedisCluster cluster = CLUSTERS.remove(settings);
+        if (cluster != null) {
+            try {
+                cluster.close();
+            } catch (IOException e) {
+                LOG.debug("Failed to close unused Redis cluster client", e);
+            }
+        }
+        RedisNearCache.evict(settings);
+        RedisMetrics.evict(settings);
+        LOG.debug("Closed the unused Redis {} connections to {}", settings.topology,
+                settings.nodes);
+    }
+
+    private static final class Usage {
+        private int references;
+        private long releasedAt;
+    }
+
+    /**
+     * Connection settings of an account.
+     */
+    static final class Settings {
+        private final Topology topology;
+        private final List<HostAndPort> nodes;
+        private final String masterName;
+        private final String password;
+        private final int timeoutMillis;
+        private final int poolSize;
+
+        /**
+         * @param topology      how the nodes are deployed
+         * @param nodes         the server, the Sentinels or the cluster seed nodes
+         * @param masterName    name of the Sentinel master, null in other modes
+         * @param password      password, null if the server does not require one
+         * @param timeoutMillis connect and socket timeout, also the longest wait for a free
+         *                      connection when the pool is exhausted
+         * @param poolSize      maximum number of connections, per node in a cluster
+         */
+        Settings(final Topology topology, final List<HostAndPort> nodes,
+                final String masterName, final String password, final int timeoutMillis,
+                final int poolSize) {
+            this.topology = topology;
+            this.nodes = nodes;
+            this.masterName = masterName;
+            this.password = password;
+            this.timeoutMillis = timeoutMillis;
+            this.poolSize = poolSize;
+        }
+
+        int timeoutMillis() {
+            return timeoutMillis;
+        }
+
+        String password() {
+            return password;
+        }
+
+        private String host() {
+            return nodes.get(0).getHost();
+        }
+
+        private int port() {
+            return nodes.get(0).getPort();
+        }
+
+        private Set<String> sentinels() {
+            Set<String> sentinels = new LinkedHashSet<>();
+            for (HostAndPort node : nodes) {
+                sentinels.add(node.toString());
+            }
+            return sentinels;
+        }
+
+        private JedisPoolConfig poolConfig() {
+            // JedisPoolConfig already pings idle connections every 30s and evicts the ones
+            // idle for more than a minute
+            JedisPoolConfig config = new JedisPoolConfig();
+            config.setMaxTotal(poolSize);
+            config.setMaxIdle(poolSize);
+            config.setMaxWaitMillis(timeoutMillis);
+            config.setBlockWhenExhausted(true);
+            return config;
+        }
+
+        /**
+         * @return the topology and the nodes, the password is left out
+         */
+        @Override
+        public String toString() {
+            return topology + " " + nodes;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) o;
+            return topology == other.topology && timeoutMillis == other.timeoutMillis
+                    && poolSize == other.poolSize && nodes.equals(other.nodes)
+                    && Objects.equals(masterName, other.masterName)
+                    && Objects.equals(password, other.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(topology, nodes, masterName, password, timeoutMillis, poolSize);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2016, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+package com.snaplogic.snaps.redis;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * A Lua script and its SHA1 digest, by which Redis runs a script it has cached.
+ *
+ * <p>The script is sent in full with {@code EVAL} the first time it runs on a server, which
+ * also caches it there, and with {@code EVALSHA} afterwards. Which servers have it is known
+ * node-wide, as the script cache of a server is shared by all its connections. A server that
+ * lost its scripts, e.g. after a restart, replies {@code NOSCRIPT} and gets the script again.
+ * </p>
+ */
+final class RedisScript {
+
+    // "host:port sha" of the scripts sent to a server
+    private static final Set<String> LOADED =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] body;
+    private final String sha;
+    private final byte[] rawSha;
+
+    RedisScript(final String body) {
+        this.body = SafeEncoder.encode(body);
+        this.sha = sha1(this.body);
+        this.rawSha = SafeEncoder.encode(sha);
+    }
+
+    byte[] body() {
+        return body;
+    }
+
+    byte[] sha() {
+        return rawSha;
+    }
+
+    /**
+     * @param node {@code host:port} of the server
+     * @return true if the script was sent to the server before
+     */
+    boolean isLoadedOn(final String node) {
+        return LOADED.contains(node + " " + sha);
+    }
+
+    void loadedOn(final String node) {
+        LOADED.add(node + " " + sha);
+    }
+
+    /**
+     * Forgets that the server has the script, after it replied {@code NOSCRIPT}.
+     */
+    void unloadedOn(final String node) {
+        LOADED.remove(node + " " + sha);
+    }
+
+    private static String sha1(final byte[] body) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(body);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-1
+            throw new IllegalStateException(e);
+        }
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2016, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+package com.snaplogic.snaps.redis;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * A connection of its own to one Redis server, outside the pools, that sends the stream
+ * commands.
+ *
+ * <p>The client library predates streams and only sends the commands of its closed command
+ * enum, so {@link #sendCommand(StreamCommand, String...)} writes these in the Redis protocol
+ * itself; replies are read with {@link #getOne()} and the library's parser. Commands are
+ * buffered until the next reply is read, so several go out in one round trip. The socket
+ * timeout is fixed when connecting and covers the blocking reads, so it never changes on a
+ * connection other code uses.</p>
+ */
+final class RedisStreamClient extends Connection {
+
+    /**
+     * The stream commands the client library does not know.
+     */
+    enum StreamCommand {
+        XGROUP, XREADGROUP, XAUTOCLAIM, XACK;
+
+        private final byte[] raw = SafeEncoder.encode(name());
+    }
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private OutputStream out;
+
+    /**
+     * @param node          the server to connect to
+     * @param timeoutMillis connect timeout
+     * @param blockMillis   longest time a command blocks on the server, added to the socket
+     *                      timeout
+     */
+    RedisStreamClient(final HostAndPort node, final int timeoutMillis, final int blockMillis) {
+        super(node.getHost(), node.getPort());
+        setConnectionTimeout(timeoutMillis);
+        setSoTimeout(timeoutMillis + blockMillis);
+    }
+
+    /**
+     * Connects and authenticates.
+     *
+     * @param password the password, null if the server does not require one
+     */
+    void connect(final String password) {
+        connect();
+        try {
+            out = new BufferedOutputStream(getSocket().getOutputStream());
+        } catch (IOException e) {
+            disconnect();
+            throw new JedisConnectionException(e);
+        }
+        if (password != null) {
+            sendCommand(Protocol.Command.AUTH, password);
+            getStatusCodeReply();
+        }
+    }
+
+    /**
+     * Buffers the command, it is sent when the next reply is read.
+     */
+    void sendCommand(final StreamCommand command, final String... args) {
+        try {
+            writeLength('*', args.length + 1);
+            writeArgument(command.raw);
+            for (String arg : args) {
+                writeArgument(SafeEncoder.encode(arg));
+            }
+        } catch (IOException e) {
+            throw new JedisConnectionException(e);
+        }
+    }
+
+    @Override
+    protected void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new JedisConnectionException(e);
+        }
+        super.flush();
+    }
+
+    private void writeArgument(final byte[] arg) throws IOException {
+        writeLength('$', arg.length);
+        out.write(arg);
+        out.write(CRLF);
+    }
+
+    private void writeLength(final char type, final int length) throws IOException {
+        out.write(type);
+        out.write(SafeEncoder.encode(String.valueOf(length)));
+        out.write(CRLF);
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2016, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+package com.snaplogic.snaps.redis;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.snaplogic.account.api.capabilities.Accounts;
+import com.snaplogic.api.ConfigurationException;
+import com.snaplogic.api.ExecutionException;
+import com.snaplogic.common.SnapType;
+import com.snaplogic.common.properties.builders.PropertyBuilder;
+import com.snaplogic.snap.api.Document;
+import com.snaplogic.snap.api.DocumentUtility;
+import com.snaplogic.snap.api.PropertyValues;
+import com.snaplogic.snap.api.SimpleSnap;
+import com.snaplogic.snap.api.SnapCategory;
+import com.snaplogic.snap.api.SnapDataException;
+import com.snaplogic.snap.api.capabilities.Category;
+import com.snaplogic.snap.api.capabilities.General;
+import com.snaplogic.snap.api.capabilities.Inputs;
+import com.snaplogic.snap.api.capabilities.Outputs;
+import com.snaplogic.snap.api.capabilities.Version;
+import com.snaplogic.snap.api.capabilities.ViewType;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.util.SafeEncoder;
+
+import static com.snaplogic.snaps.redis.RedisStreamClient.StreamCommand.XACK;
+import static com.snaplogic.snaps.redis.RedisStreamClient.StreamCommand.XAUTOCLAIM;
+import static com.snaplogic.snaps.redis.RedisStreamClient.StreamCommand.XGROUP;
+import static com.snaplogic.snaps.redis.RedisStreamClient.StreamCommand.XREADGROUP;
+
+/**
+ * Reads a Redis Stream as a consumer of a consumer group, so several pipelines can share the
+ * entries of one stream and every entry is processed at least once.
+ *
+ * <p>The snap waits on the server for new entries with {@code XREADGROUP ... BLOCK}, writes
+ * them out as {@code {stream, id, fields}} documents and acknowledges them with {@code XACK}
+ * once they are written, together with the next read. Entries that were read but never
+ * acknowledged, because a pipeline stopped before that, stay pending in the group. On start
+ * the snap first reads its own pending entries again, from ID {@code 0}, then claims those
+ * of other consumers that were idle long enough with {@code XAUTOCLAIM}, which requires
+ * Redis 6.2.</p>
+ *
+ * <p>The default consumer name is built from the host name, the stream and the group, so a
+ * restarted pipeline reads as the same consumer and finds its pending entries. The stream is
+ * read on a connection of its own rather than a pooled one, as a blocking read holds it for
+ * the block timeout.</p>
+ *
+ * <p>The snap reads until the pipeline is stopped, or until no entry arrived for the idle
+ * time if one is set.</p>
+ */
+@General(title = "Redis Stream Consumer", purpose = "Read a Redis Stream as a consumer group member",
+        author = "bkukadia@snaplogic.com", docLink = "http://yourdocslinkhere.com")
+@Inputs(min = 0, max = 0, accepts = {ViewType.DOCUMENT})
+@Outputs(min = 1, max = 1, offers = {ViewType.DOCUMENT})
+@Version(snap = 1)
+@Category(snap = SnapCategory.READ)
+@Accounts(provides = {RedisAccount.class}, optional = false)
+public class RedisStreamConsumer extends SimpleSnap {
+
+    private static final String STREAM_KEY_PROP = "Stream key";
+    private static final String GROUP_PROP = "Consumer group";
+    private static final String CONSUMER_PROP = "Consumer name";
+    private static final String GROUP_START_PROP = "Group start ID";
+    private static final String BATCH_SIZE_PROP = "Batch size";
+    private static final String BLOCK_TIMEOUT_PROP = "Block timeout";
+    private static final String CLAIM_IDLE_PROP = "Claim idle time";
+    private static final String STOP_IDLE_PROP = "Stop after idle";
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final int DEFAULT_BLOCK_MILLIS = 2000;
+    private static final int DEFAULT_CLAIM_IDLE_MILLIS = 60000;
+    // the start cursor of XAUTOCLAIM, which also marks the end of the pending entries
+    private static final String CLAIM_DONE = "0-0";
+    // XREADGROUP from this ID reads the consumer's own pending entries
+    private static final String OWN_PENDING_START = "0";
+
+    @Inject
+    private DocumentUtility documentUtility;
+
+    @Inject
+    private RedisAccount snapAccount;
+
+    private PropertyValues propertyValues;
+    private int batchSize;
+    private int blockMillis;
+    private int claimIdleMillis;
+    private long stopIdleMillis;
+    private String streamKey;
+    private String group;
+    private String consumer;
+    private RedisStreamClient client;
+    private long read;
+    private long acknowledged;
+
+    private static final Logger LOG = LoggerFactory.getLogger(RedisStreamConsumer.class);
+
+    @Override
+    public void defineProperties(PropertyBuilder propertyBuilder) {
+        propertyBuilder.describe(STREAM_KEY_PROP, STREAM_KEY_PROP, "Key of the stream to read")
+                .required()
+                .expression()
+                .add();
+
+        propertyBuilder.describe(GROUP_PROP, GROUP_PROP,
+                "Consumer group the snap reads in, created if it does not exist. Consumers of "
+                        + "one group each get different entries of the stream")
+                .required()
+                .expression()
+                .add();
+
+        propertyBuilder.describe(CONSUMER_PROP, CONSUMER_PROP,
+                "Name of this consumer within the group. If empty, the host name, stream and "
+                        + "group, which stay the same when the pipeline is restarted; set one "
+                        + "per snap when several snaps on a node read the same group")
+                .expression()
+                .add();
+
+        propertyBuilder.describe(GROUP_START_PROP, GROUP_START_PROP,
+                "ID after which a newly created group starts reading, $ for new entries only "
+                        + "or 0 for the whole stream")
+                .defaultValue("$")
+                .add();
+
+        propertyBuilder.describe(BATCH_SIZE_PROP, BATCH_SIZE_PROP,
+                "Maximum number of entries read at once")
+                .type(SnapType.INTEGER)
+                .withMinValue(1)
+                .defaultValue(DEFAULT_BATCH_SIZE)
+                .add();
+
+        propertyBuilder.describe(BLOCK_TIMEOUT_PROP, "Block timeout (ms)",
+                "Time a read waits on the server for new entries")
+                .type(SnapType.INTEGER)
+                .withMinValue(1)
+                .defaultValue(DEFAULT_BLOCK_MILLIS)
+                .add();
+
+        propertyBuilder.describe(CLAIM_IDLE_PROP, "Claim idle time (ms)",
+                "Entries another consumer read but did not acknowledge for this long are "
+                        + "claimed and read again on start")
+                .type(SnapType.INTEGER)
+                .withMinValue(0)
+                .defaultValue(DEFAULT_CLAIM_IDLE_MILLIS)
+                .add();
+
+        propertyBuilder.describe(STOP_IDLE_PROP, "Stop after idle (s)",
+                "Stop once no entry arrived for this long, 0 reads until the pipeline is "
+                        + "stopped")
+                .type(SnapType.INTEGER)
+                .withMinValue(0)
+                .defaultValue(0)
+                .add();
+    }
+
+    @Override
+    public void configure(PropertyValues propertyValues) throws ConfigurationException {
+        this.propertyValues = propertyValues;
+        batchSize = intValue(BATCH_SIZE_PROP, DEFAULT_BATCH_SIZE);
+        blockMillis = intValue(BLOCK_TIMEOUT_PROP, DEFAULT_BLOCK_MILLIS);
+        claimIdleMillis = intValue(CLAIM_IDLE_PROP, DEFAULT_CLAIM_IDLE_MILLIS);
+        stopIdleMillis = TimeUnit.SECONDS.toMillis(intValue(STOP_IDLE_PROP, 0));
+    }
+
+    private int intValue(final String property, final int defaultValue) {
+        Number value = propertyValues.get(property);
+        return value == null ? defaultValue : value.intValue();
+    }
+
+    @Override
+    protected void process(Document document, String inputViewName) {
+        streamKey = propertyValues.getAsExpression(STREAM_KEY_PROP).eval(document);
+        group = propertyValues.getAsExpression(GROUP_PROP).eval(document);
+        consumer = propertyValues.getAsExpression(CONSUMER_PROP).eval(document);
+        String groupStart = propertyValues.get(GROUP_START_PROP);
+        if (StringUtils.isBlank(streamKey) || StringUtils.isBlank(group)) {
+            throw new ExecutionException("Stream key and consumer group are required")
+                    .withResolution("Please provide the stream key and the consumer group.");
+        }
+        if (StringUtils.isBlank(consumer)) {
+            consumer = defaultConsumer();
+        }
+        try {
+            createGroup(StringUtils.isBlank(groupStart) ? "$" : groupStart.trim());
+            List<String> pending = readOwnPending();
+            pending = claim(pending);
+            consume(pending);
+        } catch (JedisConnectionException e) {
+            throw new ExecutionException(e, "Lost connection to Redis instance")
+                    .withResolution("Please make sure that Redis server is up.");
+        } catch (JedisDataException e) {
+            throw new ExecutionException(e, "Unable to read Redis stream " + streamKey)
+                    .withReason(e.getMessage())
+                    .withResolution("Please make sure that the key holds a stream and that "
+                            + "the server runs Redis 6.2 or later.");
+        } finally {
+            LOG.info("Redis stream {}: read {} entries, acknowledged {}", streamKey, read,
+                    acknowledged);
+        }
+    }
+
+    /**
+     * @return a consumer name that stays the same when the pipeline runs again on this node
+     */
+    private String defaultConsumer() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        return host + ":" + streamKey + ":" + group;
+    }
+
+    /**
+     * Creates the group, and the stream if needed; a group that already exists is kept as is.
+     */
+    private void createGroup(final String startId) {
+        try {
+            call(new Request(XGROUP, "CREATE", streamKey, group, startId, "MKSTREAM"));
+        } catch (JedisDataException e) {
+            if (!e.getMessage().startsWith("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Reads the entries this consumer read in an earlier run but did not acknowledge.
+     *
+     * @return the IDs still to be acknowledged
+     */
+    private List<String> readOwnPending() {
+        List<String> pending = Collections.emptyList();
+        String after = OWN_PENDING_START;
+        while (!Thread.currentThread().isInterrupted()) {
+            List<?> reply = (List<?>) call(acknowledge(pending), new Request(XREADGROUP,
+                    "GROUP", group, consumer, "COUNT", String.valueOf(batchSize), "STREAMS",
+                    streamKey, after));
+            List<?> entries = entries(reply);
+            pending = write(entries);
+            if (entries.isEmpty()) {
+                break;
+            }
+            after = pending.get(pending.size() - 1);
+        }
+        return pending;
+    }
+
+    /**
+     * Reads the entries left pending in the group by other consumers that stopped.
+     *
+     * @param own the IDs of this consumer still to be acknowledged
+     * @return the IDs still to be acknowledged
+     */
+    private List<String> claim(final List<String> own) {
+        List<String> pending = own;
+        String cursor = CLAIM_DONE;
+        do {
+            List<?> reply = (List<?>) call(acknowledge(pending), new Request(XAUTOCLAIM,
+                    streamKey, group, consumer, String.valueOf(claimIdleMillis), cursor,
+                    "COUNT", String.valueOf(batchSize)));
+            cursor = SafeEncoder.encode((byte[]) reply.get(0));
+            pending = write((List<?>) reply.get(1));
+        } while (!CLAIM_DONE.equals(cursor) && !Thread.currentThread().isInterrupted());
+        return pending;
+    }
+
+    /**
+     * Reads new entries until the pipeline is stopped or the stream stayed idle.
+     */
+    private void consume(final List<String> claimed) {
+        List<String> pending = claimed;
+        long lastEntry = System.currentTimeMillis();
+        while (!Thread.currentThread().isInterrupted()) {
+            List<?> reply = (List<?>) call(acknowledge(pending), new Request(XREADGROUP,
+                    "GROUP", group, consumer, "COUNT", String.valueOf(batchSize),
+                    "BLOCK", String.valueOf(blockMillis), "STREAMS", streamKey, ">"));
+            pending = Collections.emptyList();
+            if (reply != null) {
+                pending = write(entries(reply));
+                lastEntry = System.currentTimeMillis();
+            } else if (stopIdleMillis > 0
+                    && System.currentTimeMillis() - lastEntry >= stopIdleMillis) {
+                break;
+            }
+        }
+        call(acknowledge(pending));
+    }
+
+    /**
+     * @return the entries of an {@code XREADGROUP} reply, which is {@code [[key, entries]]} for
+     * the one stream read
+     */
+    private static List<?> entries(final List<?> reply) {
+        if (reply == null || reply.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return (List<?>) ((List<?>) reply.get(0)).get(1);
+    }
+
+    /**
+     * Writes the entries to the output view, or the error view if they cannot be decoded.
+     *
+     * @return the IDs of the entries, which are acknowledged with the next command
+     */
+    private List<String> write(final List<?> entries) {
+        List<String> ids = new ArrayList<>(entries.size());
+        for (Object item : entries) {
+            List<?> streamEntry = (List<?>) item;
+            String id = SafeEncoder.encode((byte[]) streamEntry.get(0));
+            ids.add(id);
+            read++;
+            if (streamEntry.get(1) == null) {
+                // deleted from the stream while pending, nothing left to read
+                continue;
+            }
+            try {
+                Map<String, Object> data = RedisBatch.toStreamEntries(
+                        Collections.singletonList(streamEntry)).get(0);
+                data.put("stream", streamKey);
+                outputViews.write(documentUtility.newDocument(data));
+            } catch (RuntimeException e) {
+                errorViews.write(new SnapDataException(e, "Unable to read stream entry " + id)
+                        .withReason(e.getMessage())
+                        .withResolution("Please check the values written to the stream"));
+            }
+        }
+        return ids;
+    }
+
+    private Request acknowledge(final List<String> ids) {
+        if (ids.isEmpty()) {
+            return null;
+        }
+        List<String> args = new ArrayList<>(ids.size() + 2);
+        args.add(streamKey);
+        args.add(group);
+        args.addAll(ids);
+        acknowledged += ids.size();
+        return new Request(XACK, args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Sends the commands in one round trip and returns the reply of the last one. Null
+     * commands are skipped.
+     */
+    private Object call(final Request... requests) {
+        try {
+            return send(requests);
+        } catch (JedisMovedDataException e) {
+            // the stream moved to another cluster node, all commands here can be sent again
+            disconnect();
+            snapAccount.connectCluster().renewSlotCache();
+            return send(requests);
+        }
+    }
+
+    private Object send(final Request... requests) {
+        RedisStreamClient connection = connection();
+        Object reply = null;
+        JedisDataException error = null;
+        try {
+            int sent = 0;
+            for (Request request : requests) {
+                if (request != null) {
+                    connection.sendCommand(request.command, request.args);
+                    sent++;
+                }
+            }
+            for (int i = 0; i < sent; i++) {
+                try {
+                    reply = connection.getOne();
+                } catch (JedisDataException e) {
+                    // read the remaining replies first, so the connection stays usable
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+        } catch (JedisConnectionException e) {
+            disconnect();
+            throw e;
+        }
+        if (error != null) {
+            throw error;
+        }
+        return reply;
+    }
+
+    /**
+     * @return the connection the stream is read on, to the node serving its slot in Cluster
+     * mode; kept for the whole run
+     */
+    private RedisStreamClient connection() {
+        if (client == null) {
+            client = snapAccount.connectStream(streamKey, blockMillis);
+        }
+        return client;
+    }
+
+    private void disconnect() {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+
+    @Override
+    public void cleanup() throws ExecutionException {
+        disconnect();
+        if (snapAccount != null) {
+            snapAccount.disconnect();
+        }
+    }
+
+    /**
+     * A stream command and its arguments.
+     */
+    private static final class Request {
+        private final RedisStreamClient.StreamCommand command;
+        private final String[] args;
+
+        private Request(final RedisStreamClient.StreamCommand command, final String... args) {
+            this.command = command;
+            this.args = args;
+        }
+    }
+}
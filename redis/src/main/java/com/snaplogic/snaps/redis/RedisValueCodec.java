@@ -0,0 +1,447 @@
+/*
+ * SnapLogic - Data Integration
+ *
+ * Copyright (C) 2016, SnapLogic, Inc.  All rights reserved.
+ *
+ * This program is licensed under the terms of
+ * the SnapLogic Commercial Subscription agreement.
+ *
+ * "SnapLogic" is a trademark of SnapLogic, Inc.
+ */
+package com.snaplogic.snaps.redis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.snaplogic.api.ConfigurationException;
+import com.snaplogic.common.SnapType;
+import com.snaplogic.common.properties.builders.PropertyBuilder;
+import com.snaplogic.snap.api.PropertyValues;
+
+/**
+ * Turns document values into the bytes stored in Redis and back.
+ *
+ * <p>Text values are stored as plain UTF-8 so other clients can read them. JSON and binary
+ * values, and compressed values of any encoding, start with a six byte header: the magic bytes
+ * {@code 00 'S' 'L' 'V'}, the header version and the format. Readers detect the header, so the
+ * GET snaps decode every value without being told how it was written. Values without the
+ * header are read as text when they are valid UTF-8 and passed through as bytes otherwise, so
+ * binary values written by other clients are not mangled.</p>
+ *
+ * <p>The binary encoding is a compact tagged form of the document types: null, booleans,
+ * integers, decimals, strings, byte arrays, lists and maps. Other values are stored as their
+ * string form.</p>
+ */
+final class RedisValueCodec {
+
+    static final String VALUE_ENCODING_PROP = "Value encoding";
+    static final String COMPRESSION_THRESHOLD_PROP = "Compression threshold";
+
+    static final String ENCODING_TEXT = "Text";
+    static final String ENCODING_JSON = "JSON";
+    static final String ENCODING_BINARY = "Binary";
+
+    private static final byte[] MAGIC = {0, 'S', 'L', 'V'};
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 2;
+    private static final int FORMAT_TEXT = 0;
+    private static final int FORMAT_JSON = 1;
+    private static final int FORMAT_BINARY = 2;
+    private static final int FORMAT_MASK = 0x0f;
+    private static final int DEFLATED = 0x10;
+    /**
+     * Largest value inflated, the largest string Redis stores. A small corrupt or hostile
+     * compressed value must not expand into more memory than any stored value could take.
+     */
+    private static final int MAX_INFLATED_LENGTH = 512 * 1024 * 1024;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_LONG = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_BYTES = 6;
+    private static final int TAG_LIST = 7;
+    private static final int TAG_MAP = 8;
+    private static final int TAG_BIG_INTEGER = 9;
+    private static final int TAG_BIG_DECIMAL = 10;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+
+    /**
+     * Text encoding without compression, how values were stored before encodings existed.
+     */
+    static final RedisValueCodec TEXT = new RedisValueCodec(FORMAT_TEXT, 0);
+
+    private final int format;
+    private final int compressionThreshold;
+
+    private RedisValueCodec(final int format, final int compressionThreshold) {
+        this.format = format;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    static void defineProperties(final PropertyBuilder propertyBuilder) {
+        propertyBuilder.describe(VALUE_ENCODING_PROP, VALUE_ENCODING_PROP,
+                "How values are stored. Text stores the string form of the value, JSON and "
+                        + "Binary keep maps and lists so they are read back as documents")
+                .type(SnapType.STRING)
+                .withAllowedValues(new HashSet<String>(Arrays.asList(ENCODING_TEXT,
+                        ENCODING_JSON, ENCODING_BINARY)))
+                .defaultValue(ENCODING_TEXT)
+                .add();
+
+        propertyBuilder.describe(COMPRESSION_THRESHOLD_PROP, "Compress values over (bytes)",
+                "Values longer than this are compressed. 0 never compresses")
+                .type(SnapType.INTEGER)
+                .withMinValue(0)
+                .defaultValue(0)
+                .add();
+    }
+
+    static RedisValueCodec configure(final PropertyValues propertyValues)
+            throws ConfigurationException {
+        String encoding = propertyValues.get(VALUE_ENCODING_PROP);
+        Number threshold = propertyValues.get(COMPRESSION_THRESHOLD_PROP);
+        return of(encoding, threshold == null ? 0 : threshold.intValue());
+    }
+
+    /**
+     * @param encoding             one of the value encodings, null for text
+     * @param compressionThreshold values longer than this are compressed, 0 never compresses
+     */
+    static RedisValueCodec of(final String encoding, final int compressionThreshold)
+            throws ConfigurationException {
+        int format;
+        if (encoding == null || ENCODING_TEXT.equals(encoding)) {
+            format = FORMAT_TEXT;
+        } else if (ENCODING_JSON.equals(encoding)) {
+            format = FORMAT_JSON;
+        } else if (ENCODING_BINARY.equals(encoding)) {
+            format = FORMAT_BINARY;
+        } else {
+            throw new ConfigurationException("Unknown value encoding: " + encoding)
+                    .withResolution("Please select " + ENCODING_TEXT + ", " + ENCODING_JSON
+                            + " or " + ENCODING_BINARY);
+        }
+        return new RedisValueCodec(format, Math.max(0, compressionThreshold));
+    }
+
+    /**
+     * @param value a document value, not null
+     * @return the bytes to store
+     */
+    byte[] encode(final Object value) {
+        byte[] body;
+        try {
+            switch (format) {
+                case FORMAT_JSON:
+                    body = MAPPER.writeValueAsBytes(value);
+                    break;
+                case FORMAT_BINARY:
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+                    writeValue(new DataOutputStream(bytes), value);
+                    body = bytes.toByteArray();
+                    break;
+                default:
+                    body = value.toString().getBytes(StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot encode value: " + e.getMessage(), e);
+        }
+        if (compressionThreshold > 0 && body.length > compressionThreshold) {
+            byte[] deflated = deflate(body);
+            if (deflated.length < body.length) {
+                return withHeader(format | DEFLATED, deflated);
+            }
+        }
+        return format == FORMAT_TEXT ? body : withHeader(format, body);
+    }
+
+    /**
+     * @param bytes a stored value, may be null for a missing key
+     * @return the document value
+     */
+    static Object decode(final byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        if (!hasMagic(bytes)) {
+            return textOrBytes(bytes);
+        }
+        int version = bytes[MAGIC.length] & 0xff;
+        int header = bytes[MAGIC.length + 1];
+        if (version != VERSION || !isFormat(header)) {
+            throw new IllegalArgumentException("Cannot decode value of header version "
+                    + version + " and format " + header);
+        }
+        byte[] body = Arrays.copyOfRange(bytes, HEADER_LENGTH, bytes.length);
+        try {
+            if ((header & DEFLATED) != 0) {
+                body = inflate(body, MAX_INFLATED_LENGTH);
+            }
+            switch (header & FORMAT_MASK) {
+                case FORMAT_JSON:
+                    return MAPPER.readValue(body, Object.class);
+                case FORMAT_BINARY:
+                    return readValue(new DataInputStream(new ByteArrayInputStream(body)));
+                default:
+                    return textOrBytes(body);
+            }
+        } catch (IOException | DataFormatException e) {
+            throw new IllegalArgumentException("Cannot decode value: " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean hasMagic(final byte[] bytes) {
+        if (bytes.length < HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isFormat(final int header) {
+        return (header & ~(FORMAT_MASK | DEFLATED)) == 0 && (header & FORMAT_MASK) <= FORMAT_BINARY;
+    }
+
+    /**
+     * @return the value as a string if it is valid UTF-8, otherwise the bytes themselves
+     */
+    private static Object textOrBytes(final byte[] bytes) {
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            return bytes;
+        }
+    }
+
+    private static byte[] withHeader(final int header, final byte[] body) {
+        byte[] bytes = new byte[body.length + HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+        bytes[MAGIC.length] = VERSION;
+        bytes[MAGIC.length + 1] = (byte) header;
+        System.arraycopy(body, 0, bytes, HEADER_LENGTH, body.length);
+        return bytes;
+    }
+
+    private static byte[] deflate(final byte[] body) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param maxLength the most bytes the value may inflate to
+     * @throws DataFormatException if the value is corrupt or inflates to more than the maximum
+     */
+    static byte[] inflate(final byte[] body, final int maxLength) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(body);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    (int) Math.min(maxLength, body.length * 3L));
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed value");
+                }
+                if (count > maxLength - out.size()) {
+                    throw new DataFormatException("Compressed value inflates to more than "
+                            + maxLength + " bytes");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeValue(final DataOutputStream out, final Object value)
+            throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            out.writeByte(TAG_LONG);
+            writeVarLong(out, ((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof BigInteger) {
+            out.writeByte(TAG_BIG_INTEGER);
+            writeBytes(out, ((BigInteger) value).toByteArray());
+        } else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            out.writeByte(TAG_BIG_DECIMAL);
+            writeVarLong(out, decimal.scale());
+            writeBytes(out, decimal.unscaledValue().toByteArray());
+        } else if (value instanceof byte[]) {
+            out.writeByte(TAG_BYTES);
+            writeBytes(out, (byte[]) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(TAG_LIST);
+            writeVarLong(out, list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(TAG_MAP);
+            writeVarLong(out, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeBytes(out, String.valueOf(entry.getKey()).getBytes(StandardCharsets.UTF_8));
+                writeValue(out, entry.getValue());
+            }
+        } else {
+            out.writeByte(TAG_STRING);
+            writeBytes(out, value.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static Object readValue(final DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_LONG:
+                return readVarLong(in);
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_BIG_INTEGER:
+                return new BigInteger(readBytes(in));
+            case TAG_BIG_DECIMAL:
+                int scale = (int) readVarLong(in);
+                return new BigDecimal(new BigInteger(readBytes(in)), scale);
+            case TAG_STRING:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case TAG_BYTES:
+                return readBytes(in);
+            case TAG_LIST:
+                // every item takes at least its tag byte
+                int size = readCount(in, 1);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            case TAG_MAP:
+                // every entry takes at least a key length and a tag byte
+                int entries = readCount(in, 2);
+                Map<String, Object> map = new LinkedHashMap<>(entries * 2);
+                for (int i = 0; i < entries; i++) {
+                    String key = new String(readBytes(in), StandardCharsets.UTF_8);
+                    map.put(key, readValue(in));
+                }
+                return map;
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * @param minBytes the least bytes each counted item takes
+     * @return a count read from the value, no larger than the rest of the value can hold
+     */
+    private static int readCount(final DataInputStream in, final int minBytes)
+            throws IOException {
+        long count = readVarLong(in);
+        if (count < 0 || count > in.available() / minBytes) {
+            throw new IOException("Malformed count " + count);
+        }
+        return (int) count;
+    }
+
+    private static void writeBytes(final DataOutputStream out, final byte[] bytes)
+            throws IOException {
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Malformed length " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Zigzag varint, small numbers of either sign take one byte.
+     */
+    private static void writeVarLong(final DataOutputStream out, final long value)
+            throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7fL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7f) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    private static long readVarLong(final DataInputStream in) throws IOException {
+        long zigzag = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 63) {
+                throw new IOException("Malformed number");
+            }
+            b = in.readUnsignedByte();
+            zigzag |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
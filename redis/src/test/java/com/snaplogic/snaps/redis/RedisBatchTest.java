@@ -0,0 +1,154 @@
+package com.snaplogic.snaps.redis;
+
+import com.snaplogic.api.ExecutionException;
+import com.snaplogic.snap.api.Document;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.redis.RedisBatch} sends the commands of several
+ * documents in one pipeline and writes every document's result in input order.
+ */
+public class RedisBatchTest {
+
+    private RedisTestServer server;
+    private RedisAccount account;
+    private final List<Map<String, Object>> outputs = new ArrayList<>();
+    private final List<RuntimeException> errors = new ArrayList<>();
+    private final RedisBatch.Writer writer = new RedisBatch.Writer() {
+        @Override
+        public void write(final Document input, final Map<String, Object> data,
+                final RuntimeException error) {
+            outputs.add(data);
+            errors.add(error);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        server = new RedisTestServer();
+        account = server.account(RedisPools.Topology.STANDALONE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testSendsDocumentsInOnePipeline() {
+        RedisBatch batch = RedisTestServer.batch(3, 0, 0);
+        for (int i = 0; i < 3; i++) {
+            assertFalse(batch.isReady());
+            RedisBatch.Entry entry = batch.add(null);
+            entry.set("key" + i, bytes("value" + i), -1);
+            entry.get("key" + i);
+        }
+        assertTrue(batch.isReady());
+        batch.flush(account, writer);
+
+        assertTrue(batch.isEmpty());
+        assertEquals(Arrays.asList(output("key0", "value0"), output("key1", "value1"),
+                output("key2", "value2")), outputs);
+        assertEquals(Arrays.asList(null, null, null), errors);
+        assertEquals(1, server.connections());
+        assertEquals(Arrays.asList("SET key0 value0", "GET key0", "SET key1 value1", "GET key1",
+                "SET key2 value2", "GET key2"), server.commands());
+        assertEquals(6, batch.stats().succeeded());
+    }
+
+    @Test
+    public void testFailsOnlyTheDocumentOfAFailedCommand() {
+        server.put("text", "abc");
+        RedisBatch batch = RedisTestServer.batch(10, 0, 0);
+        batch.add(null).incrBy("text", 1);
+        batch.add(null).incrBy("counter", 2);
+        IllegalArgumentException invalid = new IllegalArgumentException("No key");
+        RedisBatch.Entry failed = batch.add(null);
+        failed.get("ignored");
+        failed.fail(invalid);
+        batch.finish(account, writer);
+
+        assertEquals(3, outputs.size());
+        assertNull(outputs.get(0));
+        assertTrue(errors.get(0) instanceof JedisDataException);
+        assertEquals(output("counter", 2L), outputs.get(1));
+        assertNull(errors.get(1));
+        assertNull(outputs.get(2));
+        assertSame(invalid, errors.get(2));
+        assertEquals(Arrays.asList("INCRBY text 1", "INCRBY counter 2"), server.commands());
+        assertEquals(1, batch.stats().succeeded());
+        assertEquals(2, batch.stats().failed());
+    }
+
+    @Test
+    public void testReadyOnceBytesAreReached() {
+        RedisBatch batch = RedisTestServer.batch(100, 16, 0);
+        batch.add(null).set("key", bytes("short"), -1);
+        assertFalse(batch.isReady());
+        batch.add(null).set("key", bytes("longer value"), 60);
+        assertTrue(batch.isReady());
+        batch.flush(account, writer);
+
+        assertEquals(Arrays.asList("SET key short", "SETEX key 60 longer value"),
+                server.commands());
+        assertEquals("longer value", server.get("key"));
+    }
+
+    @Test
+    public void testBatchesInFlightKeepInputOrder() {
+        RedisBatch batch = RedisTestServer.batch(2, 0, 3);
+        List<Map<String, Object>> expected = new ArrayList<>();
+        try {
+            for (int i = 0; i < 9; i++) {
+                RedisBatch.Entry entry = batch.add(null);
+                entry.incrBy("counter", 1);
+                expected.add(output("counter", (long) i + 1));
+                if (batch.isReady()) {
+                    batch.flush(account, writer);
+                }
+            }
+            batch.finish(account, writer);
+        } finally {
+            batch.close();
+        }
+
+        assertEquals(expected, outputs);
+        assertEquals("9", server.get("counter"));
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void testFailsWhenServerIsDown() throws Exception {
+        server.close();
+        RedisBatch batch = RedisTestServer.batch(1, 0, 0);
+        batch.add(null).get("key");
+        batch.flush(account, writer);
+    }
+
+    private static Map<String, Object> output(final String key, final Object value) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put(key, value);
+        return data;
+    }
+
+    private static byte[] bytes(final String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
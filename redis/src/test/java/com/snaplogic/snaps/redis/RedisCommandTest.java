@@ -0,0 +1,157 @@
+package com.snaplogic.snaps.redis;
+
+import com.snaplogic.snap.api.Document;
+import com.snaplogic.snap.api.ExpressionProperty;
+import com.snaplogic.snap.api.PropertyValues;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.redis.RedisCommand} resolves the command property and
+ * evaluates the keys table per document.
+ */
+public class RedisCommandTest {
+
+    @Test
+    public void testResolvesCommandNames() {
+        assertEquals(RedisCommand.SET, RedisCommand.of(" set ", false));
+        assertEquals(RedisCommand.ZRANGEBYSCORE, RedisCommand.of("ZRANGEBYSCORE", false));
+        assertEquals(RedisCommand.FLUSH_ALL, RedisCommand.of("FLUSH ALL", false));
+        assertEquals(RedisCommand.FLUSH_ALL, RedisCommand.of("FLUSH ALL", true));
+        // the write snap also offers GET, but no other read
+        assertEquals(RedisCommand.GET, RedisCommand.of("GET", true));
+        assertTrue(RedisCommand.names(false).contains("FLUSH ALL"));
+        assertFalse(RedisCommand.names(false).contains("FLUSH_ALL"));
+    }
+
+    @Test
+    public void testRejectsUnknownCommands() {
+        for (String name : Arrays.asList("DEL", "FLUSH_ALL", "", null)) {
+            try {
+                RedisCommand.of(name, false);
+                fail("Expected " + name + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().startsWith("Unsupported Redis command"));
+            }
+        }
+        try {
+            RedisCommand.of("HMGET", true);
+            fail("Expected a read to be rejected by the write snap");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("HMGET"));
+        }
+    }
+
+    @Test
+    public void testCompletesStreamIds() {
+        // XREAD starts after 1526985054069-0 when given the milliseconds only
+        assertEquals("1526985054069-0", RedisCommand.streamId("1526985054069"));
+        assertEquals("1526985054069-3", RedisCommand.streamId(" 1526985054069-3 "));
+        assertEquals("0-0", RedisCommand.streamId("0"));
+        assertEquals("0-0", RedisCommand.streamId(""));
+        assertEquals("7-0", RedisCommand.streamId("007"));
+        try {
+            RedisCommand.streamId("$");
+            fail("Expected $ to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("$"));
+        }
+        for (String id : Arrays.asList("abc", "1-", "-1", "+1", "1-2-3",
+                "18446744073709551616")) {
+            try {
+                RedisCommand.streamId(id);
+                fail("Expected " + id + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().startsWith("Invalid stream ID"));
+            }
+        }
+    }
+
+    @Test
+    public void testFlushAllNeedsOptIn() {
+        assertFalse(RedisCommand.isAllowed(RedisCommand.FLUSH_ALL, flushAllowed(null)));
+        assertFalse(RedisCommand.isAllowed(RedisCommand.FLUSH_ALL, flushAllowed(false)));
+        assertTrue(RedisCommand.isAllowed(RedisCommand.FLUSH_ALL, flushAllowed(true)));
+        assertTrue(RedisCommand.isAllowed(RedisCommand.SET, flushAllowed(null)));
+    }
+
+    @Test
+    public void testEvaluatesTableRowsPerDocument() {
+        Map<String, Object> first = Collections.<String, Object>singletonMap("row", 1);
+        Map<String, Object> second = Collections.<String, Object>singletonMap("row", 2);
+        Document document = createMock(Document.class);
+        ExpressionProperty tableExpression = createMock(ExpressionProperty.class);
+        expect(tableExpression.eval(null)).andReturn(Arrays.asList(first, second));
+        ExpressionProperty firstKey = expression(document, "user:1");
+        ExpressionProperty firstValue = expression(document, 42L);
+        ExpressionProperty secondKey = expression(document, null);
+        ExpressionProperty secondValue = expression(document, "b");
+
+        PropertyValues propertyValues = createMock(PropertyValues.class);
+        expect(propertyValues.getAsExpression("Keys")).andReturn(tableExpression);
+        expect(propertyValues.getExpressionPropertyFor(first, "Key")).andReturn(firstKey);
+        expect(propertyValues.getExpressionPropertyFor(first, "Value")).andReturn(firstValue);
+        expect(propertyValues.getExpressionPropertyFor(second, "Key")).andReturn(secondKey);
+        expect(propertyValues.getExpressionPropertyFor(second, "Value"))
+                .andReturn(secondValue);
+        replay(document, tableExpression, propertyValues);
+
+        RedisCommand.Rows rows = RedisCommand.Table.compile(propertyValues, "Keys", "Key",
+                "Value").evaluate(document);
+
+        assertEquals(2, rows.size());
+        assertEquals("user:1", rows.key(0));
+        assertEquals(42L, rows.value(0));
+        assertEquals("b", rows.value(1));
+        try {
+            rows.key(1);
+            fail("Expected a missing key to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Key is missing", e.getMessage());
+        }
+        verify(tableExpression, propertyValues, firstKey, firstValue, secondKey, secondValue);
+    }
+
+    @Test
+    public void testEvaluatesEmptyTable() {
+        ExpressionProperty tableExpression = createMock(ExpressionProperty.class);
+        expect(tableExpression.eval(null)).andReturn(null);
+        PropertyValues propertyValues = createMock(PropertyValues.class);
+        expect(propertyValues.getAsExpression("Keys")).andReturn(tableExpression);
+        replay(tableExpression, propertyValues);
+
+        List<String> keys = RedisCommand.Table.compile(propertyValues, "Keys", "Key", null)
+                .evaluate(null).keys();
+
+        assertTrue(keys.isEmpty());
+    }
+
+    private static ExpressionProperty expression(final Document document, final Object value) {
+        ExpressionProperty expression = createMock(ExpressionProperty.class);
+        expect(expression.eval(document)).andReturn(value);
+        replay(expression);
+        return expression;
+    }
+
+    private static PropertyValues flushAllowed(final Boolean allowed) {
+        PropertyValues propertyValues = createMock(PropertyValues.class);
+        expect(propertyValues.get(RedisCommand.ALLOW_FLUSH_ALL_PROP)).andReturn(allowed)
+                .anyTimes();
+        replay(propertyValues);
+        return propertyValues;
+    }
+}
@@ -0,0 +1,83 @@
+package com.snaplogic.snaps.redis;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.redis.RedisHistogram} reports percentiles within the
+ * width of its buckets.
+ */
+public class RedisHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        RedisHistogram histogram = new RedisHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.max());
+        assertEquals(0, histogram.percentile(0.99));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        RedisHistogram histogram = new RedisHistogram();
+        for (int value = 0; value < 16; value++) {
+            histogram.record(value);
+        }
+        assertEquals(16, histogram.count());
+        assertEquals(15, histogram.max());
+        assertEquals(7, histogram.percentile(0.5));
+        assertEquals(0, histogram.percentile(0));
+        assertEquals(15, histogram.percentile(1));
+    }
+
+    @Test
+    public void testPercentilesWithinBucketWidth() {
+        RedisHistogram histogram = new RedisHistogram();
+        for (int value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100000, histogram.count());
+        assertEquals(100000, histogram.max());
+        assertWithin(50000, histogram.percentile(0.5));
+        assertWithin(99000, histogram.percentile(0.99));
+        assertWithin(99900, histogram.percentile(0.999));
+        assertEquals(100000, histogram.percentile(1));
+    }
+
+    @Test
+    public void testPercentileNotAboveMax() {
+        RedisHistogram histogram = new RedisHistogram();
+        histogram.record(1000);
+        // 1000 shares its bucket with values up to 1023
+        assertEquals(1000, histogram.percentile(0.5));
+    }
+
+    @Test
+    public void testExtremeValues() {
+        RedisHistogram histogram = new RedisHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.percentile(0.5));
+        assertEquals(Long.MAX_VALUE, histogram.percentile(1));
+    }
+
+    @Test
+    public void testReset() {
+        RedisHistogram histogram = new RedisHistogram();
+        histogram.record(42);
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.max());
+        assertEquals(0, histogram.percentile(0.5));
+        histogram.record(3);
+        assertEquals(3, histogram.percentile(0.5));
+    }
+
+    private static void assertWithin(final long expected, final long actual) {
+        assertTrue(actual + " is below " + expected, actual >= expected);
+        assertTrue(actual + " is more than 1/16 above " + expected,
+                actual <= expected + expected / 16);
+    }
+}
@@ -0,0 +1,141 @@
+package com.snaplogic.snaps.redis;
+
+import com.snaplogic.snap.api.PropertyValues;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.HostAndPort;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.redis.RedisNearCache} evicts the least recently used
+ * entries beyond its entry and byte bounds and expires entries after the TTL.
+ */
+public class RedisNearCacheTest {
+
+    @Test
+    public void testServesCachedValuesAndMissingKeys() {
+        RedisNearCache cache = new RedisNearCache(10, Long.MAX_VALUE, 60000);
+        cache.put("a", bytes("1"));
+        cache.put("none", null);
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        List<String> missing = cache.lookup(Arrays.asList("b", "a", "none"), values);
+
+        assertEquals(Collections.singletonList("b"), missing);
+        assertEquals(Arrays.asList("b", "a", "none"), Arrays.asList(values.keySet().toArray()));
+        assertNull(values.get("b"));
+        assertEquals("1", values.get("a"));
+        assertNull(values.get("none"));
+        RedisNearCache.Stats stats = cache.stats();
+        assertEquals(2, stats.hits);
+        assertEquals(1, stats.misses);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedBeyondEntries() {
+        RedisNearCache cache = new RedisNearCache(2, Long.MAX_VALUE, 60000);
+        cache.put("a", bytes("1"));
+        cache.put("b", bytes("2"));
+        // a was used last, b is evicted
+        cache.lookup(Collections.singletonList("a"), new LinkedHashMap<String, Object>());
+        cache.put("c", bytes("3"));
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        assertEquals(Collections.singletonList("b"),
+                cache.lookup(Arrays.asList("a", "b", "c"), values));
+        assertEquals(2, cache.stats().entries);
+        assertEquals(1, cache.stats().evictions);
+    }
+
+    @Test
+    public void testEvictsBeyondBytes() {
+        byte[] value = new byte[1000];
+        // room for two entries with their overhead, not three
+        RedisNearCache cache = new RedisNearCache(100, 2500, 60000);
+        cache.put("a", value);
+        cache.put("b", value);
+        long twoEntries = cache.stats().bytes;
+        cache.put("c", value);
+
+        assertEquals(2, cache.stats().entries);
+        assertEquals(twoEntries, cache.stats().bytes);
+        assertEquals(Collections.singletonList("a"), cache.lookup(Arrays.asList("a", "b", "c"),
+                new LinkedHashMap<String, Object>()));
+        // replacing a value does not count it twice
+        cache.put("c", value);
+        assertEquals(twoEntries, cache.stats().bytes);
+    }
+
+    @Test
+    public void testExpiresAfterTtl() throws Exception {
+        RedisNearCache cache = new RedisNearCache(10, Long.MAX_VALUE, 50);
+        cache.put("a", bytes("1"));
+        assertTrue(cache.lookup(Collections.singletonList("a"),
+                new LinkedHashMap<String, Object>()).isEmpty());
+
+        Thread.sleep(100);
+
+        assertEquals(Collections.singletonList("a"), cache.lookup(Collections.singletonList("a"),
+                new LinkedHashMap<String, Object>()));
+        RedisNearCache.Stats stats = cache.stats();
+        assertEquals(1, stats.expirations);
+        assertEquals(0, stats.entries);
+        assertEquals(0, stats.bytes);
+    }
+
+    @Test
+    public void testSharesCachePerAccountUntilEvicted() {
+        RedisNearCache.Config config = RedisNearCache.configure(nearCacheProperties(100));
+        RedisPools.Settings settings = settings(6379);
+        RedisNearCache cache = config.forAccount(settings);
+
+        assertSame(cache, RedisNearCache.configure(nearCacheProperties(100))
+                .forAccount(settings(6379)));
+        assertNotSame(cache, config.forAccount(settings(6380)));
+        RedisNearCache.evict(settings);
+        assertNotSame(cache, config.forAccount(settings));
+    }
+
+    @Test
+    public void testDisabledWithoutEntries() {
+        assertNull(RedisNearCache.configure(nearCacheProperties(0)));
+    }
+
+    private static PropertyValues nearCacheProperties(final int entries) {
+        PropertyValues propertyValues = createMock(PropertyValues.class);
+        expect(propertyValues.get(RedisNearCache.NEAR_CACHE_ENTRIES_PROP)).andReturn(entries)
+                .anyTimes();
+        expect(propertyValues.get(RedisNearCache.NEAR_CACHE_MEMORY_PROP)).andReturn(1)
+                .anyTimes();
+        expect(propertyValues.get(RedisNearCache.NEAR_CACHE_TTL_PROP)).andReturn(60)
+                .anyTimes();
+        replay(propertyValues);
+        return propertyValues;
+    }
+
+    private static RedisPools.Settings settings(final int port) {
+        return new RedisPools.Settings(RedisPools.Topology.STANDALONE,
+                Collections.singletonList(new HostAndPort("localhost", port)), null, null, 2000,
+                8);
+    }
+
+    private static byte[] bytes(final String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,154 @@
+package com.snaplogic.snaps.redis;
+
+import com.snaplogic.snap.api.Document;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.JedisClusterCRC16;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.redis.RedisScript}s are sent to a server once and
+ * called by their SHA1 digest afterwards, and sent again when the server lost them or the
+ * slot of their keys moved.
+ */
+public class RedisScriptTest {
+
+    private static final int SPLIT_SLOT = 8191;
+
+    private RedisTestServer server;
+    private RedisTestServer peer;
+    private final List<Object> results = new ArrayList<>();
+    private final RedisBatch.Writer writer = new RedisBatch.Writer() {
+        @Override
+        public void write(final Document input, final Map<String, Object> data,
+                final RuntimeException error) {
+            assertNull(error);
+            results.add(data.get(RedisBatch.SCRIPT_RESULT));
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        server = new RedisTestServer();
+        peer = new RedisTestServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        peer.close();
+    }
+
+    @Test
+    public void testSendsScriptOncePerServer() {
+        RedisAccount account = server.account(RedisPools.Topology.STANDALONE);
+        RedisScript script = new RedisScript("return {KEYS[1], ARGV[1]} -- once");
+        RedisBatch batch = RedisTestServer.batch(100, 0, 0);
+        for (int i = 0; i < 3; i++) {
+            eval(batch, script, "key" + i);
+        }
+        batch.finish(account, writer);
+        eval(batch, script, "key3");
+        batch.finish(account, writer);
+
+        assertEquals(Arrays.asList("EVAL", "EVALSHA", "EVALSHA", "EVALSHA"),
+                commandNames(server));
+        assertEquals(Arrays.asList(result("key0"), result("key1"), result("key2"),
+                result("key3")), results);
+    }
+
+    @Test
+    public void testResendsScriptTheServerLost() {
+        RedisAccount account = server.account(RedisPools.Topology.STANDALONE);
+        RedisScript script = new RedisScript("return {KEYS[1], ARGV[1]} -- lost");
+        RedisBatch batch = RedisTestServer.batch(100, 0, 0);
+        eval(batch, script, "key0");
+        batch.finish(account, writer);
+        // as after a restart of the server
+        try (Jedis jedis = new Jedis(RedisTestServer.HOST, server.node().getPort())) {
+            jedis.scriptFlush();
+        }
+        server.clearCommands();
+
+        eval(batch, script, "key1");
+        eval(batch, script, "key2");
+        batch.finish(account, writer);
+
+        assertEquals(Arrays.asList("EVALSHA", "EVALSHA", "EVAL", "EVALSHA"),
+                commandNames(server));
+        assertEquals(Arrays.asList(result("key0"), result("key1"), result("key2")), results);
+    }
+
+    @Test
+    public void testResendsScriptWhoseSlotMoved() {
+        RedisTestServer.cluster(server, peer, SPLIT_SLOT);
+        RedisAccount account = server.account(RedisPools.Topology.CLUSTER);
+        RedisScript script = new RedisScript("return {KEYS[1], ARGV[1]} -- moved");
+        String moving = keyInSlots(0, SPLIT_SLOT);
+        String staying = keyInSlots(SPLIT_SLOT + 1, 16383);
+        RedisBatch batch = RedisTestServer.batch(100, 0, 0);
+        eval(batch, script, moving);
+        eval(batch, script, staying);
+        batch.finish(account, writer);
+        assertEquals(Collections.singletonList("EVAL"), commandNames(server));
+        assertEquals(Collections.singletonList("EVAL"), commandNames(peer));
+
+        // the peer takes over the slot of the moving key
+        RedisTestServer.cluster(server, peer, JedisClusterCRC16.getSlot(moving) - 1);
+        server.clearCommands();
+        peer.clearCommands();
+        eval(batch, script, moving);
+        eval(batch, script, staying);
+        batch.finish(account, writer);
+
+        assertEquals(Collections.singletonList("EVALSHA"), commandNames(server));
+        // the peer already has the script, from the other key
+        assertEquals(Arrays.asList("EVALSHA", "EVALSHA"), commandNames(peer));
+        assertEquals(Arrays.asList(result(moving), result(staying), result(moving),
+                result(staying)), results);
+    }
+
+    private static void eval(final RedisBatch batch, final RedisScript script,
+            final String key) {
+        batch.add(null).eval(script, Collections.singletonList(key),
+                Collections.singletonList("argument".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the reply of the test server, which echoes the keys and arguments
+     */
+    private static List<Object> result(final String key) {
+        return Arrays.<Object>asList(key, "argument");
+    }
+
+    private static List<String> commandNames(final RedisTestServer server) {
+        List<String> names = new ArrayList<>();
+        for (String command : server.commands()) {
+            names.add(command.split(" ")[0]);
+        }
+        return names;
+    }
+
+    private static String keyInSlots(final int first, final int last) {
+        for (int i = 0; ; i++) {
+            int slot = JedisClusterCRC16.getSlot("key" + i);
+            // not the first slot, so it can move to the peer
+            if (slot > first && slot <= last) {
+                return "key" + i;
+            }
+        }
+    }
+}
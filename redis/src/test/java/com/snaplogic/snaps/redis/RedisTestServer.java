@@ -0,0 +1,431 @@
+package com.snaplogic.snaps.redis;
+
+import com.snaplogic.snap.api.PropertyValues;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.util.JedisClusterCRC16;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.replay;
+
+/**
+ * An in-memory Redis server on a local port, for tests that send pipelines through the client
+ * library.
+ *
+ * <p>It knows the string commands, scripts and enough of Redis Cluster to redirect commands on
+ * keys it does not serve. It cannot run Lua: every script replies with its keys followed by
+ * its arguments. Commands are executed one at a time, in the order they arrive, and logged as
+ * {@code NAME arg ...}.</p>
+ *
+ * <p>It also hands out the accounts and batches the tests send through it.</p>
+ */
+final class RedisTestServer implements Closeable {
+
+    static final String HOST = "127.0.0.1";
+
+    private static final int LAST_SLOT = 16383;
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final ServerSocket serverSocket;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Map<String, byte[]> strings = new HashMap<>();
+    private final Set<String> scripts = new HashSet<>();
+    private final List<String> log = new ArrayList<>();
+    // cluster mode: the slots served here, the server of the others and the slot map
+    private int firstSlot = -1;
+    private int lastSlot = -1;
+    private RedisTestServer peer;
+    private List<Object> clusterSlots;
+
+    RedisTestServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName(HOST));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "redis-test-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Makes two servers a cluster, the first serving the slots up to {@code lastSlotOfFirst}
+     * and the second the rest. Called again, it moves slots between them like a resharding;
+     * keys are not moved.
+     */
+    static void cluster(final RedisTestServer first, final RedisTestServer second,
+            final int lastSlotOfFirst) {
+        List<Object> slots = Arrays.<Object>asList(
+                first.slotRange(0, lastSlotOfFirst),
+                second.slotRange(lastSlotOfFirst + 1, LAST_SLOT));
+        synchronized (first) {
+            first.firstSlot = 0;
+            first.lastSlot = lastSlotOfFirst;
+            first.peer = second;
+            first.clusterSlots = slots;
+        }
+        synchronized (second) {
+            second.firstSlot = lastSlotOfFirst + 1;
+            second.lastSlot = LAST_SLOT;
+            second.peer = first;
+            second.clusterSlots = slots;
+        }
+    }
+
+    /**
+     * @return an account connecting to this server, or to the cluster it is part of
+     */
+    RedisAccount account(final RedisPools.Topology topology) {
+        final RedisPools.Settings settings = new RedisPools.Settings(topology,
+                Collections.singletonList(node()), null, null, 2000, 2);
+        return new RedisAccount() {
+            @Override
+            boolean isCluster() {
+                return topology == RedisPools.Topology.CLUSTER;
+            }
+
+            @Override
+            RedisPools.Settings settings() {
+                return settings;
+            }
+        };
+    }
+
+    /**
+     * @return a batch with the default settings, except for its size, bytes and batches in
+     * flight
+     */
+    static RedisBatch batch(final int size, final long maxBytes, final int inFlight) {
+        PropertyValues propertyValues = createNiceMock(PropertyValues.class);
+        replay(propertyValues);
+        return RedisBatch.configure(propertyValues, size, maxBytes, inFlight);
+    }
+
+    HostAndPort node() {
+        return new HostAndPort(HOST, serverSocket.getLocalPort());
+    }
+
+    /**
+     * @return the connections accepted so far
+     */
+    int connections() {
+        return connections.get();
+    }
+
+    /**
+     * @return the commands executed so far, without {@code CLUSTER}
+     */
+    synchronized List<String> commands() {
+        return new ArrayList<>(log);
+    }
+
+    synchronized void clearCommands() {
+        log.clear();
+    }
+
+    synchronized void put(final String key, final String value) {
+        strings.put(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the value of the key as text, null if it is not set
+     */
+    synchronized String get(final String key) {
+        byte[] value = strings.get(key);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private List<Object> slotRange(final int first, final int last) {
+        return Arrays.<Object>asList((long) first, (long) last,
+                Arrays.<Object>asList(HOST, (long) serverSocket.getLocalPort()));
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                Thread connection = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "redis-test-connection");
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void serve(final Socket socket) {
+        try (Socket client = socket) {
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = new BufferedOutputStream(client.getOutputStream());
+            List<byte[]> command;
+            while ((command = readCommand(in)) != null) {
+                execute(command, out);
+                // replies of a pipeline go out together
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    private synchronized void execute(final List<byte[]> command, final OutputStream out)
+            throws IOException {
+        String name = text(command.get(0)).toUpperCase();
+        if (name.equals("CLUSTER")) {
+            writeReply(out, clusterSlots);
+            return;
+        }
+        StringBuilder logged = new StringBuilder(name);
+        for (int i = 1; i < command.size(); i++) {
+            logged.append(' ').append(text(command.get(i)));
+        }
+        log.add(logged.toString());
+        String key = key(name, command);
+        if (key != null && firstSlot >= 0) {
+            int slot = JedisClusterCRC16.getSlot(key);
+            if (slot < firstSlot || slot > lastSlot) {
+                writeError(out, "MOVED " + slot + " " + HOST + ":" + peer.node().getPort());
+                return;
+            }
+        }
+        switch (name) {
+            case "PING":
+                writeStatus(out, "PONG");
+                break;
+            case "AUTH":
+            case "SELECT":
+                writeStatus(out, "OK");
+                break;
+            case "SET":
+                strings.put(key, command.get(2));
+                writeStatus(out, "OK");
+                break;
+            case "SETEX":
+                strings.put(key, command.get(3));
+                writeStatus(out, "OK");
+                break;
+            case "GET":
+                writeReply(out, strings.get(key));
+                break;
+            case "MGET":
+                List<Object> values = new ArrayList<>(command.size() - 1);
+                for (int i = 1; i < command.size(); i++) {
+                    values.add(strings.get(text(command.get(i))));
+                }
+                writeReply(out, values);
+                break;
+            case "DEL":
+                writeReply(out, strings.remove(key) == null ? 0L : 1L);
+                break;
+            case "INCRBY":
+                incrBy(key, Long.parseLong(text(command.get(2))), out);
+                break;
+            case "FLUSHALL":
+                strings.clear();
+                writeStatus(out, "OK");
+                break;
+            case "EVAL":
+                scripts.add(sha1(command.get(1)));
+                runScript(command, out);
+                break;
+            case "EVALSHA":
+                if (scripts.contains(text(command.get(1)))) {
+                    runScript(command, out);
+                } else {
+                    writeError(out, "NOSCRIPT No matching script. Please use EVAL.");
+                }
+                break;
+            case "SCRIPT":
+                // only SCRIPT FLUSH, as after a restart
+                scripts.clear();
+                writeStatus(out, "OK");
+                break;
+            default:
+                writeError(out, "ERR unknown command '" + name + "'");
+        }
+    }
+
+    /**
+     * @return the key the command works on, null if it has none
+     */
+    private static String key(final String name, final List<byte[]> command) {
+        switch (name) {
+            case "PING":
+            case "AUTH":
+            case "SELECT":
+            case "FLUSHALL":
+            case "SCRIPT":
+                return null;
+            case "EVAL":
+            case "EVALSHA":
+                return Integer.parseInt(text(command.get(2))) == 0 ? null
+                        : text(command.get(3));
+            default:
+                return command.size() > 1 ? text(command.get(1)) : null;
+        }
+    }
+
+    private void incrBy(final String key, final long increment, final OutputStream out)
+            throws IOException {
+        byte[] value = strings.get(key);
+        long current;
+        try {
+            current = value == null ? 0 : Long.parseLong(text(value));
+        } catch (NumberFormatException e) {
+            writeError(out, "ERR value is not an integer or out of range");
+            return;
+        }
+        strings.put(key, String.valueOf(current + increment).getBytes(StandardCharsets.UTF_8));
+        writeReply(out, current + increment);
+    }
+
+    /**
+     * Replies with the keys and arguments of the script.
+     */
+    private static void runScript(final List<byte[]> command, final OutputStream out)
+            throws IOException {
+        writeReply(out, new ArrayList<Object>(command.subList(3, command.size())));
+    }
+
+    /**
+     * @return the arguments of the next command, null at the end of the stream
+     */
+    private static List<byte[]> readCommand(final InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header == null) {
+            return null;
+        }
+        int count = Integer.parseInt(header.substring(1));
+        List<byte[]> command = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String length = readLine(in);
+            if (length == null) {
+                return null;
+            }
+            byte[] argument = new byte[Integer.parseInt(length.substring(1))];
+            int read = 0;
+            while (read < argument.length) {
+                int n = in.read(argument, read, argument.length - read);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+            readLine(in);
+            command.add(argument);
+        }
+        return command;
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c < 0) {
+                return null;
+            }
+            line.append((char) c);
+        }
+        in.read();
+        return line.toString();
+    }
+
+    private static void writeStatus(final OutputStream out, final String status)
+            throws IOException {
+        out.write('+');
+        out.write(status.getBytes(StandardCharsets.UTF_8));
+        out.write(CRLF);
+    }
+
+    private static void writeError(final OutputStream out, final String error)
+            throws IOException {
+        out.write('-');
+        out.write(error.getBytes(StandardCharsets.UTF_8));
+        out.write(CRLF);
+    }
+
+    /**
+     * Writes a number as an integer, a list as an array and anything else as a bulk string.
+     */
+    private static void writeReply(final OutputStream out, final Object reply)
+            throws IOException {
+        if (reply instanceof Long) {
+            writeLength(out, ':', (Long) reply);
+        } else if (reply instanceof List) {
+            List<?> list = (List<?>) reply;
+            writeLength(out, '*', list.size());
+            for (Object item : list) {
+                writeReply(out, item);
+            }
+        } else if (reply == null) {
+            writeLength(out, '$', -1);
+        } else {
+            byte[] bytes = reply instanceof byte[] ? (byte[]) reply
+                    : reply.toString().getBytes(StandardCharsets.UTF_8);
+            writeLength(out, '$', bytes.length);
+            out.write(bytes);
+            out.write(CRLF);
+        }
+    }
+
+    private static void writeLength(final OutputStream out, final char type, final long length)
+            throws IOException {
+        out.write(type);
+        out.write(String.valueOf(length).getBytes(StandardCharsets.UTF_8));
+        out.write(CRLF);
+    }
+
+    private static String text(final byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String sha1(final byte[] body) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(body);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
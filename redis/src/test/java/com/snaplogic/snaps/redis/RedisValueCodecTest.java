@@ -0,0 +1,168 @@
+package com.snaplogic.snaps.redis;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that {@link com.snaplogic.snaps.redis.RedisValueCodec} reads back what it wrote in
+ * every encoding, and reads values written by other clients without a header.
+ */
+public class RedisValueCodecTest {
+
+    @Test
+    public void testRoundTripsDocumentInEveryEncoding() throws Exception {
+        Map<String, Object> document = document();
+        for (String encoding : Arrays.asList(RedisValueCodec.ENCODING_JSON,
+                RedisValueCodec.ENCODING_BINARY)) {
+            for (int threshold : new int[]{0, 16}) {
+                RedisValueCodec codec = RedisValueCodec.of(encoding, threshold);
+                assertEquals(encoding + " " + threshold, normalize(document),
+                        normalize(RedisValueCodec.decode(codec.encode(document))));
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryKeepsNumberTypesAndBytes() throws Exception {
+        RedisValueCodec codec = RedisValueCodec.of(RedisValueCodec.ENCODING_BINARY, 0);
+        List<Object> values = Arrays.<Object>asList(-1L, 1.5d,
+                new BigInteger("123456789012345678901234567890"), new BigDecimal("-0.001"),
+                true, null);
+        assertEquals(values, RedisValueCodec.decode(codec.encode(values)));
+
+        byte[] bytes = {0, (byte) 0xff, 0x1d};
+        assertArrayEquals(bytes, (byte[]) RedisValueCodec.decode(codec.encode(bytes)));
+    }
+
+    @Test
+    public void testStoresTextAsPlainUtf8() throws Exception {
+        String text = "caf\u00e9";
+        byte[] plain = RedisValueCodec.TEXT.encode(text);
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), plain);
+        assertEquals(text, RedisValueCodec.decode(plain));
+
+        RedisValueCodec compressed = RedisValueCodec.of(RedisValueCodec.ENCODING_TEXT, 8);
+        String repeated = new String(new char[1000]).replace('\0', 'a');
+        byte[] deflated = compressed.encode(repeated);
+        assertTrue(deflated.length < repeated.length());
+        assertEquals(repeated, RedisValueCodec.decode(deflated));
+    }
+
+    @Test
+    public void testReadsForeignValues() {
+        assertNull(RedisValueCodec.decode(null));
+        assertEquals("", RedisValueCodec.decode(new byte[0]));
+        // a value of another client starting with a zero byte is not taken for a header
+        byte[] zeroFirst = {0, 1, 'a'};
+        assertEquals(new String(zeroFirst, StandardCharsets.UTF_8),
+                RedisValueCodec.decode(zeroFirst));
+        // not UTF-8, passed through as it is
+        byte[] binary = {(byte) 0xc3, 0x28, (byte) 0xff, 0};
+        assertArrayEquals(binary, (byte[]) RedisValueCodec.decode(binary));
+    }
+
+    @Test
+    public void testRejectsUnknownHeaderVersion() throws Exception {
+        byte[] value = RedisValueCodec.of(RedisValueCodec.ENCODING_JSON, 0).encode("x");
+        value[4] = 99;
+        try {
+            RedisValueCodec.decode(value);
+            fail("Expected an unknown version to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("version 99"));
+        }
+    }
+
+    @Test
+    public void testRejectsCountsLargerThanValue() throws Exception {
+        RedisValueCodec codec = RedisValueCodec.of(RedisValueCodec.ENCODING_BINARY, 0);
+        byte[] list = codec.encode(Collections.singletonList(1L));
+        byte[] map = codec.encode(Collections.singletonMap("k", 1L));
+        // replaces the one byte count after the tag with one of 2^31 - 1, zigzag encoded
+        for (byte[] value : Arrays.asList(list, map)) {
+            byte[] corrupted = new byte[value.length + 4];
+            System.arraycopy(value, 0, corrupted, 0, 7);
+            byte[] count = {(byte) 0xfe, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f};
+            System.arraycopy(count, 0, corrupted, 7, count.length);
+            System.arraycopy(value, 8, corrupted, 12, value.length - 8);
+            try {
+                RedisValueCodec.decode(corrupted);
+                fail("Expected a malformed count to be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("Malformed count"));
+            }
+        }
+    }
+
+    @Test
+    public void testBoundsInflatedLength() throws Exception {
+        char[] zeros = new char[64 * 1024];
+        Arrays.fill(zeros, '0');
+        String text = new String(zeros);
+        byte[] value = RedisValueCodec.of(RedisValueCodec.ENCODING_TEXT, 8).encode(text);
+        assertEquals(text, RedisValueCodec.decode(value));
+
+        byte[] body = Arrays.copyOfRange(value, 6, value.length);
+        assertEquals(zeros.length, RedisValueCodec.inflate(body, zeros.length).length);
+        try {
+            RedisValueCodec.inflate(body, zeros.length - 1);
+            fail("Expected the value to inflate past the maximum");
+        } catch (DataFormatException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("more than 65535 bytes"));
+        }
+    }
+
+    private static Map<String, Object> document() {
+        Map<String, Object> nested = new LinkedHashMap<>();
+        nested.put("name", "caf\u00e9");
+        nested.put("tags", Arrays.asList("a", "b", "c"));
+        Map<String, Object> document = new LinkedHashMap<>();
+        document.put("id", 42L);
+        document.put("price", new BigDecimal("9.99"));
+        document.put("active", true);
+        document.put("missing", null);
+        document.put("nested", nested);
+        return document;
+    }
+
+    /**
+     * JSON reads integers back as the smallest fitting type, compares numbers by their string
+     * form.
+     */
+    private static Object normalize(final Object value) {
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<>();
+            for (Object item : (List<?>) value) {
+                list.add(normalize(item));
+            }
+            return list;
+        }
+        if (value instanceof Map) {
+            Map<Object, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                map.put(entry.getKey(), normalize(entry.getValue()));
+            }
+            return map;
+        }
+        return value;
+    }
+}